@@ -25,6 +25,7 @@ Script used by StratusLab PDisk to manage Backend LUNs.
 
 import sys
 from optparse import OptionParser
+from StringIO import StringIO
 
 sys.path.append('/var/lib/stratuslab/python')
 
@@ -37,7 +38,7 @@ from stratuslab.pdiskbackend.PdiskBackendProxyFactory import PdiskBackendProxyFa
 
 # Keys are supported actions, values are the number of arguments required for the each action
 VALID_ACTIONS = {'check':1, 'create':2, 'delete':1, 'rebase':1, 
-                 'snapshot':3, 'getturl':1 , 'map':1 , 'unmap':1}
+                 'snapshot':3, 'getturl':1 , 'map':1 , 'unmap':1, 'batch':1}
 VALID_ACTIONS_STR = ', '.join(VALID_ACTIONS.keys())
 
 def parse_args(parser):
@@ -52,6 +53,8 @@ Parameters:
     action=rebase:   LUN_UUID (will return the rebased LUN UUID on stdout)
     action=snapshot: LUN_UUID New_LUN_UUID Snapshot_Size
     action=unmap:    LUN_UUID
+    action=batch:    ACTION,ARG1,ARG2... [ACTION,ARG1,ARG2...] (runs the actions
+                     in order, stopping at the first failure)
 """
     parser.set_usage(usage_text)
     parser.add_option('--config', dest='config_file', action='store', 
@@ -60,12 +63,168 @@ Parameters:
                                                         defaults.CONFIG_FILE_NAME)
     parser.add_option('--action', dest='action', action='store', default='', 
                       help='Action to execute. Valid actions: %s' % VALID_ACTIONS_STR)
+    parser.add_option('--daemon', dest='daemon', action='store_true', default=False,
+                      help='Serve actions read from stdin until it is closed (used by the pdisk server)')
     parser.add_option('-v', '--debug', '--verbose', dest='verbosity',
                       action='count', default=defaults.VERBOSITY, 
                       help='Increase verbosity level for debugging (multiple allowed)')
     options, args = parser.parse_args()
     return options, args
 
+def run_action(action, args, backend_proxy):
+    """
+    Executes a single action against the backend and returns its status.
+    """
+    status = 0
+
+    if action == 'check':
+        print_detail("Checking LUN existence...", 1)
+        lun = LUN(args[0], proxy=backend_proxy)
+        status = lun.check()
+    elif action == 'create':
+        print_detail("Creating LUN...", 1)
+        lun = LUN(args[0], size=args[1], proxy=backend_proxy)
+        status = lun.create()
+    elif action == 'delete':
+        print_detail("Deleting LUN...", 1)
+        lun = LUN(args[0], proxy=backend_proxy)
+        status = lun.delete()
+    elif action == 'getturl' :
+        print_detail("Returning Transport URL...", 1)
+        lun = LUN(args[0], proxy=backend_proxy)
+        turl = lun.getTurl()
+        # If an error occured, it has already been signaled.
+        # If it succeeds, rebasedLUN should always be defined...
+        if turl:
+            print turl
+            status = 0
+        else:
+            status = 10
+    elif action == 'rebase':
+        print_detail("Rebasing LUN...", 1)
+        lun = LUN(args[0], proxy=backend_proxy)
+        rebasedLUN = lun.rebase()
+        # If an error occured, it has already been signaled.
+        # If it succeeds, rebasedLUN should always be defined...
+        if rebasedLUN:
+            print rebasedLUN
+            status = 0
+        else:
+            status = 10
+    elif action == 'snapshot':
+        print_detail("Doing a LUN snapshot...", 1)
+        lun = LUN(args[0],size=args[2],proxy=backend_proxy)
+        snapshot_lun = LUN(args[1],proxy=backend_proxy)
+        # Only the last error is returned
+        status = lun.snapshot(snapshot_lun)
+    elif action == 'map':
+        print_detail("Mapping LUN...", 1)
+        lun = LUN(args[0],proxy=backend_proxy)
+        status = lun.map()
+    elif action == 'unmap':
+        print_detail("Unmapping LUN...", 1)
+        lun = LUN(args[0],proxy=backend_proxy)
+        status = lun.unmap()
+    elif action == 'batch':
+        status = run_batch(args, backend_proxy)
+    else:
+        abort("Internal error: unimplemented action (%s)" % action)
+
+    return status
+
+def run_captured_action(action, args, backend_proxy):
+    """
+    Executes an action in daemon mode. Everything the action writes on
+    stdout/stderr is captured and returned with the status, exactly as the
+    one-shot mode would have produced it. Errors never stop the daemon.
+    """
+    output = StringIO()
+    saved_stdout, saved_stderr = sys.stdout, sys.stderr
+    sys.stdout, sys.stderr = output, output
+    try:
+        try:
+            if action not in VALID_ACTIONS:
+                print_detail("Invalid action requested (%s)" % action)
+                status = 1
+            elif len(args) < VALID_ACTIONS[action]:
+                print_detail("Insufficient argument provided (%d required)" % VALID_ACTIONS[action])
+                status = 1
+            else:
+                status = run_action(action, args, backend_proxy)
+        except SystemExit, e:
+            if isinstance(e.code, int):
+                status = e.code
+            elif e.code is None:
+                status = 0
+            else:
+                print e.code
+                status = 1
+        except Exception, e:
+            print "Unexpected error during %s: %s" % (action, e)
+            status = 1
+    finally:
+        sys.stdout, sys.stderr = saved_stdout, saved_stderr
+
+    if status is None:
+        status = 0
+    return status, output.getvalue()
+
+def run_batch(operations, backend_proxy):
+    """
+    Executes several actions with a single invocation. Each operation is
+    given as the action and its arguments separated by commas. The output of
+    each executed operation is framed the same way as the daemon answers:
+
+        <status> <output length in bytes>
+        <output>
+
+    Operations following a failed one are not executed; the status of the
+    batch is the status of the failed operation.
+    """
+    for operation in operations:
+        fields = operation.split(',')
+        if fields[0] == 'batch':
+            status, output = 1, "Nested batch not allowed\n"
+        else:
+            status, output = run_captured_action(fields[0], fields[1:], backend_proxy)
+        sys.stdout.write('%d %d\n' % (status, len(output)))
+        sys.stdout.write(output)
+        if status != 0:
+            return status
+    return 0
+
+def serve(backend_proxy):
+    """
+    Daemon mode used by the pdisk server to avoid one interpreter start per
+    action. Once the backend proxy is loaded, the daemon writes a "ready"
+    line; the server only falls back to one-shot processes when it does not
+    get it. Requests are then read from stdin, one per line:
+
+        action arg1 arg2 ...
+
+    Each request is answered on stdout with a header line followed by the
+    captured output of the action:
+
+        <status> <output length in bytes>
+        <output>
+
+    The daemon exits when stdin is closed.
+    """
+    channel = sys.stdout
+    channel.write('ready\n')
+    channel.flush()
+    while True:
+        line = sys.stdin.readline()
+        if not line:
+            break
+        request = line.split()
+        if not request:
+            continue
+        status, output = run_captured_action(request[0], request[1:], backend_proxy)
+        channel.write('%d %d\n' % (status, len(output)))
+        channel.write(output)
+        channel.flush()
+
 parser = OptionParser()
 options, args = parse_args(parser)
 
@@ -73,7 +232,11 @@ ch = ConfigHolder(config_file_name=options.config_file,
                   verbosity=options.verbosity)
 initialize_logger(ch.get(defaults.CONFIG_MAIN_SECTION, 'log_direction'),
                   ch.verbosity)
-            
+
+if options.daemon:
+    serve(PdiskBackendProxyFactory.createBackendProxy(ch))
+    sys.exit(0)
+
 if options.action in VALID_ACTIONS:
     if len(args) < VALID_ACTIONS[options.action]:
         print_detail("Insufficient argument provided (%d required)" % VALID_ACTIONS[options.action])  
@@ -91,57 +254,6 @@ backend_proxy = PdiskBackendProxyFactory.createBackendProxy(ch)
 
 # Execute requested action
 
-status = 0
-
-if options.action == 'check':
-    print_detail("Checking LUN existence...", 1)
-    lun = LUN(args[0], proxy=backend_proxy)
-    status = lun.check()
-elif options.action == 'create':
-    print_detail("Creating LUN...", 1)
-    lun = LUN(args[0], size=args[1], proxy=backend_proxy)
-    status = lun.create()
-elif options.action == 'delete':
-    print_detail("Deleting LUN...", 1)
-    lun = LUN(args[0], proxy=backend_proxy)
-    status = lun.delete()
-elif options.action == 'getturl' :
-    print_detail("Returning Transport URL...", 1)
-    lun = LUN(args[0], proxy=backend_proxy)
-    turl = lun.getTurl()
-    # If an error occured, it has already been signaled.
-    # If it succeeds, rebasedLUN should always be defined...
-    if turl:
-        print turl
-        status = 0
-    else:
-        status = 10
-elif options.action == 'rebase':
-    print_detail("Rebasing LUN...", 1)
-    lun = LUN(args[0], proxy=backend_proxy)
-    rebasedLUN = lun.rebase()
-    # If an error occured, it has already been signaled.
-    # If it succeeds, rebasedLUN should always be defined...
-    if rebasedLUN:
-        print rebasedLUN
-        status = 0
-    else:
-        status = 10
-elif options.action == 'snapshot':
-    print_detail("Doing a LUN snapshot...", 1)
-    lun = LUN(args[0],size=args[2],proxy=backend_proxy)
-    snapshot_lun = LUN(args[1],proxy=backend_proxy)
-    # Only the last error is returned
-    status = lun.snapshot(snapshot_lun)
-elif options.action == 'map':
-    print_detail("Mapping LUN...", 1)
-    lun = LUN(args[0],proxy=backend_proxy)
-    status = lun.map()
-elif options.action == 'unmap':
-    print_detail("Unmapping LUN...", 1)
-    lun = LUN(args[0],proxy=backend_proxy)
-    status = lun.unmap()
-else:
-    abort("Internal error: unimplemented action (%s)" % options.action)
+status = run_action(options.action, args, backend_proxy)
 
 sys.exit(status)
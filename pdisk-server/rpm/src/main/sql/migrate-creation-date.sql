@@ -0,0 +1,37 @@
+--
+-- Migration of an existing pdisk MySQL database to the typed creation
+-- date and the indexes of the Disk, Mount and Instance tables.
+--
+-- hbm2ddl=update adds the creationDate column and the indexes when the
+-- new version starts, but it cannot convert the former creation column
+-- (yyyy/MM/dd HH:mm:ss strings): the existing disks would then have no
+-- creation date. Run this script once, with the service stopped, before
+-- starting the new version:
+--
+--   service pdisk stop
+--   mysql -u root -p storage < migrate-creation-date.sql
+--   service pdisk start
+--
+-- If the new version has already been started, only run the UPDATE
+-- statement: the column and the indexes exist already.
+--
+
+ALTER TABLE Disk ADD COLUMN creationDate DATETIME NULL;
+
+UPDATE Disk SET creationDate = STR_TO_DATE(creation, '%Y/%m/%d %H:%i:%s')
+  WHERE creationDate IS NULL;
+
+CREATE INDEX disk_owner_creation ON Disk (owner, creationDate);
+CREATE INDEX disk_creation ON Disk (creationDate);
+CREATE INDEX disk_identifier ON Disk (identifier);
+
+CREATE INDEX mount_uuid_device ON Mount (uuid, device);
+
+CREATE INDEX instance_owner ON Instance (owner, vmId);
+
+--
+-- The former column is kept so that the previous version can still be
+-- reinstalled. Once the new version runs, it can be dropped with:
+--
+--   ALTER TABLE Disk DROP COLUMN creation;
+--
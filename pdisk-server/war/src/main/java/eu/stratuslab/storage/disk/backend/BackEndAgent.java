@@ -0,0 +1,247 @@
+package eu.stratuslab.storage.disk.backend;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import eu.stratuslab.storage.disk.utils.FileUtils;
+
+/**
+ * Long-lived backend script started with --daemon. The script keeps its
+ * configuration and backend proxy loaded, announces itself with a "ready"
+ * line and answers one request per line: the request is "action arg1 arg2
+ * ...", the answer is a "status length" header followed by the captured
+ * output of the action.
+ */
+final class BackEndAgent {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final String READY = "ready";
+
+    private final Process process;
+
+    private final OutputStream requests;
+
+    private final DataInputStream responses;
+
+    private final ExecutorService readers;
+
+    private final long timeout;
+
+    /**
+     * Starts the daemon and waits for its "ready" line; an IOException means
+     * that the daemon did not start (e.g. a configuration error). Answers
+     * are read by the readers, so that the request is given up and the
+     * daemon killed when the answer takes more than timeout seconds (no
+     * limit if zero or less): children of a killed daemon may keep its
+     * output open, and a read on it cannot be interrupted.
+     */
+    BackEndAgent(List<String> command, ExecutorService readers, long timeout) throws IOException {
+        this.readers = readers;
+        this.timeout = timeout;
+
+        ProcessBuilder pb = new ProcessBuilder(command);
+        process = pb.start();
+
+        requests = process.getOutputStream();
+        responses = new DataInputStream(process.getInputStream());
+
+        logErrorStream(process.getErrorStream());
+
+        String greeting;
+        try {
+            greeting = waitFor(new Callable<String>() {
+                public String call() throws IOException {
+                    return readHeader();
+                }
+            });
+        } catch (ExecutionException e) {
+            close();
+            throw new IOException("backend daemon did not start" + getExitStatus() + ": "
+                    + e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            close();
+            throw new IOException("backend daemon did not start within " + timeout + " s");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IOException("interrupted while starting backend daemon");
+        }
+
+        if (!READY.equals(greeting)) {
+            close();
+            throw new IOException("unexpected greeting from backend daemon: " + greeting);
+        }
+    }
+
+    /**
+     * Sends one request to the daemon and waits for its answer. An
+     * IOException means that the request could not be delivered, so it is
+     * safe to run it some other way. Once delivered, the daemon may have run
+     * the action even if it died before answering (its output is only sent
+     * when the action finishes): a daemon failing or killed after the
+     * timeout raises a ResourceException. In both cases the agent must be
+     * discarded.
+     */
+    BackEndResponse execute(String action, String... arguments) throws IOException {
+
+        StringBuilder request = new StringBuilder(action);
+        for (String argument : arguments) {
+            request.append(' ');
+            request.append(argument);
+        }
+        request.append('\n');
+
+        requests.write(request.toString().getBytes(ENCODING));
+        requests.flush();
+
+        try {
+            return waitFor(new Callable<BackEndResponse>() {
+                public BackEndResponse call() throws IOException {
+                    return readResponse();
+                }
+            });
+        } catch (ExecutionException e) {
+            String msg = "Backend daemon failed while executing: " + request.toString().trim();
+            LOGGER.severe(msg + getExitStatus() + ": " + e.getCause().getMessage());
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, msg);
+        } catch (TimeoutException e) {
+            close();
+            String msg = "Backend daemon killed after " + timeout + " s while executing: "
+                    + request.toString().trim();
+            LOGGER.severe(msg);
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, msg);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "Interrupted while executing: "
+                    + request.toString().trim());
+        }
+    }
+
+    private <T> T waitFor(Callable<T> reader) throws ExecutionException, TimeoutException,
+            InterruptedException {
+        Future<T> result = readers.submit(reader);
+        return (timeout > 0) ? result.get(timeout, TimeUnit.SECONDS) : result.get();
+    }
+
+    private BackEndResponse readResponse() throws IOException {
+
+        String header = readHeader();
+
+        String[] fields = header.trim().split(" ");
+        if (fields.length != 2) {
+            throw new IOException("malformed response header: " + header);
+        }
+
+        int status;
+        int length;
+        try {
+            status = Integer.parseInt(fields[0]);
+            length = Integer.parseInt(fields[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("malformed response header: " + header);
+        }
+
+        byte[] output = new byte[length];
+        responses.readFully(output);
+
+        return new BackEndResponse(status, output);
+    }
+
+    boolean isAlive() {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Closing stdin makes the daemon exit cleanly; destroy() is only a
+     * safety net for a daemon that does not react.
+     */
+    void close() {
+        FileUtils.closeIgnoringError(requests);
+        FileUtils.closeIgnoringError(responses);
+        process.destroy();
+    }
+
+    private String readHeader() throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        int c;
+        while ((c = responses.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("backend daemon closed its output");
+            }
+            header.write(c);
+        }
+        return header.toString(ENCODING);
+    }
+
+    private String getExitStatus() {
+        try {
+            return " (exit status " + process.exitValue() + ")";
+        } catch (IllegalThreadStateException e) {
+            return "";
+        }
+    }
+
+    private static void logErrorStream(final InputStream stderr) {
+        Thread gobbler = new Thread("backend-agent-stderr") {
+            @Override
+            public void run() {
+                BufferedReader reader = null;
+                try {
+                    reader = new BufferedReader(new InputStreamReader(stderr, ENCODING));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        LOGGER.info("backend daemon: " + line);
+                    }
+                } catch (IOException consumed) {
+                    // daemon is gone
+                } finally {
+                    FileUtils.closeIgnoringError(reader);
+                }
+            }
+        };
+        gobbler.setDaemon(true);
+        gobbler.start();
+    }
+
+    static final class BackEndResponse {
+
+        final int status;
+
+        final String output;
+
+        final byte[] bytes;
+
+        BackEndResponse(int status, byte[] bytes) throws IOException {
+            this.status = status;
+            this.bytes = bytes;
+            this.output = new String(bytes, ENCODING);
+        }
+    }
+
+}
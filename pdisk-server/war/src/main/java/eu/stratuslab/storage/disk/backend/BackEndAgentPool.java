@@ -0,0 +1,89 @@
+package eu.stratuslab.storage.disk.backend;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import eu.stratuslab.storage.disk.backend.BackEndAgent.BackEndResponse;
+import eu.stratuslab.storage.disk.utils.MiscUtils;
+
+/**
+ * Bounded set of backend daemons. Daemons are started on demand, reused
+ * across requests and replaced when they die. Callers beyond the limit wait
+ * for a daemon to become free. A daemon taking more than timeout seconds to
+ * answer is killed.
+ */
+final class BackEndAgentPool {
+
+    private final List<String> command;
+
+    private final Semaphore permits;
+
+    private final Queue<BackEndAgent> idleAgents = new ConcurrentLinkedQueue<BackEndAgent>();
+
+    private final ExecutorService readers = Executors.newCachedThreadPool(new ReaderFactory());
+
+    private final long timeout;
+
+    BackEndAgentPool(List<String> command, int maxAgents, long timeout) {
+        this.command = command;
+        this.permits = new Semaphore(Math.max(1, maxAgents), true);
+        this.timeout = timeout;
+    }
+
+    BackEndResponse execute(String action, String... arguments) throws IOException {
+
+        permits.acquireUninterruptibly();
+
+        BackEndAgent agent = null;
+        try {
+
+            agent = takeIdleAgent();
+            if (agent == null) {
+                agent = new BackEndAgent(command, readers, timeout);
+            }
+
+            BackEndResponse response = agent.execute(action, arguments);
+
+            idleAgents.offer(agent);
+            agent = null;
+
+            return response;
+
+        } finally {
+            if (agent != null) {
+                agent.close();
+            }
+            permits.release();
+        }
+    }
+
+    String getCommandLine() {
+        return MiscUtils.join(command, " ");
+    }
+
+    private BackEndAgent takeIdleAgent() {
+        BackEndAgent agent;
+        while ((agent = idleAgents.poll()) != null) {
+            if (agent.isAlive()) {
+                return agent;
+            }
+            agent.close();
+        }
+        return null;
+    }
+
+    private static final class ReaderFactory implements ThreadFactory {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "backend-agent-reader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
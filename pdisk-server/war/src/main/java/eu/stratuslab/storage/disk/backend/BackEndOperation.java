@@ -0,0 +1,163 @@
+package eu.stratuslab.storage.disk.backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.restlet.resource.ResourceException;
+
+/**
+ * One backend action with its arguments, to be executed as part of a batch
+ * (see BackEndStorage.execute()).
+ */
+public final class BackEndOperation {
+
+    public enum Action {
+        CREATE("create"), DELETE("delete"), MAP("map"), UNMAP("unmap"), SNAPSHOT("snapshot"), GETTURL(
+                "getturl"), CHECK("check");
+
+        private final String name;
+
+        private Action(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final Action action;
+
+    private final List<String> arguments;
+
+    private final String errorMsg;
+
+    private BackEndOperation(Action action, String errorMsg, String... arguments) {
+        this.action = action;
+        this.errorMsg = errorMsg;
+        this.arguments = Collections.unmodifiableList(Arrays.asList(arguments));
+    }
+
+    public static BackEndOperation create(String uuid, long size) {
+        return new BackEndOperation(Action.CREATE, "Unable to create volume on backend storage: " + uuid
+                + " of size " + size, uuid, String.valueOf(size));
+    }
+
+    public static BackEndOperation delete(String uuid) {
+        return new BackEndOperation(Action.DELETE, "Unable to delete volume on backend storage: " + uuid, uuid,
+                "0");
+    }
+
+    public static BackEndOperation map(String uuid) {
+        return new BackEndOperation(Action.MAP, "Unable to map: " + uuid, uuid);
+    }
+
+    public static BackEndOperation unmap(String uuid) {
+        return new BackEndOperation(Action.UNMAP, "Unable to unmap: " + uuid, uuid);
+    }
+
+    public static BackEndOperation snapshot(String baseUuid, String cowUuid, long size) {
+        return new BackEndOperation(Action.SNAPSHOT, "Cannot create copy on write volume: " + baseUuid + " "
+                + cowUuid + " " + size, baseUuid, cowUuid, Long.toString(size));
+    }
+
+    public static BackEndOperation getTurl(String uuid) {
+        return new BackEndOperation(Action.GETTURL, "Cannot find transport URL (turl) for uuid: " + uuid, uuid);
+    }
+
+    public static BackEndOperation check(String uuid) {
+        return new BackEndOperation(Action.CHECK, "Volume does not exist on backend storage: " + uuid, uuid);
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public List<String> getArguments() {
+        return arguments;
+    }
+
+    public String getErrorMsg() {
+        return errorMsg;
+    }
+
+    /**
+     * UUIDs of the volumes touched by this operation.
+     */
+    public List<String> getVolumes() {
+        if (action == Action.CREATE || action == Action.DELETE) {
+            return arguments.subList(0, 1);
+        } else if (action == Action.SNAPSHOT) {
+            return arguments.subList(0, 2);
+        } else {
+            return arguments;
+        }
+    }
+
+    /**
+     * Runs the operation through the single-action methods of the backend.
+     */
+    String apply(BackEndStorage backend) {
+        String uuid = arguments.get(0);
+        switch (action) {
+        case CREATE:
+            backend.create(uuid, Long.parseLong(arguments.get(1)));
+            return "";
+        case DELETE:
+            backend.delete(uuid);
+            return "";
+        case MAP:
+            backend.map(uuid);
+            return "";
+        case UNMAP:
+            backend.unmap(uuid);
+            return "";
+        case SNAPSHOT:
+            return backend.createCopyOnWrite(uuid, arguments.get(1), Long.parseLong(arguments.get(2)));
+        case GETTURL:
+            return backend.getTurl(uuid);
+        case CHECK:
+            return backend.checkDiskExists(uuid);
+        default:
+            throw new IllegalStateException("unknown backend action: " + action);
+        }
+    }
+
+    /**
+     * Executes the operations one after the other with the single-action
+     * methods of the backend, stopping after the first failure.
+     */
+    static List<BackEndResult> executeSequentially(BackEndStorage backend, List<BackEndOperation> operations) {
+        List<BackEndResult> results = new ArrayList<BackEndResult>();
+        for (BackEndOperation operation : operations) {
+            try {
+                results.add(BackEndResult.success(operation, operation.apply(backend)));
+            } catch (ResourceException e) {
+                results.add(BackEndResult.failure(operation, e.getStatus().getDescription()));
+                break;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Argument used to pass this operation to the backend script batch
+     * action: the action and its arguments separated by commas.
+     */
+    String toBatchArgument() {
+        StringBuilder sb = new StringBuilder(action.getName());
+        for (String argument : arguments) {
+            sb.append(',');
+            sb.append(argument);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return action.getName() + " " + arguments;
+    }
+
+}
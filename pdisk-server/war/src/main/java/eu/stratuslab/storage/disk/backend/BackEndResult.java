@@ -0,0 +1,63 @@
+package eu.stratuslab.storage.disk.backend;
+
+import java.util.List;
+
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+/**
+ * Outcome of one operation of a backend batch.
+ */
+public final class BackEndResult {
+
+    private final BackEndOperation operation;
+
+    private final boolean success;
+
+    private final String output;
+
+    private BackEndResult(BackEndOperation operation, boolean success, String output) {
+        this.operation = operation;
+        this.success = success;
+        this.output = output;
+    }
+
+    static BackEndResult success(BackEndOperation operation, String output) {
+        return new BackEndResult(operation, true, output);
+    }
+
+    static BackEndResult failure(BackEndOperation operation, String message) {
+        return new BackEndResult(operation, false, message);
+    }
+
+    public BackEndOperation getOperation() {
+        return operation;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * Output of the operation when it succeeded, error message otherwise.
+     */
+    public String getOutput() {
+        return output;
+    }
+
+    /**
+     * Raises the error of the first failed operation, if any. Also fails if
+     * fewer results than operations were returned.
+     */
+    public static void checkAll(List<BackEndOperation> operations, List<BackEndResult> results) {
+        for (BackEndResult result : results) {
+            if (!result.isSuccess()) {
+                throw new ResourceException(Status.SERVER_ERROR_INTERNAL, result.getOutput());
+            }
+        }
+        if (results.size() < operations.size()) {
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, operations.get(results.size()).getErrorMsg());
+        }
+    }
+
+}
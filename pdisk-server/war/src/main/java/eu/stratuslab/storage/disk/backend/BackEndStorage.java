@@ -1,96 +1,48 @@
 package eu.stratuslab.storage.disk.backend;
 
-import eu.stratuslab.storage.disk.main.RootApplication;
-import eu.stratuslab.storage.disk.utils.ProcessUtils;
-import eu.stratuslab.storage.persistence.Disk;
-
-import java.util.ArrayList;
 import java.util.List;
 
-public final class BackEndStorage {
-
-    private String CONFIG = "/etc/stratuslab/pdisk-backend.cfg";
-    private String CMD = "/usr/sbin/persistent-disk-backend.py";
-
-    public void create(String uuid, long size) {
-        String errorMsg = "Unable to create volume on backend storage: " + uuid + " of size " + size;
-
-        String[] args = {uuid, String.valueOf(size)};
-        execute("create", errorMsg, args);
-    }
-
-    protected String execute(String action, String errorMsg, String... arguments) {
-        String[] preArgs = {CMD, "--config", CONFIG, "--action", action};
-        List<String> args = new ArrayList<String>();
-        for (String s : preArgs) {
-            args.add(s);
-        }
-        for (String s : arguments) {
-            args.add(s);
-        }
-
-        return execute(errorMsg, args.toArray(new String[args.size()]));
-    }
-
-    private String execute(String errorMsg, String... arguments) {
-        ProcessBuilder pb = new ProcessBuilder(arguments);
-
-        return ProcessUtils.executeWithOutput(pb, errorMsg);
-    }
-
-    // TODO: expose this
-    protected String checkDiskExists(String baseUuid) {
-
-        String[] args = {baseUuid};
-        return execute("check", "Volume does not exist on backend storage: " + baseUuid, args);
-    }
-
-    public String getTurl(String baseUuid) {
-
-        String[] args = {baseUuid};
-        return execute("getturl", "Cannot find transport URL (turl) for uuid: " + baseUuid, args).trim();
-    }
-
-    public String rebase(Disk disk) {
-
-        String[] args = {disk.getUuid()};
-        String errorMsg = "Cannot rebase image on backend storage: " + disk.getUuid();
-        String rebasedUuid = execute("rebase", errorMsg, args);
-
-        return rebasedUuid;
-    }
+import eu.stratuslab.storage.persistence.Disk;
 
-    public String createCopyOnWrite(String baseUuid, String cowUuid, long size) {
+/**
+ * Operations on the volumes backing the persistent disks. All failures are
+ * reported as ResourceExceptions.
+ */
+public interface BackEndStorage {
 
-        String[] args = {baseUuid, cowUuid, Long.toString(size)};
-        String errorMsg = "Cannot create copy on write volume: " + baseUuid + " " + cowUuid + " " + size;
-        return execute("snapshot", errorMsg, args);
-    }
+    /**
+     * Creates a volume; the size is in GiB if 1000 or less, in bytes
+     * otherwise (see Disk.getSize()).
+     */
+    void create(String uuid, long size);
 
-    public void delete(String uuid) {
+    void delete(String uuid);
 
-        String[] args = {uuid, "0"};
-        String errorMsg = "Unable to delete volume on backend storage: " + uuid;
+    void map(String uuid);
 
-        execute("delete", errorMsg, args);
-    }
+    void unmap(String uuid);
 
-    public String getDiskLocation(String vmId, String diskUuid) {
-        String attachedDisk = RootApplication.CONFIGURATION.CLOUD_NODE_VM_DIR + "/" + vmId + "/images/pdisk-" +
-                diskUuid;
-        return attachedDisk;
-    }
+    String getTurl(String uuid);
 
-    public void map(String uuid) {
-        String[] args = {uuid};
+    /**
+     * Creates the volume cowUuid as a snapshot of baseUuid.
+     */
+    String createCopyOnWrite(String baseUuid, String cowUuid, long size);
 
-        execute("map", "Unable to map: " + uuid, args);
-    }
+    /**
+     * Makes a snapshot independent of its base. Returns the UUID of the
+     * rebased volume or an empty string if the volume keeps its UUID.
+     */
+    String rebase(Disk disk);
 
-    public void unmap(String uuid) {
-        String[] args = {uuid};
+    String checkDiskExists(String uuid);
 
-        execute("unmap", "Unable to unmap: " + uuid, args);
-    }
+    /**
+     * Executes the operations in order, stopping at the first failure. One
+     * result is returned per executed operation, so the list is shorter than
+     * the operations when one of them fails. Failures of the operations are
+     * reported in the results, not as exceptions.
+     */
+    List<BackEndResult> execute(List<BackEndOperation> operations);
 
 }
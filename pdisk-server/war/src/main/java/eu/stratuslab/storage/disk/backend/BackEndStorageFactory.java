@@ -0,0 +1,61 @@
+package eu.stratuslab.storage.disk.backend;
+
+import java.io.File;
+
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import eu.stratuslab.storage.disk.main.RootApplication;
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+
+public final class BackEndStorageFactory {
+
+    public static final String SCRIPT_BACKEND = "script";
+    public static final String FILE_BACKEND = "file";
+
+    private static BackEndStorage backend = null;
+
+    private static CachingBackEndStorage turlCache = null;
+
+    private BackEndStorageFactory() {
+
+    }
+
+    /**
+     * Returns the backend selected with disk.store.backend in the service
+     * configuration.
+     */
+    public static synchronized BackEndStorage getBackEndStorage() {
+        if (backend == null) {
+            ServiceConfiguration configuration = RootApplication.CONFIGURATION;
+            backend = createBackEndStorage(configuration);
+            if (configuration.TURL_CACHE_SIZE > 0) {
+                turlCache = new CachingBackEndStorage(backend, configuration.TURL_CACHE_SIZE);
+                backend = turlCache;
+            }
+        }
+        return backend;
+    }
+
+    /**
+     * Returns the transport URL cache in front of the backend or null if it
+     * is disabled or the backend has not been used yet.
+     */
+    public static synchronized CachingBackEndStorage getTurlCache() {
+        return turlCache;
+    }
+
+    private static BackEndStorage createBackEndStorage(ServiceConfiguration configuration) {
+
+        String type = configuration.BACKEND_TYPE;
+
+        if (SCRIPT_BACKEND.equals(type)) {
+            return new ScriptBackEndStorage();
+        } else if (FILE_BACKEND.equals(type)) {
+            return new FileBackEndStorage(new File(configuration.BACKEND_FILE_LOCATION));
+        } else {
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "Unknown backend type: " + type);
+        }
+    }
+
+}
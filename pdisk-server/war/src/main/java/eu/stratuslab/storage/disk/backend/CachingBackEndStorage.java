@@ -0,0 +1,150 @@
+package eu.stratuslab.storage.disk.backend;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.stratuslab.storage.persistence.Disk;
+
+/**
+ * Keeps the transport URLs returned by another backend in a bounded LRU
+ * cache. Entries are dropped whenever an operation may change the transport
+ * URL of a volume (create, delete, snapshot, rebase).
+ */
+public final class CachingBackEndStorage implements BackEndStorage {
+
+    private final BackEndStorage backend;
+
+    private final Map<String, String> turls;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    // Incremented on each invalidation so that a lookup racing with an
+    // invalidation never stores a stale value.
+    private long generation = 0;
+
+    public CachingBackEndStorage(BackEndStorage backend, final int maxEntries) {
+        this.backend = backend;
+        this.turls = new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public String getTurl(String uuid) {
+
+        long lookupGeneration;
+        synchronized (this) {
+            String turl = turls.get(uuid);
+            if (turl != null) {
+                hits.incrementAndGet();
+                return turl;
+            }
+            lookupGeneration = generation;
+        }
+
+        misses.incrementAndGet();
+        String turl = backend.getTurl(uuid);
+
+        synchronized (this) {
+            if (lookupGeneration == generation) {
+                turls.put(uuid, turl);
+            }
+        }
+
+        return turl;
+    }
+
+    public void create(String uuid, long size) {
+        invalidate(uuid);
+        backend.create(uuid, size);
+    }
+
+    public void delete(String uuid) {
+        try {
+            backend.delete(uuid);
+        } finally {
+            invalidate(uuid);
+        }
+    }
+
+    public void map(String uuid) {
+        backend.map(uuid);
+    }
+
+    public void unmap(String uuid) {
+        backend.unmap(uuid);
+    }
+
+    public String createCopyOnWrite(String baseUuid, String cowUuid, long size) {
+        try {
+            return backend.createCopyOnWrite(baseUuid, cowUuid, size);
+        } finally {
+            invalidate(baseUuid, cowUuid);
+        }
+    }
+
+    public String rebase(Disk disk) {
+        String rebasedUuid = null;
+        try {
+            rebasedUuid = backend.rebase(disk);
+            return rebasedUuid;
+        } finally {
+            invalidate(disk.getUuid(), rebasedUuid);
+        }
+    }
+
+    public String checkDiskExists(String uuid) {
+        return backend.checkDiskExists(uuid);
+    }
+
+    public List<BackEndResult> execute(List<BackEndOperation> operations) {
+        List<String> modified = new ArrayList<String>();
+        for (BackEndOperation operation : operations) {
+            if (operation.getAction() == BackEndOperation.Action.CREATE
+                    || operation.getAction() == BackEndOperation.Action.DELETE
+                    || operation.getAction() == BackEndOperation.Action.SNAPSHOT) {
+                modified.addAll(operation.getVolumes());
+            }
+        }
+        String[] uuids = modified.toArray(new String[modified.size()]);
+
+        invalidate(uuids);
+        try {
+            return backend.execute(operations);
+        } finally {
+            invalidate(uuids);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int getSize() {
+        return turls.size();
+    }
+
+    private synchronized void invalidate(String... uuids) {
+        generation++;
+        for (String uuid : uuids) {
+            if (uuid != null) {
+                turls.remove(uuid.trim());
+            }
+        }
+    }
+
+}
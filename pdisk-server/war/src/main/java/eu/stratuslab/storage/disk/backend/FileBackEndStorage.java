@@ -0,0 +1,167 @@
+package eu.stratuslab.storage.disk.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import eu.stratuslab.storage.disk.utils.DiskUtils;
+import eu.stratuslab.storage.disk.utils.FileUtils;
+import eu.stratuslab.storage.disk.utils.VolumeCopier;
+import eu.stratuslab.storage.persistence.Disk;
+
+/**
+ * Backend keeping each volume as a sparse file in a local (or shared)
+ * directory. Everything is done in-process; the transport URL is a file://
+ * URL understood by the pdisk host client.
+ */
+public final class FileBackEndStorage implements BackEndStorage {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private final File location;
+
+    public FileBackEndStorage(File location) {
+        this.location = location;
+    }
+
+    public void create(String uuid, long size) {
+
+        File volume = getVolume(uuid);
+        long bytes = (size > 1000) ? size : size * DiskUtils.BYTES_IN_GiB;
+
+        String errorMsg = "Unable to create volume on backend storage: " + uuid + " of size " + size;
+
+        try {
+            if (!volume.createNewFile()) {
+                throw new ResourceException(Status.SERVER_ERROR_INTERNAL, errorMsg + " (volume already exists)");
+            }
+        } catch (IOException e) {
+            LOGGER.severe(errorMsg + ": " + e.getMessage());
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, errorMsg);
+        }
+
+        RandomAccessFile file = null;
+        try {
+            // Writing only the last byte leaves the rest of the file as a hole.
+            file = new RandomAccessFile(volume, "rw");
+            if (bytes > 0) {
+                file.getChannel().write(ByteBuffer.wrap(new byte[1]), bytes - 1);
+            }
+        } catch (IOException e) {
+            FileUtils.closeIgnoringError(file);
+            file = null;
+            if (!volume.delete()) {
+                LOGGER.warning("could not delete partially created volume: " + volume.getAbsolutePath());
+            }
+            LOGGER.severe(errorMsg + ": " + e.getMessage());
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, errorMsg);
+        } finally {
+            FileUtils.closeRaisingError(file, volume.getAbsolutePath());
+        }
+    }
+
+    public void delete(String uuid) {
+        File volume = getVolume(uuid);
+        if (!volume.exists()) {
+            LOGGER.warning("volume to delete does not exist: " + volume.getAbsolutePath());
+            return;
+        }
+        if (!volume.delete()) {
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL,
+                    "Unable to delete volume on backend storage: " + uuid);
+        }
+    }
+
+    public void map(String uuid) {
+        checkDiskExists(uuid);
+    }
+
+    public void unmap(String uuid) {
+        // Files are always visible; nothing to do.
+    }
+
+    public String getTurl(String uuid) {
+        checkDiskExists(uuid);
+        return "file://" + getVolume(uuid).getAbsolutePath();
+    }
+
+    /**
+     * Plain files do not support copy-on-write; the snapshot is a full
+     * (sparse) copy of the base volume, grown to the requested size if that
+     * is larger than the base.
+     */
+    public String createCopyOnWrite(String baseUuid, String cowUuid, long size) {
+
+        checkDiskExists(baseUuid);
+
+        File base = getVolume(baseUuid);
+        File cow = getVolume(cowUuid);
+
+        String errorMsg = "Cannot create copy on write volume: " + baseUuid + " " + cowUuid + " " + size;
+        long bytes = (size > 1000) ? size : size * DiskUtils.BYTES_IN_GiB;
+
+        RandomAccessFile file = null;
+        try {
+            if (!cow.createNewFile()) {
+                throw new ResourceException(Status.SERVER_ERROR_INTERNAL, errorMsg + " (volume already exists)");
+            }
+
+            VolumeCopier.copy(base, cow, new AtomicLong());
+
+            // Growing the file only adds a hole; a smaller size never cuts
+            // into the copied base contents.
+            file = new RandomAccessFile(cow, "rw");
+            if (file.length() < bytes) {
+                file.setLength(bytes);
+            }
+
+        } catch (IOException e) {
+            FileUtils.closeIgnoringError(file);
+            file = null;
+            if (!cow.delete()) {
+                LOGGER.warning("could not delete partially copied volume: " + cow.getAbsolutePath());
+            }
+            LOGGER.severe(errorMsg + ": " + e.getMessage());
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, errorMsg);
+        } finally {
+            FileUtils.closeRaisingError(file, cow.getAbsolutePath());
+        }
+
+        return "";
+    }
+
+    /**
+     * Snapshots are already independent copies, so the volume keeps its UUID.
+     */
+    public String rebase(Disk disk) {
+        checkDiskExists(disk.getUuid());
+        return "";
+    }
+
+    public String checkDiskExists(String uuid) {
+        if (!getVolume(uuid).isFile()) {
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "Volume does not exist on backend storage: "
+                    + uuid);
+        }
+        return "";
+    }
+
+    public List<BackEndResult> execute(List<BackEndOperation> operations) {
+        return BackEndOperation.executeSequentially(this, operations);
+    }
+
+    private File getVolume(String uuid) {
+        if (!DiskUtils.isValidUUID(uuid)) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "invalid volume identifier: " + uuid);
+        }
+        return new File(location, uuid);
+    }
+
+}
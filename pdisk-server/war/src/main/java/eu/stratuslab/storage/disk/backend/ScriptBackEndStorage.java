@@ -0,0 +1,245 @@
+package eu.stratuslab.storage.disk.backend;
+
+import eu.stratuslab.storage.disk.backend.BackEndAgent.BackEndResponse;
+import eu.stratuslab.storage.disk.main.RootApplication;
+import eu.stratuslab.storage.disk.utils.ProcessUtils;
+import eu.stratuslab.storage.persistence.Disk;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Backend driven by the persistent-disk-backend.py script, either through
+ * long-lived daemons or by starting one process per action.
+ */
+public final class ScriptBackEndStorage implements BackEndStorage {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private static final String CONFIG = "/etc/stratuslab/pdisk-backend.cfg";
+    private static final String CMD = "/usr/sbin/persistent-disk-backend.py";
+
+    private static BackEndAgentPool agents = null;
+
+    public void create(String uuid, long size) {
+        String errorMsg = "Unable to create volume on backend storage: " + uuid + " of size " + size;
+
+        String[] args = {uuid, String.valueOf(size)};
+        execute("create", errorMsg, args);
+    }
+
+    private String execute(String action, String errorMsg, String... arguments) {
+
+        if (RootApplication.CONFIGURATION.BACKEND_DAEMON) {
+            try {
+                return executeWithDaemon(action, errorMsg, arguments);
+            } catch (IOException e) {
+                LOGGER.warning("Backend daemon unavailable, running " + action + " with a new process: "
+                        + e.getMessage());
+            }
+        }
+
+        String[] preArgs = {CMD, "--config", CONFIG, "--action", action};
+        List<String> args = new ArrayList<String>();
+        for (String s : preArgs) {
+            args.add(s);
+        }
+        for (String s : arguments) {
+            args.add(s);
+        }
+
+        return execute(errorMsg, args.toArray(new String[args.size()]));
+    }
+
+    private String execute(String errorMsg, String... arguments) {
+        ProcessBuilder pb = new ProcessBuilder(arguments);
+
+        return ProcessUtils.executeWithOutput(pb, errorMsg);
+    }
+
+    private String executeWithDaemon(String action, String errorMsg, String... arguments) throws IOException {
+        BackEndAgentPool pool = getAgents();
+
+        BackEndResponse response = pool.execute(action, arguments);
+
+        if (response.status != 0) {
+            String msg = "An error occurred while executing action " + action + " " + Arrays.toString(arguments)
+                    + " with: " + pool.getCommandLine() + ".\n" + response.output + "\n" + errorMsg
+                    + ".\nReturn code was: " + response.status;
+
+            LOGGER.severe(msg);
+
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, msg);
+        }
+
+        return response.output;
+    }
+
+    private static synchronized BackEndAgentPool getAgents() {
+        if (agents == null) {
+            List<String> command = new ArrayList<String>();
+            command.add(CMD);
+            command.add("--config");
+            command.add(CONFIG);
+            command.add("--daemon");
+
+            agents = new BackEndAgentPool(command, RootApplication.CONFIGURATION.BACKEND_DAEMON_AGENTS,
+                    RootApplication.CONFIGURATION.PROCESS_TIMEOUT);
+        }
+        return agents;
+    }
+
+    public String checkDiskExists(String baseUuid) {
+
+        String[] args = {baseUuid};
+        return execute("check", "Volume does not exist on backend storage: " + baseUuid, args);
+    }
+
+    public String getTurl(String baseUuid) {
+
+        String[] args = {baseUuid};
+        return execute("getturl", "Cannot find transport URL (turl) for uuid: " + baseUuid, args).trim();
+    }
+
+    public String rebase(Disk disk) {
+
+        String[] args = {disk.getUuid()};
+        String errorMsg = "Cannot rebase image on backend storage: " + disk.getUuid();
+        String rebasedUuid = execute("rebase", errorMsg, args);
+
+        return rebasedUuid;
+    }
+
+    public String createCopyOnWrite(String baseUuid, String cowUuid, long size) {
+
+        String[] args = {baseUuid, cowUuid, Long.toString(size)};
+        String errorMsg = "Cannot create copy on write volume: " + baseUuid + " " + cowUuid + " " + size;
+        return execute("snapshot", errorMsg, args);
+    }
+
+    public void delete(String uuid) {
+
+        String[] args = {uuid, "0"};
+        String errorMsg = "Unable to delete volume on backend storage: " + uuid;
+
+        execute("delete", errorMsg, args);
+    }
+
+    public void map(String uuid) {
+        String[] args = {uuid};
+
+        execute("map", "Unable to map: " + uuid, args);
+    }
+
+    public void unmap(String uuid) {
+        String[] args = {uuid};
+
+        execute("unmap", "Unable to unmap: " + uuid, args);
+    }
+
+    /**
+     * With daemons enabled, the whole list is sent as one batch request. When
+     * daemons are disabled, or the batch could not be delivered to one, the
+     * operations are run one process at a time. A batch that reached a
+     * daemon is never run again: its operations may have been applied.
+     */
+    public List<BackEndResult> execute(List<BackEndOperation> operations) {
+
+        if (RootApplication.CONFIGURATION.BACKEND_DAEMON) {
+            try {
+                return executeBatchWithDaemon(operations);
+            } catch (IOException e) {
+                LOGGER.warning("Backend daemon unavailable, running batch " + operations
+                        + " with new processes: " + e.getMessage());
+            }
+        }
+
+        return BackEndOperation.executeSequentially(this, operations);
+    }
+
+    private List<BackEndResult> executeBatchWithDaemon(List<BackEndOperation> operations) throws IOException {
+
+        if (operations.isEmpty()) {
+            return new ArrayList<BackEndResult>();
+        }
+
+        String[] arguments = new String[operations.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = operations.get(i).toBatchArgument();
+        }
+
+        BackEndResponse response = getAgents().execute("batch", arguments);
+
+        List<BackEndResult> results;
+        try {
+            results = parseBatchResponse(operations, response.bytes);
+        } catch (NumberFormatException e) {
+            throw malformedBatchResponse(operations, response);
+        } catch (IndexOutOfBoundsException e) {
+            throw malformedBatchResponse(operations, response);
+        } catch (IOException e) {
+            throw malformedBatchResponse(operations, response);
+        }
+
+        if (response.status != 0 && results.size() == 0) {
+            String msg = "An error occurred while executing batch " + operations + ".\n" + response.output
+                    + "\nReturn code was: " + response.status;
+            LOGGER.severe(msg);
+            results.add(BackEndResult.failure(operations.get(0), msg));
+        }
+
+        return results;
+    }
+
+    /**
+     * The answer of a batch is the concatenation of one "status length"
+     * header and output per executed operation.
+     */
+    private static List<BackEndResult> parseBatchResponse(List<BackEndOperation> operations, byte[] bytes)
+            throws IOException {
+
+        List<BackEndResult> results = new ArrayList<BackEndResult>();
+
+        int offset = 0;
+        for (BackEndOperation operation : operations) {
+            if (offset >= bytes.length) {
+                break;
+            }
+
+            int eol = offset;
+            while (eol < bytes.length && bytes[eol] != '\n') {
+                eol++;
+            }
+            String[] header = new String(bytes, offset, eol - offset, "UTF-8").trim().split(" ");
+            int status = Integer.parseInt(header[0]);
+            int length = Integer.parseInt(header[1]);
+            String output = new String(bytes, eol + 1, length, "UTF-8");
+            offset = eol + 1 + length;
+
+            if (status == 0) {
+                results.add(BackEndResult.success(operation, output));
+            } else {
+                String msg = "An error occurred while executing action " + operation + ".\n" + output + "\n"
+                        + operation.getErrorMsg() + ".\nReturn code was: " + status;
+                LOGGER.severe(msg);
+                results.add(BackEndResult.failure(operation, msg));
+                break;
+            }
+        }
+
+        return results;
+    }
+
+    private static ResourceException malformedBatchResponse(List<BackEndOperation> operations,
+            BackEndResponse response) {
+        String msg = "Malformed answer from backend daemon for batch " + operations + ":\n" + response.output;
+        LOGGER.severe(msg);
+        return new ResourceException(Status.SERVER_ERROR_INTERNAL, msg);
+    }
+
+}
@@ -0,0 +1,127 @@
+package eu.stratuslab.storage.disk.jobs;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long running operation executed in the background by the JobManager. The
+ * state and counters are updated by the worker and read by the /jobs
+ * resource.
+ */
+public final class Job {
+
+    public enum JobState {
+        QUEUED, RUNNING, SUCCEEDED, FAILED
+    }
+
+    private final String id = UUID.randomUUID().toString();
+
+    private final String owner;
+
+    private final String diskUuid;
+
+    private final long creationTime = System.currentTimeMillis();
+
+    private final AtomicLong bytesCopied = new AtomicLong();
+
+    private volatile long expectedBytes = -1L;
+
+    private volatile JobState state = JobState.QUEUED;
+
+    private volatile String message = "";
+
+    private volatile long startTime = 0L;
+
+    private volatile long endTime = 0L;
+
+    public Job(String owner, String diskUuid) {
+        this.owner = owner;
+        this.diskUuid = diskUuid;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public String getDiskUuid() {
+        return diskUuid;
+    }
+
+    public JobState getState() {
+        return state;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isFinished() {
+        return state == JobState.SUCCEEDED || state == JobState.FAILED;
+    }
+
+    /**
+     * Counter incremented by the worker as data is written to the disk.
+     */
+    public AtomicLong getBytesCopiedCounter() {
+        return bytesCopied;
+    }
+
+    public long getBytesCopied() {
+        return bytesCopied.get();
+    }
+
+    public long getExpectedBytes() {
+        return expectedBytes;
+    }
+
+    public void setExpectedBytes(long expectedBytes) {
+        this.expectedBytes = expectedBytes;
+    }
+
+    /**
+     * Percentage of the expected bytes already copied, or -1 if the
+     * expected size is unknown.
+     */
+    public int getProgress() {
+        if (state == JobState.SUCCEEDED) {
+            return 100;
+        }
+        if (expectedBytes <= 0) {
+            return -1;
+        }
+        return (int) Math.min(99L, bytesCopied.get() * 100L / expectedBytes);
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    void start() {
+        startTime = System.currentTimeMillis();
+        state = JobState.RUNNING;
+    }
+
+    void succeed() {
+        endTime = System.currentTimeMillis();
+        state = JobState.SUCCEEDED;
+    }
+
+    void fail(String message) {
+        this.message = (message != null) ? message : "";
+        endTime = System.currentTimeMillis();
+        state = JobState.FAILED;
+    }
+
+}
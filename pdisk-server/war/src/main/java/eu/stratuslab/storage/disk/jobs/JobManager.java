@@ -0,0 +1,156 @@
+package eu.stratuslab.storage.disk.jobs;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import eu.stratuslab.storage.disk.main.RootApplication;
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+
+/**
+ * Runs jobs on a fixed number of worker threads with a bounded queue, so
+ * that a burst of requests cannot exhaust the server. Finished jobs are
+ * kept for a while so that clients can read their final status.
+ */
+public final class JobManager {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private static JobManager instance = null;
+
+    private final ThreadPoolExecutor executor;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+
+    private final long retentionMillis;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Work done by a job. Any exception or error marks the job as failed;
+     * the message of a ResourceException is reported to the client.
+     */
+    public interface Task {
+        void execute(Job job);
+    }
+
+    public JobManager(int threads, int queueSize, int retentionSeconds) {
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new WorkerFactory());
+        retentionMillis = retentionSeconds * 1000L;
+    }
+
+    public static synchronized JobManager getInstance() {
+        if (instance == null) {
+            ServiceConfiguration cfg = RootApplication.CONFIGURATION;
+            instance = new JobManager(cfg.PROVISIONING_THREADS, cfg.PROVISIONING_QUEUE_SIZE,
+                    cfg.PROVISIONING_JOB_RETENTION);
+        }
+        return instance;
+    }
+
+    /**
+     * Queues the task. Throws a 503 ResourceException when all workers are
+     * busy and the queue is full.
+     */
+    public Job submit(final Job job, final Task task) {
+
+        purgeFinishedJobs();
+
+        jobs.put(job.getId(), job);
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    runJob(job, task);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            rejected.incrementAndGet();
+            throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE,
+                    "too many pending jobs; retry later");
+        }
+
+        return job;
+    }
+
+    /**
+     * Whatever happens, the job ends up finished. Errors (e.g. running out
+     * of memory during a copy) are rethrown once the job is marked failed.
+     */
+    private static void runJob(Job job, Task task) {
+        job.start();
+        try {
+            task.execute(job);
+            job.succeed();
+        } catch (ResourceException e) {
+            LOGGER.warning("job " + job.getId() + " failed: " + e.getMessage());
+            job.fail(e.getStatus().getDescription());
+        } catch (Throwable e) {
+            LOGGER.severe("job " + job.getId() + " failed: " + e);
+            job.fail((e.getMessage() != null) ? e.getMessage() : e.toString());
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+        }
+    }
+
+    public Job getJob(String id) {
+        return jobs.get(id);
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    public long getCompletedCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void purgeFinishedJobs() {
+        long limit = System.currentTimeMillis() - retentionMillis;
+        Iterator<Job> it = jobs.values().iterator();
+        while (it.hasNext()) {
+            Job job = it.next();
+            if (job.isFinished() && job.getEndTime() < limit) {
+                it.remove();
+            }
+        }
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "provisioning-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -19,10 +19,13 @@
  */
 package eu.stratuslab.storage.disk.main;
 
+import eu.stratuslab.storage.disk.resources.DeltaResource;
 import eu.stratuslab.storage.disk.resources.DiskResource;
 import eu.stratuslab.storage.disk.resources.DisksResource;
 import eu.stratuslab.storage.disk.resources.HomeResource;
 import eu.stratuslab.storage.disk.resources.InstancesResource;
+import eu.stratuslab.storage.disk.resources.JobResource;
+import eu.stratuslab.storage.disk.resources.MetricsResource;
 import eu.stratuslab.storage.disk.resources.MountResource;
 import eu.stratuslab.storage.disk.resources.MountsResource;
 import eu.stratuslab.storage.disk.resources.TurlResource;
@@ -90,6 +93,10 @@ public class RootApplication extends Application {
         getTunnelService().setUserAgentTunnel(true);
 
         getMetadataService().addExtension("gzip", MediaType.APPLICATION_GNU_ZIP, true);
+
+        // Ranges of exported images are handled by DiskResource (If-Range,
+        // multiple ranges); the generic filter would apply them twice.
+        getRangeService().setEnabled(false);
     }
 
     @Override
@@ -116,6 +123,9 @@ public class RootApplication extends Application {
         router.attach("/disks/{uuid}/turl/", TurlResource.class);
         router.attach("/disks/{uuid}/turl", TurlResource.class);
 
+        router.attach("/disks/{uuid}/delta/", DeltaResource.class);
+        router.attach("/disks/{uuid}/delta", DeltaResource.class);
+
         route = router.attach("/disks/{uuid}/?edit={" + DiskResource.EDIT_QUERY_VALUE + "}", DiskResource.class);
         route.setMatchingQuery(true);
 
@@ -134,6 +144,12 @@ public class RootApplication extends Application {
         router.attach("/instances/", InstancesResource.class);
         router.attach("/instances", InstancesResource.class);
 
+        router.attach("/jobs/{jobid}/", JobResource.class);
+        router.attach("/jobs/{jobid}", JobResource.class);
+
+        router.attach("/metrics/", MetricsResource.class);
+        router.attach("/metrics", MetricsResource.class);
+
         router.attach("/", HomeResource.class);
 
         router.attach("/media/", createMediaDirectory(context));
@@ -26,8 +26,6 @@ public class ServiceConfiguration {
     public static final int DISK_SIZE_MIN = 1;
     public static final int DISK_SIZE_MAX = 1024;
 
-    public static final int CACHE_EXPIRATION_DURATION = 2000;
-
     public final Properties CONFIGURATION;
 
     public final String CLOUD_NODE_SSH_KEY;
@@ -37,10 +35,52 @@ public class ServiceConfiguration {
 
     public final String CACHE_LOCATION;
 
-    public final String GZIP_CMD;
+    public final int COMPRESSION_THREADS;
+    public final int COMPRESSION_CHUNK_SIZE;
+    public final boolean COMPRESSION_STREAMING;
+    public final boolean COMPRESSION_CACHE;
+    public final long COMPRESSION_CACHE_SIZE;
+    public final int COMPRESSION_CACHE_MAX_AGE;
 
     public final int UPLOAD_COMPRESSED_IMAGE_MAX_BYTES;
 
+    public final String BACKEND_TYPE;
+    public final String BACKEND_FILE_LOCATION;
+
+    public final int TURL_CACHE_SIZE;
+
+    public final boolean BACKEND_DAEMON;
+    public final int BACKEND_DAEMON_AGENTS;
+
+    public final long PROCESS_TIMEOUT;
+    public final int PROCESS_MAX_PER_COMMAND;
+
+    public final int HOTPLUG_MAX_PER_NODE;
+
+    public final boolean SSH_MULTIPLEXING;
+    public final String SSH_CONTROL_DIR;
+    public final int SSH_IDLE_TIMEOUT;
+
+    public final int HTTP_MAX_CONNECTIONS;
+    public final int HTTP_MAX_PER_ROUTE;
+    public final int HTTP_CONNECT_TIMEOUT;
+    public final int HTTP_SOCKET_TIMEOUT;
+    public final int HTTP_IDLE_TIMEOUT;
+
+    public final int DELTA_BLOCK_SIZE;
+
+    public final int DOWNLOAD_SEGMENTS;
+    public final long DOWNLOAD_SEGMENT_MIN_SIZE;
+    public final int DOWNLOAD_RETRIES;
+
+    public final int PROVISIONING_THREADS;
+    public final int PROVISIONING_QUEUE_SIZE;
+    public final int PROVISIONING_JOB_RETENTION;
+
+    public final int DB_POOL_SIZE;
+    public final int DB_POOL_TIMEOUT;
+    public final int DB_LEAK_THRESHOLD;
+
     private ServiceConfiguration() {
 
         CONFIGURATION = readConfigFile();
@@ -54,9 +94,52 @@ public class ServiceConfiguration {
 
         CACHE_LOCATION = getCacheLocation();
 
-        GZIP_CMD = getCommand("disk.store.utils.gzip");
+        COMPRESSION_THREADS = getConfigInt("disk.store.compression.threads",
+                Runtime.getRuntime().availableProcessors());
+        COMPRESSION_CHUNK_SIZE = getConfigInt("disk.store.compression.chunk_size", 1024) * 1024;
+        COMPRESSION_STREAMING = Boolean.parseBoolean(getConfigValue("disk.store.compression.streaming", "true"));
+        COMPRESSION_CACHE = Boolean.parseBoolean(getConfigValue("disk.store.compression.cache", "true"));
+        COMPRESSION_CACHE_SIZE = getConfigInt("disk.store.compression.cache.size", 10240) * 1024L * 1024L;
+        COMPRESSION_CACHE_MAX_AGE = getConfigInt("disk.store.compression.cache.max_age", 3600);
 
         UPLOAD_COMPRESSED_IMAGE_MAX_BYTES = 10240000;
+
+        BACKEND_TYPE = getConfigValue("disk.store.backend", "script");
+        BACKEND_FILE_LOCATION = "file".equals(BACKEND_TYPE) ? getBackendFileLocation() : null;
+
+        TURL_CACHE_SIZE = getConfigInt("disk.store.backend.turl_cache.size", 1024);
+
+        BACKEND_DAEMON = Boolean.parseBoolean(getConfigValue("disk.store.backend.daemon", "true"));
+        BACKEND_DAEMON_AGENTS = getConfigInt("disk.store.backend.daemon.agents", 4);
+
+        PROCESS_TIMEOUT = getConfigInt("disk.store.process.timeout", 300);
+        PROCESS_MAX_PER_COMMAND = getConfigInt("disk.store.process.max_per_command", 16);
+
+        HOTPLUG_MAX_PER_NODE = getConfigInt("disk.store.hotplug.max_per_node", 4);
+
+        SSH_MULTIPLEXING = Boolean.parseBoolean(getConfigValue("disk.store.ssh.multiplexing", "true"));
+        SSH_CONTROL_DIR = SSH_MULTIPLEXING ? getSshControlDir() : null;
+        SSH_IDLE_TIMEOUT = getConfigInt("disk.store.ssh.idle_timeout", 300);
+
+        HTTP_MAX_CONNECTIONS = getConfigInt("disk.store.http.max_connections", 32);
+        HTTP_MAX_PER_ROUTE = getConfigInt("disk.store.http.max_per_route", 8);
+        HTTP_CONNECT_TIMEOUT = getConfigInt("disk.store.http.connect_timeout", 30);
+        HTTP_SOCKET_TIMEOUT = getConfigInt("disk.store.http.socket_timeout", 300);
+        HTTP_IDLE_TIMEOUT = getConfigInt("disk.store.http.idle_timeout", 60);
+
+        DELTA_BLOCK_SIZE = getConfigInt("disk.store.delta.block_size", 64) * 1024;
+
+        DOWNLOAD_SEGMENTS = getConfigInt("disk.store.download.segments", 4);
+        DOWNLOAD_SEGMENT_MIN_SIZE = getConfigInt("disk.store.download.segment_min_size", 32) * 1024L * 1024L;
+        DOWNLOAD_RETRIES = getConfigInt("disk.store.download.retries", 3);
+
+        PROVISIONING_THREADS = getConfigInt("disk.store.provisioning.threads", 4);
+        PROVISIONING_QUEUE_SIZE = getConfigInt("disk.store.provisioning.queue", 32);
+        PROVISIONING_JOB_RETENTION = getConfigInt("disk.store.provisioning.job_retention", 3600);
+
+        DB_POOL_SIZE = getConfigInt("disk.store.db.pool_size", 16);
+        DB_POOL_TIMEOUT = getConfigInt("disk.store.db.pool_timeout", 30);
+        DB_LEAK_THRESHOLD = getConfigInt("disk.store.db.leak_threshold", 300);
     }
 
     public static ServiceConfiguration getInstance() {
@@ -103,38 +186,55 @@ public class ServiceConfiguration {
         return CONFIGURATION.getProperty(key);
     }
 
+    private String getConfigValue(String key, String defaultValue) {
+        return CONFIGURATION.getProperty(key, defaultValue).trim();
+    }
+
+    private int getConfigInt(String key, int defaultValue) {
+        String value = getConfigValue(key, String.valueOf(defaultValue));
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL,
+                    "Invalid integer value for configuration key " + key + ": " + value);
+        }
+    }
+
+    private String getSshControlDir() {
+        String dir = getConfigValue("disk.store.ssh.control_dir", "/tmp/pdisk-ssh");
+        checkWritableDirectory(dir);
+        return dir;
+    }
+
     private String getCacheLocation() {
         String cache = getConfigValue("disk.store.cache.location");
-        File cacheDir = new File(cache);
+        checkWritableDirectory(cache);
+        return cache;
+    }
 
-        if (cacheDir.exists()) {
-            if (!cacheDir.isDirectory()) {
+    private String getBackendFileLocation() {
+        String location = getConfigValue("disk.store.backend.file.location");
+        checkWritableDirectory(location);
+        return location;
+    }
+
+    private static void checkWritableDirectory(String directory) {
+        File dir = new File(directory);
+
+        if (dir.exists()) {
+            if (!dir.isDirectory()) {
                 throw new ResourceException(Status.SERVER_ERROR_INTERNAL,
-                        "Cache location " + cacheDir.getAbsolutePath() + " already in use");
-            } else if (!cacheDir.canWrite()) {
+                        "Location " + dir.getAbsolutePath() + " already in use");
+            } else if (!dir.canWrite()) {
                 throw new ResourceException(Status.SERVER_ERROR_INTERNAL,
-                        "Cannot write cache location " + cacheDir.getAbsolutePath());
+                        "Cannot write location " + dir.getAbsolutePath());
             }
         } else {
-            if (!cacheDir.mkdirs()) {
+            if (!dir.mkdirs()) {
                 throw new ResourceException(Status.SERVER_ERROR_INTERNAL,
-                        "Unable to create cache location " + cacheDir.getAbsolutePath());
+                        "Unable to create location " + dir.getAbsolutePath());
             }
         }
-
-        return cache;
-    }
-
-    private String getCommand(String configName) {
-        String configValue = getConfigValue(configName);
-        File exec = new File(configValue);
-
-        if (!FileUtils.isExecutable(exec)) {
-            throw new ResourceException(Status.SERVER_ERROR_INTERNAL,
-                    configValue + " command does not exist or is not executable");
-        }
-
-        return configValue;
     }
 
 }
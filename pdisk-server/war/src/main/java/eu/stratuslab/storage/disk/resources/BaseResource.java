@@ -24,9 +24,12 @@ import eu.stratuslab.storage.persistence.Disk;
 import freemarker.template.Configuration;
 import org.restlet.Request;
 import org.restlet.data.ChallengeResponse;
+import org.restlet.data.Form;
 import org.restlet.data.MediaType;
 import org.restlet.data.Reference;
+import org.restlet.data.Status;
 import org.restlet.ext.freemarker.TemplateRepresentation;
+import org.restlet.resource.ResourceException;
 import org.restlet.resource.ServerResource;
 import org.restlet.util.Series;
 
@@ -46,6 +49,22 @@ public class BaseResource extends ServerResource {
 
     private static final String CLIENT_CERTS_ATTR = "org.restlet.https.clientCertificates";
 
+    /**
+     * Largest page of a listing (limit query parameter).
+     */
+    protected static final int MAX_LIST_LIMIT = 1000;
+
+    /**
+     * Rows read at a time when a whole listing is streamed.
+     */
+    protected static final int LIST_BATCH_SIZE = 500;
+
+    protected static final String LIMIT_KEY = "limit";
+
+    protected static final String AFTER_KEY = "after";
+
+    protected static final String SORT_KEY = "sort";
+
     public enum DiskVisibility {
         PRIVATE,
         // RESTRICTED,
@@ -144,6 +163,69 @@ public class BaseResource extends ServerResource {
         return result;
     }
 
+    protected String getRequestHeader(String name) {
+        Series headers = (Series) getRequest().getAttributes().get("org.restlet.http.headers");
+        return (headers != null) ? headers.getFirstValue(name, true) : null;
+    }
+
+    protected String getQueryParameter(String name) {
+        return getQuery().getFirstValue(name);
+    }
+
+    /**
+     * Returns the page size asked for, or 0 for the whole listing.
+     */
+    protected int getListLimit() {
+        String value = getQueryParameter(LIMIT_KEY);
+        if (value == null) {
+            return 0;
+        }
+
+        int limit;
+        try {
+            limit = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            limit = -1;
+        }
+
+        if (limit < 1 || limit > MAX_LIST_LIMIT) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "invalid " + LIMIT_KEY + " (" + value
+                    + "): must be between 1 and " + MAX_LIST_LIMIT);
+        }
+        return limit;
+    }
+
+    /**
+     * Trims the page read with getListLimit() + 1 rows and, if there is a
+     * next page, points to it with a Link header (RFC 5988): same query
+     * with the after parameter set to the last row of this page.
+     */
+    protected <T> List<T> trimPage(List<T> rows, int limit, String lastKey) {
+        if (rows.size() <= limit) {
+            return rows;
+        }
+
+        Form query = new Form(getQuery().getQueryString());
+        query.removeAll(AFTER_KEY);
+        query.add(AFTER_KEY, lastKey);
+
+        String next = getCurrentUrl() + "?" + query.getQueryString();
+        addResponseHeader("Link", "<" + next + ">; rel=\"next\"");
+
+        return rows.subList(0, limit);
+    }
+
+    protected void addResponseHeader(String name, String value) {
+        Form headers = (Form) getResponse().getAttributes().get("org.restlet.http.headers");
+
+        if (headers == null) {
+            headers = new Form();
+            getResponse().getAttributes().put("org.restlet.http.headers", headers);
+        }
+
+        headers.add(name, value);
+    }
+
     protected String getServiceEndpoint() {
         String baseUrl = getBaseUrl();
         Matcher m = serviceEndpointPattern.matcher(baseUrl);
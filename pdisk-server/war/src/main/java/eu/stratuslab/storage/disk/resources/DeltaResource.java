@@ -0,0 +1,161 @@
+package eu.stratuslab.storage.disk.resources;
+
+import static org.restlet.data.MediaType.APPLICATION_JSON;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Get;
+import org.restlet.resource.Post;
+import org.restlet.resource.ResourceException;
+
+import eu.stratuslab.storage.disk.main.RootApplication;
+import eu.stratuslab.storage.disk.utils.DeltaRepresentation;
+import eu.stratuslab.storage.disk.utils.DiskUtils;
+import eu.stratuslab.storage.persistence.Disk;
+import eu.stratuslab.storage.persistence.Disk.DiskType;
+
+/**
+ * Block-level delta of a disk (see DeltaCodec). GET on a live disk returns
+ * its changed blocks relative to its base disk; POST of such a delta on a
+ * seed disk creates a new image from a copy on write volume of the seed
+ * with the delta applied, without transferring the unchanged blocks. The
+ * image is then rebased onto its own volume and identified by the SHA-1
+ * checksum of its contents.
+ */
+public class DeltaResource extends DiskBaseResource {
+
+    @Get
+    public Representation getDelta() {
+
+        Disk disk = loadVisibleDisk();
+
+        String baseUuid = disk.getBaseDiskUuid();
+        if (disk.getType() != DiskType.MACHINE_IMAGE_LIVE || baseUuid == null || "".equals(baseUuid)) {
+            throw new ResourceException(Status.CLIENT_ERROR_CONFLICT, "disk (" + disk.getUuid()
+                    + ") is not a copy on write disk");
+        }
+
+        Disk base = Disk.load(baseUuid);
+        if (base == null) {
+            throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "base disk (" + baseUuid
+                    + ") does not exist");
+        }
+
+        getLogger().info(String.format("DeltaResource sending delta of %s against %s", disk.getUuid(), baseUuid));
+
+        return new DeltaRepresentation(baseUuid, getBaseReference(base), disk.getUuid(),
+                RootApplication.CONFIGURATION.DELTA_BLOCK_SIZE);
+    }
+
+    @Post
+    public Representation applyDelta(Representation entity) {
+
+        if (entity == null) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "post with null entity");
+        }
+
+        Disk seed = loadVisibleDisk();
+        if (!seed.isSeed()) {
+            throw new ResourceException(Status.CLIENT_ERROR_CONFLICT, "disk (" + seed.getUuid()
+                    + ") is not a seed disk");
+        }
+
+        Disk disk = initializeDisk();
+        DiskUtils.createDiskFromSeed(disk, seed);
+
+        Disk image = disk;
+        try {
+            long blocks = DiskUtils.applyDeltaToVolume(disk, entity.getStream(), getBaseReference(seed));
+
+            getLogger().info(String.format("DeltaResource applied %d blocks on %s (seed %s)", blocks,
+                    disk.getUuid(), seed.getUuid()));
+
+            image = rebase(disk);
+
+            String identifier = DiskUtils.calculateVolumeHash(image.getUuid());
+            if (Disk.identifierExists(identifier)) {
+                throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN, "Disk already registered");
+            }
+
+            image.setIdentifier(identifier);
+            image.setType(DiskType.MACHINE_IMAGE_ORIGIN);
+            image.setSeed(true);
+            image.store();
+
+        } catch (IOException e) {
+            discard(image);
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "invalid delta: " + e.getMessage());
+        } catch (RuntimeException e) {
+            discard(image);
+            throw e;
+        }
+
+        setStatus(Status.SUCCESS_CREATED);
+        setLocationRef(getBaseUrl() + "disks/" + image.getUuid());
+
+        Map<String, Object> info = new HashMap<String, Object>();
+        info.put("key", Disk.UUID_KEY);
+        info.put("value", image.getUuid());
+
+        return createTemplateRepresentation("json/keyvalue.ftl", info, APPLICATION_JSON);
+    }
+
+    /**
+     * Moves the patched copy on write volume onto a volume of its own, as
+     * when a live disk is saved as a new image (see DiskResource), so that
+     * the seed is not bound to the new image.
+     */
+    private Disk rebase(Disk disk) {
+
+        String rebasedUuid = DiskUtils.rebaseDisk(disk);
+
+        // some rebase implementation create new LUNs, others don't
+        if (rebasedUuid == null || "".equals(rebasedUuid) || rebasedUuid.equals(disk.getUuid())) {
+            disk.setBaseDiskUuid(null);
+            return disk;
+        }
+
+        Disk image = initializeDisk();
+        image.setUuid(rebasedUuid);
+        image.setSize(disk.getSize());
+
+        discard(disk);
+
+        return image;
+    }
+
+    private static void discard(Disk disk) {
+        DiskUtils.removeDisk(disk.getUuid());
+        disk.remove();
+    }
+
+    /**
+     * Name of the base written in the delta header and checked when the
+     * delta is applied: the identifier of the image, which is the same on
+     * every server holding it, or the UUID of the disk when it has no
+     * identifier of its own.
+     */
+    private static String getBaseReference(Disk base) {
+        String identifier = base.getIdentifier();
+        if (identifier == null || "".equals(identifier) || identifier.startsWith("snapshot:")) {
+            return base.getUuid();
+        }
+        return identifier;
+    }
+
+    private Disk loadVisibleDisk() {
+        Disk disk = loadExistingDisk();
+
+        if (!hasSufficientRightsToView(disk)) {
+            throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN,
+                    "insufficient access rights to view disk (" + getDiskId() + ")");
+        }
+
+        return disk;
+    }
+
+}
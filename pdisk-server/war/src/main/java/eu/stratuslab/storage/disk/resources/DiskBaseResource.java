@@ -20,7 +20,6 @@
 package eu.stratuslab.storage.disk.resources;
 
 import eu.stratuslab.storage.disk.main.ServiceConfiguration;
-import eu.stratuslab.storage.disk.utils.CompressedDiskRemoval;
 import eu.stratuslab.storage.persistence.Disk;
 import eu.stratuslab.storage.persistence.Disk.DiskType;
 import org.restlet.data.Form;
@@ -34,13 +33,13 @@ import java.util.Map;
 
 public class DiskBaseResource extends BaseResource {
 
-    private static final String SIZE_KEY = "size";
+    protected static final String SIZE_KEY = "size";
     private static final String VISIBILITY_KEY = "visibility";
-    private static final String TAG_KEY = "tag";
-    private static final String OWNER_KEY = "owner";
-    private static final String QUARANTINE_START_DATE_KEY = "quarantine";
+    protected static final String TAG_KEY = "tag";
+    protected static final String OWNER_KEY = "owner";
+    protected static final String QUARANTINE_START_DATE_KEY = "quarantine";
     private static final String IDENTIFIER_KEY = "identifier";
-    private static final String DISK_TYPE_KEY = "type";
+    protected static final String DISK_TYPE_KEY = "type";
     private static final String DISK_SEED_KEY = "seed";
     private static final String DISK_GROUP_KEY = "group";
     public static final String URL_KEY = "url";
@@ -141,6 +140,12 @@ public class DiskBaseResource extends BaseResource {
             throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN, "Disk already registered");
         }
 
+        validateDiskSize(disk);
+
+    }
+
+    protected void validateDiskSize(Disk disk) {
+
         long gigabytes = disk.getSize();
 
         if (gigabytes < ServiceConfiguration.DISK_SIZE_MIN || gigabytes > ServiceConfiguration.DISK_SIZE_MAX) {
@@ -170,23 +175,6 @@ public class DiskBaseResource extends BaseResource {
         return attributes.get("uuid").toString();
     }
 
-    protected void cleanCache(String uuid) {
-        CompressedDiskRemoval deleteDisk = new CompressedDiskRemoval(uuid);
-
-        getLogger().info("DiskResource toZip: " + uuid);
-
-        Disk disk = loadExistingDisk();
-        checkViewRightsOrError(disk);
-
-        deleteDisk.remove();
-    }
-
-    private void checkViewRightsOrError(Disk disk) {
-        if (!hasSufficientRightsToView(disk)) {
-            throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "disk (" + disk.getUuid() + ") does not exist");
-        }
-    }
-
     protected void addCreateFormDefaults(Map<String, Object> info) {
         Map<String, Object> defaults = new HashMap<String, Object>();
         defaults.put(Disk.DISK_SIZE_KEY, 1);
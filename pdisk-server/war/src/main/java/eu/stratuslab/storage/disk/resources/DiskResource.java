@@ -19,15 +19,21 @@
  */
 package eu.stratuslab.storage.disk.resources;
 
+import eu.stratuslab.storage.disk.main.RootApplication;
+import eu.stratuslab.storage.disk.utils.ByteRanges;
+import eu.stratuslab.storage.disk.utils.CompressedDiskRepresentation;
+import eu.stratuslab.storage.disk.utils.CompressedImageCache;
 import eu.stratuslab.storage.disk.utils.DiskUtils;
-import eu.stratuslab.storage.disk.utils.FileUtils;
+import eu.stratuslab.storage.disk.utils.FileRangeRepresentation;
 import eu.stratuslab.storage.disk.utils.MiscUtils;
+import eu.stratuslab.storage.disk.utils.SingleFlight;
 import eu.stratuslab.storage.persistence.Disk;
 import eu.stratuslab.storage.persistence.Disk.DiskType;
 import org.restlet.data.Disposition;
 import org.restlet.data.Form;
 import org.restlet.data.MediaType;
 import org.restlet.data.Status;
+import org.restlet.data.Tag;
 import org.restlet.representation.FileRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.resource.Delete;
@@ -36,8 +42,12 @@ import org.restlet.resource.Post;
 import org.restlet.resource.Put;
 import org.restlet.resource.ResourceException;
 
+import java.io.File;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.restlet.data.MediaType.APPLICATION_JSON;
 import static org.restlet.data.MediaType.TEXT_HTML;
@@ -48,10 +58,16 @@ public class DiskResource extends DiskBaseResource {
     private static final String UUID_KEY_NAME = Disk.UUID_KEY;
     private boolean isEdit = false;
 
+    /**
+     * Loaded once per request; the handlers below use it rather than
+     * loading the disk again.
+     */
+    private Disk disk;
+
     @Override
     protected void doInit() throws ResourceException {
 
-        Disk disk = loadExistingDisk();
+        disk = loadExistingDisk();
 
         if (!hasSufficientRightsToView(disk)) {
             throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN,
@@ -81,8 +97,6 @@ public class DiskResource extends DiskBaseResource {
 
         MiscUtils.checkForNullEntity(entity);
 
-        Disk disk = loadExistingDisk();
-
         hasSufficientRightsToEdit(disk);
 
         disk = processWebForm(disk, new Form(entity));
@@ -117,11 +131,6 @@ public class DiskResource extends DiskBaseResource {
     }
 
     protected Disk createCopyOnWriteOrRebase() {
-        Disk disk = Disk.load(getDiskId());
-
-        if (disk == null) {
-            throw (new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "Disk " + getDiskId() + " doesn't exists"));
-        }
 
         Disk newDisk = null;
         if (disk.getType() == DiskType.MACHINE_IMAGE_LIVE) {
@@ -191,43 +200,200 @@ public class DiskResource extends DiskBaseResource {
         return createTemplateRepresentation("json/disk.ftl", info, APPLICATION_JSON);
     }
 
+    /**
+     * Exported image, compressed with ParallelGzip. Without a Range header
+     * an image that is not cached yet is streamed while it is compressed;
+     * ranges are always served from the cached image so that an
+     * interrupted download can be resumed (If-Range with the ETag).
+     */
     @Get("gzip")
     public Representation toZip() {
 
         String uuid = getDiskId();
 
-        cleanCache(uuid);
+        getLogger().info("DiskResource toZip: " + uuid);
 
-        if (isImageBeingCompressed(uuid)) {
-            waitWhileImageCompressed(uuid);
-        } else if (needToCompressImage(uuid)) {
-            compressImage();
+        getResponse().getServerInfo().setAcceptingRanges(true);
+
+        String range = getRequestHeader("Range");
+
+        waitWhileImageCompressed(uuid);
+
+        File cached = CompressedImageCache.getInstance().lookup(uuid);
+
+        if (cached == null && range == null && RootApplication.CONFIGURATION.COMPRESSION_STREAMING) {
+            Representation image = streamCompressedImage(uuid);
+            if (image.getTag() == null) {
+                image.setTag(getCompressedImageTag(disk, null));
+            }
+            return image;
         }
 
-        Representation image = new FileRepresentation(DiskUtils.getCompressedDiskLocation(uuid),
-                MediaType.APPLICATION_GNU_ZIP);
+        if (cached == null) {
+            cached = createCompressedImage(uuid);
+        }
+
+        return getCompressedImage(cached, getCompressedImageTag(disk, cached), range);
+    }
+
+    /**
+     * Sends an image returned by CompressedImageCache.lookup() and unpins
+     * it once sent.
+     */
+    private Representation getCompressedImage(File compressed) {
+        final CachedImagePin pin = new CachedImagePin(compressed);
+
+        Representation image = new FileRepresentation(compressed, MediaType.APPLICATION_GNU_ZIP) {
+            @Override
+            public void release() {
+                pin.release();
+                super.release();
+            }
+        };
         image.getDisposition().setType(Disposition.TYPE_ATTACHMENT);
 
         return image;
     }
 
+    private Representation getCompressedImage(File compressed, Tag tag, String range) {
+
+        try {
+            List<long[]> ranges = null;
+            if (range != null && isRangeValid(tag)) {
+                ranges = ByteRanges.parse(range, compressed.length());
+            }
+
+            if (ranges == null) {
+                Representation image = getCompressedImage(compressed);
+                image.setTag(tag);
+                return image;
+            }
+
+            if (ranges.isEmpty()) {
+                throw new ResourceException(Status.CLIENT_ERROR_REQUESTED_RANGE_NOT_SATISFIABLE, "no byte of "
+                        + range + " in image of " + compressed.length() + " bytes");
+            }
+
+            final CachedImagePin pin = new CachedImagePin(compressed);
+
+            Representation image = new FileRangeRepresentation(compressed, MediaType.APPLICATION_GNU_ZIP, ranges) {
+                @Override
+                public void release() {
+                    pin.release();
+                    super.release();
+                }
+            };
+            image.getDisposition().setType(Disposition.TYPE_ATTACHMENT);
+            image.setModificationDate(new Date(compressed.lastModified()));
+            image.setTag(tag);
+
+            setStatus(Status.SUCCESS_PARTIAL_CONTENT);
+
+            return image;
+
+        } catch (RuntimeException e) {
+            CompressedImageCache.getInstance().release(compressed);
+            throw e;
+        }
+    }
+
+    /**
+     * Ranges apply unless If-Range names another version of the image (or
+     * a date, which is not supported): the whole image is sent then.
+     */
+    private boolean isRangeValid(Tag tag) {
+        String ifRange = getRequestHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        return tag != null && tag.format().equals(ifRange.trim());
+    }
+
+    /**
+     * Strong entity tag of the compressed image. Images which cannot change
+     * (origin and read-only disks) are identified by their Marketplace
+     * identifier, i.e. the SHA-1 checksum of their contents: since the
+     * compression is deterministic for a given chunk size, every
+     * compression of the image gives the same bytes. Other images are
+     * identified by the cached file, which is never modified in place.
+     */
+    private Tag getCompressedImageTag(Disk disk, File compressed) {
+
+        String identifier = disk.getIdentifier();
+        if (isImmutable(disk) && identifier != null && !"".equals(identifier)) {
+            int chunkSize = RootApplication.CONFIGURATION.COMPRESSION_CHUNK_SIZE / 1024;
+            return new Tag(identifier + "-gz" + chunkSize, false);
+        }
+
+        if (compressed != null) {
+            return new Tag(disk.getUuid() + "-" + Long.toHexString(compressed.lastModified()), false);
+        }
+
+        return null;
+    }
+
+    private static boolean isImmutable(Disk disk) {
+        DiskType type = disk.getType();
+        return type == DiskType.MACHINE_IMAGE_ORIGIN || type == DiskType.DATA_IMAGE_ORIGIN
+                || type == DiskType.DATA_IMAGE_RAW_READONLY;
+    }
+
     /**
-     * The compression logic removes the original file after compression therefore, if the raw file exists means that
-     * the compression is ongoing
+     * Compresses the image into the cache unless another request does it
+     * already, and returns the cached image.
      */
-    private Boolean isImageBeingCompressed(String uuid) {
-        return DiskUtils.isCompressedDiskBuilding(uuid);
+    private File createCompressedImage(String uuid) {
+        CompressedImageCache cache = CompressedImageCache.getInstance();
+
+        // A streaming request may have finished without caching the image,
+        // in which case the compression is done again once.
+        for (int attempt = 0; attempt < 2; attempt++) {
+            compressImage();
+            File cached = cache.lookup(uuid);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "compressed disk " + uuid + " cannot be cached");
     }
 
+    /**
+     * Compressions in progress are registered in DiskUtils; a request for
+     * the same image waits for it to finish and then reads the result.
+     */
     private void waitWhileImageCompressed(String uuid) {
-        while (isImageBeingCompressed(uuid)) {
+        if (DiskUtils.isCompressedDiskBuilding(uuid)) {
             getLogger().info("Waiting for file to be compressed...");
-            MiscUtils.sleep(5000);
+            DiskUtils.waitForCompressedDisk(uuid);
         }
     }
 
-    private boolean needToCompressImage(String uuid) {
-        return !FileUtils.isCompressedDiskExists(uuid) || DiskUtils.hasCompressedDiskExpire(uuid);
+    /**
+     * Only one request streams the image into the cache. If another one
+     * started in the meantime, its result is used once cached; otherwise
+     * the image is streamed without being cached.
+     */
+    private Representation streamCompressedImage(String uuid) {
+        getLogger().info("Streaming compressed disk");
+
+        if (!RootApplication.CONFIGURATION.COMPRESSION_CACHE) {
+            return new CompressedDiskRepresentation(uuid, null, null);
+        }
+
+        SingleFlight.Flight<File> flight = DiskUtils.startCompression(uuid);
+        if (flight != null) {
+            File cacheFile = CompressedImageCache.getInstance().getLocation(uuid);
+            return new CompressedDiskRepresentation(uuid, cacheFile, flight);
+        }
+
+        waitWhileImageCompressed(uuid);
+
+        File cached = CompressedImageCache.getInstance().lookup(uuid);
+        if (cached == null) {
+            return new CompressedDiskRepresentation(uuid, null, null);
+        }
+        return getCompressedImage(cached);
     }
 
     private void compressImage() {
@@ -267,8 +433,6 @@ public class DiskResource extends DiskBaseResource {
 
         addCreateFormDefaults(info);
 
-        Disk disk = loadExistingDisk();
-
         addDiskToInfo(disk, info);
         info.put("currenturl", getCurrentUrl());
         info.put("can_edit", hasSufficientRightsToEdit(disk));
@@ -289,17 +453,12 @@ public class DiskResource extends DiskBaseResource {
 
     private void processDeleteDiskRequest() {
 
-        Disk disk = loadExistingDisk();
-
         if (!hasSufficientRightsToEdit(disk)) {
             throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN,
                     "insufficient rights to delete disk (" + disk.getUuid() + ")");
         }
 
-        if (disk.getMountsCount() > 0) {
-            throw new ResourceException(Status.CLIENT_ERROR_CONFLICT,
-                    "disk (" + disk.getUuid() + ") is in use and can't be deleted");
-        }
+        DiskUtils.checkDiskRemovable(disk);
 
         deleteDisk(disk);
     }
@@ -313,5 +472,29 @@ public class DiskResource extends DiskBaseResource {
             disk.store(); // store it back since remove failed
             throw (ex);
         }
+
+        CompressedImageCache.getInstance().remove(disk.getUuid());
     }
+
+    /**
+     * Releases a cached image once, however many times Restlet releases the
+     * representation sending it.
+     */
+    private static final class CachedImagePin {
+
+        private final File file;
+
+        private final AtomicBoolean pinned = new AtomicBoolean(true);
+
+        CachedImagePin(File file) {
+            this.file = file;
+        }
+
+        void release() {
+            if (pinned.compareAndSet(true, false)) {
+                CompressedImageCache.getInstance().release(file);
+            }
+        }
+    }
+
 }
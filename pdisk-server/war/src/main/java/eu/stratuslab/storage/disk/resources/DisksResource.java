@@ -19,14 +19,21 @@
  */
 package eu.stratuslab.storage.disk.resources;
 
-import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+import eu.stratuslab.marketplace.metadata.MetadataUtils;
+import eu.stratuslab.storage.disk.jobs.Job;
+import eu.stratuslab.storage.disk.jobs.JobManager;
 import eu.stratuslab.storage.disk.utils.DiskUtils;
 import eu.stratuslab.storage.disk.utils.FileUtils;
+import eu.stratuslab.storage.disk.utils.JsonListRepresentation;
+import eu.stratuslab.storage.disk.utils.SparseFileOutputStream;
 import eu.stratuslab.storage.persistence.Disk;
+import eu.stratuslab.storage.persistence.Disk.DiskType;
+import eu.stratuslab.storage.persistence.DiskQuery;
 import eu.stratuslab.storage.persistence.DiskView;
-import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
+import org.apache.commons.fileupload.util.Streams;
 import org.restlet.data.Form;
 import org.restlet.data.Status;
 import org.restlet.ext.fileupload.RestletFileUpload;
@@ -37,16 +44,18 @@ import org.restlet.resource.ResourceException;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.math.BigInteger;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 
 import static org.restlet.data.MediaType.APPLICATION_JSON;
@@ -54,6 +63,10 @@ import static org.restlet.data.MediaType.TEXT_HTML;
 
 public class DisksResource extends DiskBaseResource {
 
+    private static final String ASYNC_KEY = "async";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private Form form = null;
 
     @Get("html")
@@ -66,20 +79,128 @@ public class DisksResource extends DiskBaseResource {
         return createTemplateRepresentation("html/disks.ftl", info, TEXT_HTML);
     }
 
+    /**
+     * Streamed listing, optionally filtered (owner, type, tag, quarantine),
+     * sorted (sort=creation|tag|size, prefixed with - for descending order;
+     * -creation by default) and paginated (limit, after the uuid of the last
+     * disk of the previous page).
+     */
     @Get("json")
     public Representation getAsJson() {
 
         getLogger().info("DisksResource getAsJson");
 
-        Map<String, Object> info = listDisks();
+        DiskQuery query = createDiskQuery();
 
-        return createTemplateRepresentation("json/disks.ftl", info, APPLICATION_JSON);
+        int limit = getListLimit();
+        if (limit > 0) {
+            List<DiskView> page = query.list(limit + 1);
+            if (page.size() > limit) {
+                page = trimPage(page, limit, page.get(limit - 1).getUuid());
+            }
+            return new DiskViewListRepresentation(query, page, true);
+        }
 
+        return new DiskViewListRepresentation(query, query.list(LIST_BATCH_SIZE), false);
+    }
+
+    private DiskQuery createDiskQuery() {
+        DiskQuery query = new DiskQuery();
+
+        // Other users only ever list their own disks.
+        String username = getUsername(getRequest());
+        if (isSuperUser(username)) {
+            query.setOwner(getQueryParameter(OWNER_KEY));
+        } else {
+            query.setOwner(username);
+        }
+
+        String type = getQueryParameter(DISK_TYPE_KEY);
+        if (type != null) {
+            try {
+                query.setType(DiskType.valueOf(type.toUpperCase(Locale.ENGLISH)));
+            } catch (IllegalArgumentException e) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "invalid disk type: " + type);
+            }
+        }
+
+        query.setTag(getQueryParameter(TAG_KEY));
+
+        String quarantine = getQueryParameter(QUARANTINE_START_DATE_KEY);
+        if (quarantine != null) {
+            query.setQuarantined(Boolean.parseBoolean(quarantine));
+        }
+
+        String sort = getQueryParameter(SORT_KEY);
+        if (sort != null) {
+            boolean descending = sort.startsWith("-");
+            String key = descending ? sort.substring(1) : sort;
+            try {
+                query.setSort(DiskQuery.SortKey.valueOf(key.toUpperCase(Locale.ENGLISH)), descending);
+            } catch (IllegalArgumentException e) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "invalid sort key: " + key);
+            }
+        }
+
+        String after = getQueryParameter(AFTER_KEY);
+        if (after != null) {
+            // Disks the user cannot view are unknown, as for a missing disk.
+            Disk disk = Disk.load(after);
+            if (disk == null || !hasSufficientRightsToView(disk)) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "unknown disk in " + AFTER_KEY + ": "
+                        + after);
+            }
+            query.setAfter(disk);
+        }
+
+        return query;
+    }
+
+    /**
+     * Same fields as the former json/disks.ftl template.
+     */
+    private static final class DiskViewListRepresentation extends JsonListRepresentation<DiskView> {
+
+        private final DiskQuery query;
+
+        public DiskViewListRepresentation(DiskQuery query, List<DiskView> firstBatch, boolean complete) {
+            super(firstBatch, LIST_BATCH_SIZE, complete);
+            this.query = query;
+        }
+
+        @Override
+        protected List<DiskView> fetch(DiskView last, int max) {
+            query.setAfter(last);
+            return query.list(max);
+        }
+
+        @Override
+        protected void writeRow(Writer writer, DiskView disk) throws IOException {
+            writer.write("{");
+            writeField(writer, "uuid", disk.getUuid(), false);
+            writeField(writer, "tag", disk.getTag() == null ? "" : disk.getTag(), false);
+            if (disk.getQuarantine() != null && !"".equals(disk.getQuarantine())) {
+                writeField(writer, "quarantine", disk.getQuarantine(), false);
+            }
+            writeField(writer, "count", disk.getUsersCount(), false);
+            writeField(writer, "owner", disk.getOwner(), false);
+            if (disk.getIdentifier() != null && !"".equals(disk.getIdentifier())) {
+                writeField(writer, "identifier", disk.getIdentifier(), false);
+            }
+            writeField(writer, "size", disk.getSize(), true);
+            writer.write("}");
+        }
     }
 
     @Post("form:html")
     public Representation createDiskRequestFromHtml(Representation entity) {
 
+        if (isAsynchronousRequest()) {
+            Job job = validateAndSubmitDisk();
+            redirectSeeOther(getBaseUrl() + "jobs/" + job.getId());
+            return null;
+        }
+
         Disk disk = validateAndCreateDisk();
 
         redirectSeeOther(getBaseUrl() + "disks/" + disk.getUuid());
@@ -90,6 +211,18 @@ public class DisksResource extends DiskBaseResource {
     @Post("form:json")
     public Representation createDiskRequestFromJson(Representation entity) {
 
+        if (isAsynchronousRequest()) {
+            Job job = validateAndSubmitDisk();
+
+            setStatus(Status.SUCCESS_ACCEPTED);
+            setLocationRef(getBaseUrl() + "jobs/" + job.getId());
+
+            Map<String, Object> info = createInfoStructure("Job");
+            info.put("job", job);
+
+            return createTemplateRepresentation("json/job.ftl", info, APPLICATION_JSON);
+        }
+
         Disk disk = validateAndCreateDisk();
 
         setStatus(Status.SUCCESS_CREATED);
@@ -109,39 +242,98 @@ public class DisksResource extends DiskBaseResource {
             throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "post with null entity");
         }
 
-        Disk disk = saveAndInflateFiles();
-
-        DiskUtils.createAndPopulateDiskLocal(disk);
-        disk.store();
+        Disk disk = receiveUpload(entity);
 
         redirectSeeOther(getBaseUrl() + "disks/" + disk.getUuid());
 
     }
 
     protected Disk validateAndCreateDisk() {
-        form = new Form(getRequestEntity());
+
+        Disk disk = validateNewDiskRequest();
+
+        provisionDisk(disk, getForm(), new AtomicLong());
+
+        return disk;
+    }
+
+    /**
+     * Validates the request immediately but creates and initializes the disk
+     * in the background. The returned job tracks the progress.
+     */
+    protected Job validateAndSubmitDisk() {
+
+        final Disk disk = validateNewDiskRequest();
+        final Form diskForm = getForm();
+
+        Job job = new Job(getUsername(getRequest()), disk.getUuid());
+
+        String bytes = diskForm.getFirstValue(BYTES_KEY);
+        if (bytes != null) {
+            try {
+                job.setExpectedBytes(Long.parseLong(bytes));
+            } catch (NumberFormatException e) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "invalid size in bytes: " + bytes);
+            }
+        }
+
+        JobManager.getInstance().submit(job, new JobManager.Task() {
+            public void execute(Job job) {
+                provisionDisk(disk, diskForm, job.getBytesCopiedCounter());
+            }
+        });
+
+        getLogger().info(String.format("DisksResource queued creation of disk %s as job %s", disk.getUuid(),
+                job.getId()));
+
+        return job;
+    }
+
+    private Form getForm() {
+        if (form == null) {
+            form = new Form(getRequestEntity());
+        }
+        return form;
+    }
+
+    private boolean isAsynchronousRequest() {
+        return Boolean.parseBoolean(getForm().getFirstValue(ASYNC_KEY));
+    }
+
+    private Disk validateNewDiskRequest() {
 
         getLogger().info("DisksResource creating new disk");
 
-        Disk disk = getDisk(form);
+        Disk disk = getDisk(getForm());
 
         validateNewDisk(disk);
 
+        return disk;
+    }
+
+    private void provisionDisk(Disk disk, Form form, AtomicLong bytesCopied) {
+
+        if (form.getFirstValue(URL_KEY) != null) {
+            Disk seed = findOwnedSeedDisk(form.getFirstValue(SHA1_KEY));
+            if (seed != null) {
+                createDiskFromSeed(disk, seed);
+                return;
+            }
+        }
+
         createDisk(disk);
 
         getLogger().info(String.format("DisksResource created new disk: %s", disk.getUuid()));
 
         try {
-            initializeContents(disk.getUuid(), form);
+            initializeContents(disk.getUuid(), form, bytesCopied);
         } catch (ResourceException e) {
             removeDisk(disk);
             throw e;
         }
-
-        return disk;
     }
 
-    private void initializeContents(String uuid, Form form) throws ResourceException {
+    private void initializeContents(String uuid, Form form, AtomicLong bytesCopied) throws ResourceException {
 
         Map<String, BigInteger> streamInfo = null;
 
@@ -158,7 +350,7 @@ public class DisksResource extends DiskBaseResource {
             // FIXME: This provides the file information for the download
             // itself. It does NOT actually verify the data on disk. An
             // additional check should probably be added.
-            streamInfo = DiskUtils.copyUrlToVolume(uuid, url);
+            streamInfo = DiskUtils.copyUrlToVolume(uuid, url, bytesCopied);
         } catch (IOException e) {
             String msg = "error initializing disk contents from " + url;
 
@@ -179,19 +371,7 @@ public class DisksResource extends DiskBaseResource {
             throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, msg);
         }
 
-        String bytes = form.getFirstValue(BYTES_KEY);
-        if (bytes != null) {
-            BigInteger expected = new BigInteger(bytes);
-            BigInteger found = streamInfo.get("BYTES");
-
-            getLogger().info(String
-                    .format("DisksResource copied bytes for %s: %s (copied), %s (expected)", uuid, found, expected));
-
-            if (!expected.equals(found)) {
-                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
-                        String.format("size mismatch: %s (found) != %s (expected)", found, expected));
-            }
-        }
+        checkCopiedBytes(uuid, form.getFirstValue(BYTES_KEY), streamInfo);
 
         String sha1 = form.getFirstValue(SHA1_KEY);
         if (sha1 != null) {
@@ -214,53 +394,228 @@ public class DisksResource extends DiskBaseResource {
 
     }
 
+    /**
+     * Compares the number of bytes copied with the size announced by the
+     * client, if any.
+     */
+    private void checkCopiedBytes(String uuid, String bytes, Map<String, BigInteger> streamInfo) {
+        if (bytes != null) {
+            BigInteger expected = new BigInteger(bytes.trim());
+            BigInteger found = streamInfo.get("BYTES");
+
+            getLogger().info(String
+                    .format("DisksResource copied bytes for %s: %s (copied), %s (expected)", uuid, found, expected));
+
+            if (!expected.equals(found)) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
+                        String.format("size mismatch: %s (found) != %s (expected)", found, expected));
+            }
+        }
+    }
+
     protected void createDisk(Disk disk) {
         DiskUtils.createDisk(disk);
     }
 
-    protected void removeDisk(Disk disk) {
-        DiskUtils.removeDisk(disk.getUuid());
-    }
+    protected void createDiskFromSeed(Disk disk, Disk seed) {
+        DiskUtils.createDiskFromSeed(disk, seed);
 
-    private Disk saveAndInflateFiles() {
+        getLogger().info(String.format("DisksResource created %s from seed disk %s (same contents)", disk.getUuid(),
+                seed.getUuid()));
+    }
 
-        int fileSizeLimit = ServiceConfiguration.getInstance().UPLOAD_COMPRESSED_IMAGE_MAX_BYTES;
+    /**
+     * Seed disk of the caller already holding the image with this SHA-1
+     * checksum (hex), if any; the image then needs not be copied again. The
+     * checksum is only the client's word, so seeds of other users are not
+     * considered here: they are only reused once the checksum has been
+     * computed from the received contents (see findVisibleSeedDisk()).
+     */
+    private Disk findOwnedSeedDisk(String sha1) {
+        if (sha1 == null) {
+            return null;
+        }
+        try {
+            return Disk.findOwnedSeed(MetadataUtils.sha1ToIdentifier(new BigInteger(sha1.trim(), 16)),
+                    getUsername(getRequest()));
+        } catch (IllegalArgumentException e) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "invalid SHA-1 checksum: " + sha1);
+        }
+    }
 
-        DiskFileItemFactory factory = new DiskFileItemFactory();
-        factory.setRepository(FileUtils.getUploadCacheDirectory());
-        factory.setSizeThreshold(fileSizeLimit);
+    /**
+     * Seed disk the caller may view (own or public) holding contents with
+     * this identifier, computed from the received data.
+     */
+    private Disk findVisibleSeedDisk(String identifier) {
+        return Disk.findSeed(identifier, getUsername(getRequest()));
+    }
 
-        RestletFileUpload upload = new RestletFileUpload(factory);
+    protected void removeDisk(Disk disk) {
+        DiskUtils.removeDisk(disk.getUuid());
+    }
 
-        List<FileItem> items = null;
+    /**
+     * Reads the multipart body as a stream. Form fields preceding the file
+     * are collected; if they give the image size (bytes or size), the file
+     * is inflated straight into a new volume while its checksum is
+     * computed. Otherwise the inflated image has to be staged in the cache
+     * to find its size. Only the first file of the request is used.
+     *
+     * Contents already held by a seed disk (sha1 field for the caller's own
+     * seeds, or checksum found after the copy for any seed the caller may
+     * view) are not stored again: the new disk is a copy on write volume of
+     * the seed.
+     */
+    private Disk receiveUpload(Representation entity) {
+
+        RestletFileUpload upload = new RestletFileUpload();
+
+        Form fields = new Form();
+        Disk disk = null;
 
         try {
-            items = upload.parseRequest(getRequest());
+            FileItemIterator items = upload.getItemIterator(entity);
+            while (items.hasNext()) {
+                FileItemStream item = items.next();
+                InputStream stream = item.openStream();
+                try {
+                    if (item.isFormField()) {
+                        fields.add(item.getFieldName(), Streams.asString(stream, "UTF-8"));
+                    } else if (disk == null && item.getName() != null) {
+                        disk = processImage(stream, fields);
+                    }
+                } finally {
+                    FileUtils.closeIgnoringError(stream);
+                }
+            }
         } catch (FileUploadException e) {
             throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+        } catch (IOException e) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+        }
+
+        if (disk == null) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "empty file uploaded");
         }
 
-        FileItem lastFileItem = null;
-        for (FileItem fi : items) {
-            if (fi.getName() != null) {
-                lastFileItem = fi;
+        return disk;
+    }
+
+    private Disk processImage(InputStream gzippedContents, Form fields) {
+
+        Disk seed = findOwnedSeedDisk(fields.getFirstValue(SHA1_KEY));
+        if (seed != null) {
+            return createUploadFromSeed(seed);
+        }
+
+        long gigabytes = getUploadSize(fields);
+        if (gigabytes > 0) {
+            return streamImageToVolume(gzippedContents, gigabytes, fields.getFirstValue(BYTES_KEY));
+        }
+
+        Disk disk = inflateAndProcessImage(gzippedContents);
+
+        seed = findVisibleSeedDisk(disk.getIdentifier());
+        if (seed != null) {
+            File cachedDiskFile = FileUtils.getCachedDiskFile(disk.getUuid());
+            if (!cachedDiskFile.delete()) {
+                getLogger().warning("could not delete file: " + cachedDiskFile.getAbsolutePath());
             }
+            return createUploadFromSeed(seed);
         }
 
-        for (FileItem fi : items) {
-            if (fi != lastFileItem) {
-                fi.delete();
+        DiskUtils.createAndPopulateDiskLocal(disk);
+        disk.store();
+
+        return disk;
+    }
+
+    /**
+     * Size of the uploaded image in GiB as announced by the client, or 0
+     * if unknown.
+     */
+    private static long getUploadSize(Form fields) {
+        try {
+            String bytes = fields.getFirstValue(BYTES_KEY);
+            if (bytes != null) {
+                return DiskUtils.convertBytesToGibiBytes(Long.parseLong(bytes.trim()));
+            }
+            String size = fields.getFirstValue(SIZE_KEY);
+            if (size != null) {
+                return Long.parseLong(size.trim());
             }
+        } catch (NumberFormatException e) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "invalid image size");
         }
+        return 0L;
+    }
 
-        if (lastFileItem != null) {
-            return inflateAndProcessImage(lastFileItem);
-        } else {
-            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "empty file uploaded");
+    /**
+     * The volume is removed if the stream is not valid or does not have the
+     * announced size (bytes, may be null).
+     */
+    private Disk streamImageToVolume(InputStream gzippedContents, long gigabytes, String bytes) {
+
+        Disk disk = initializeDisk();
+        disk.setSize(gigabytes);
+        validateDiskSize(disk);
+
+        createDisk(disk);
+
+        Disk seed;
+        try {
+            Map<String, BigInteger> streamInfo;
+            try {
+                streamInfo = DiskUtils.copyStreamToVolume(disk.getUuid(), new GZIPInputStream(gzippedContents));
+            } catch (IOException e) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "no valid file uploaded: "
+                        + e.getMessage());
+            }
+
+            checkCopiedBytes(disk.getUuid(), bytes, streamInfo);
+
+            String identifier = MetadataUtils.sha1ToIdentifier(streamInfo.get("SHA-1"));
+
+            seed = findVisibleSeedDisk(identifier);
+            if (seed == null) {
+                if (Disk.identifierExists(identifier)) {
+                    throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN, "Disk already registered");
+                }
+
+                getLogger().info(String.format("DisksResource streamed %s bytes into %s", streamInfo.get("BYTES"),
+                        disk.getUuid()));
+
+                disk.setIdentifier(identifier);
+                disk.setType(DiskType.DATA_IMAGE_RAW_READONLY);
+                disk.setSeed(true);
+                disk.store();
+
+                return disk;
+            }
+
+        } catch (RuntimeException e) {
+            removeDisk(disk);
+            throw e;
         }
+
+        // The checksum was not announced but these contents are already on
+        // a seed disk: the copy is not kept.
+        removeDisk(disk);
+
+        return createUploadFromSeed(seed);
     }
 
-    protected Disk inflateAndProcessImage(FileItem fi) {
+    private Disk createUploadFromSeed(Disk seed) {
+        Disk disk = initializeDisk();
+        disk.setType(DiskType.DATA_IMAGE_RAW_READONLY);
+
+        createDiskFromSeed(disk, seed);
+
+        return disk;
+    }
+
+    protected Disk inflateAndProcessImage(InputStream gzippedContents) {
 
         File cachedDiskFile = null;
 
@@ -270,19 +625,20 @@ public class DisksResource extends DiskBaseResource {
 
             cachedDiskFile = FileUtils.getCachedDiskFile(disk.getUuid());
 
-            try {
-                long size = inflateFile(fi.getInputStream(), cachedDiskFile);
-                disk.setSize(size);
-            } catch (IOException e) {
-                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "no valid file uploaded");
-            }
+            long size = inflateFile(gzippedContents, cachedDiskFile);
+            disk.setSize(size);
 
             try {
                 disk.setIdentifier(DiskUtils.calculateHash(cachedDiskFile));
             } catch (FileNotFoundException e) {
                 throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
             }
-            validateNewDisk(disk);
+
+            // Contents already on a seed disk are not registered again (see
+            // processImage()).
+            if (findVisibleSeedDisk(disk.getIdentifier()) == null) {
+                validateNewDisk(disk);
+            }
             return disk;
 
         } catch (RuntimeException e) {
@@ -292,8 +648,6 @@ public class DisksResource extends DiskBaseResource {
                 }
             }
             throw e;
-        } finally {
-            fi.delete();
         }
     }
 
@@ -305,9 +659,9 @@ public class DisksResource extends DiskBaseResource {
         try {
 
             in = new GZIPInputStream(gzippedContents);
-            out = new FileOutputStream(inflatedFile);
+            out = SparseFileOutputStream.open(inflatedFile);
 
-            byte[] buf = new byte[1024];
+            byte[] buf = new byte[BUFFER_SIZE];
             int len;
             while ((len = in.read(buf)) > 0) {
                 out.write(buf, 0, len);
@@ -19,19 +19,38 @@
  */
 package eu.stratuslab.storage.disk.resources;
 
+import eu.stratuslab.storage.disk.utils.DiskUtils;
+import eu.stratuslab.storage.disk.utils.DiskUtils.HotplugOperation;
+import eu.stratuslab.storage.disk.utils.JsonListRepresentation;
+import eu.stratuslab.storage.disk.utils.MiscUtils;
+import eu.stratuslab.storage.persistence.Disk;
 import eu.stratuslab.storage.persistence.Instance;
+import eu.stratuslab.storage.persistence.InstanceQuery;
 import eu.stratuslab.storage.persistence.InstanceView;
+import eu.stratuslab.storage.persistence.Mount;
+import org.restlet.data.Form;
+import org.restlet.data.Status;
 import org.restlet.representation.Representation;
 import org.restlet.resource.Get;
+import org.restlet.resource.Post;
+import org.restlet.resource.ResourceException;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.restlet.data.MediaType.APPLICATION_JSON;
 import static org.restlet.data.MediaType.TEXT_HTML;
 
 public class InstancesResource extends DiskBaseResource {
 
+    private static final String UUID_KEY = "uuid";
+
     @Get("html")
     public Representation getAsHtml() {
 
@@ -40,13 +59,269 @@ public class InstancesResource extends DiskBaseResource {
         return createTemplateRepresentation("html/instances.ftl", info, TEXT_HTML);
     }
 
+    /**
+     * Streamed listing, optionally filtered by owner, sorted by VM
+     * identifier (sort=vmId or -vmId, the default) and paginated (limit,
+     * after the identifier of the last instance of the previous page).
+     */
     @Get("json")
     public Representation getAsJson() {
 
-        Map<String, Object> info = listInstances();
+        InstanceQuery query = createInstanceQuery();
+
+        int limit = getListLimit();
+        if (limit > 0) {
+            List<InstanceView> page = query.list(limit + 1);
+            if (page.size() > limit) {
+                page = trimPage(page, limit, page.get(limit - 1).getVmId());
+            }
+            return new InstanceViewListRepresentation(query, page, true);
+        }
+
+        return new InstanceViewListRepresentation(query, query.list(LIST_BATCH_SIZE), false);
+    }
+
+    private InstanceQuery createInstanceQuery() {
+        InstanceQuery query = new InstanceQuery();
+
+        // Other users only ever list their own instances.
+        String username = getUsername(getRequest());
+        if (isSuperUser(username)) {
+            query.setOwner(getQueryParameter(OWNER_KEY));
+        } else {
+            query.setOwner(username);
+        }
+
+        String sort = getQueryParameter(SORT_KEY);
+        if (sort != null) {
+            if ("vmId".equals(sort)) {
+                query.setDescending(false);
+            } else if (!"-vmId".equals(sort)) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "invalid sort key: " + sort);
+            }
+        }
+
+        query.setAfter(getQueryParameter(AFTER_KEY));
+
+        return query;
+    }
+
+    private static final class InstanceViewListRepresentation extends JsonListRepresentation<InstanceView> {
+
+        private final InstanceQuery query;
+
+        public InstanceViewListRepresentation(InstanceQuery query, List<InstanceView> firstBatch, boolean complete) {
+            super(firstBatch, LIST_BATCH_SIZE, complete);
+            this.query = query;
+        }
+
+        @Override
+        protected List<InstanceView> fetch(InstanceView last, int max) {
+            query.setAfter(last.getVmId());
+            return query.list(max);
+        }
+
+        @Override
+        protected void writeRow(Writer writer, InstanceView instance) throws IOException {
+            writer.write("{");
+            writeField(writer, "vmId", instance.getVmId(), false);
+            writeField(writer, "owner", instance.getOwner(), true);
+            writer.write("}");
+        }
+    }
+
+    @Post("form:html")
+    public Representation mountDisksFromHtml(Representation entity) {
+
+        mountDisks(entity);
+
+        redirectSeeOther(getBaseUrl() + "instances/");
+
+        return null;
+    }
+
+    @Post("form:json")
+    public Representation mountDisksAsJson(Representation entity) {
+        return mountDisks(entity);
+    }
+
+    /**
+     * Attaches all the disks given as uuid values to the instance. The
+     * targets are reserved before starting the attaches, which then run in
+     * parallel (bounded per node). If one of them fails, the disks already
+     * attached are detached and nothing is recorded.
+     */
+    private Representation mountDisks(Representation entity) {
+
+        String vmId = getVmId();
 
-        return createTemplateRepresentation("json/instances.ftl", info, APPLICATION_JSON);
+        MiscUtils.checkForNullEntity(entity);
+        Form form = new Form(entity);
+
+        String node = form.getFirstValue("node");
+        if (node == null || "".equals(node)) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "missing node attribute");
+        }
+
+        List<Disk> disks = loadDisksToMount(form);
+
+        Instance instance = Instance.load(vmId);
+        if (instance == null) {
+            instance = new Instance(vmId, getUsername(getRequest()));
+        }
 
+        List<Mount> mounts = new ArrayList<Mount>();
+        for (Disk disk : disks) {
+            if (Mount.load(instance, disk) != null) {
+                throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN,
+                        "Mount already exists for: " + vmId + " and " + disk.getUuid());
+            }
+
+            Mount mount = new Mount(instance, disk);
+            mount.setDevice(instance.nextDiskTarget(vmId));
+            instance.getMounts().put(disk.getUuid(), mount);
+            mounts.add(mount);
+        }
+
+        try {
+            attachAll(node, vmId, mounts);
+        } catch (RuntimeException e) {
+            for (Mount mount : mounts) {
+                instance.getMounts().remove(mount.getUuid());
+            }
+            throw e;
+        }
+
+        // Add this metadata only AFTER the devices have been successfully added.
+        instance.setNode(node);
+
+        for (Disk disk : disks) {
+            disk.store();
+        }
+        instance.store();
+
+        List<String> uuids = new ArrayList<String>();
+        List<String> targets = new ArrayList<String>();
+        for (Mount mount : mounts) {
+            mount.store();
+            uuids.add(mount.getUuid());
+            targets.add(mount.getDevice());
+        }
+
+        Map<String, Object> info = new HashMap<String, Object>();
+        info.put("uuids", uuids);
+        info.put("targets", targets);
+        info.put("node", node);
+        info.put("vm_id", vmId);
+
+        return createTemplateRepresentation("json/action.ftl", info, APPLICATION_JSON);
+    }
+
+    private String getVmId() {
+        Object vmIdValue = getRequest().getAttributes().get("vmid");
+        if (vmIdValue == null) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "missing vm_id value");
+        }
+        return vmIdValue.toString();
+    }
+
+    private List<Disk> loadDisksToMount(Form form) {
+
+        Set<String> uuids = new LinkedHashSet<String>();
+        for (String uuid : form.getValuesArray(UUID_KEY)) {
+            if (uuid != null && !"".equals(uuid.trim())) {
+                uuids.add(uuid.trim());
+            }
+        }
+        if (uuids.isEmpty()) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "missing uuid attribute");
+        }
+
+        List<Disk> disks = new ArrayList<Disk>();
+        for (String uuid : uuids) {
+            Disk disk = Disk.load(uuid);
+            if (disk == null) {
+                throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "Unknown disk: " + uuid);
+            }
+            if (!hasSufficientRightsToView(disk)) {
+                throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN, "Not enough rights to attach disk: "
+                        + uuid);
+            }
+            disks.add(disk);
+        }
+        return disks;
+    }
+
+    private void attachAll(String node, String vmId, List<Mount> mounts) {
+
+        String endpoint = getServiceEndpoint();
+
+        // Resolve everything that may fail before starting any attach.
+        List<String> turls = new ArrayList<String>();
+        for (Mount mount : mounts) {
+            turls.add(DiskUtils.getTurl(mount.getUuid()));
+        }
+
+        List<HotplugOperation> attaches = new ArrayList<HotplugOperation>();
+        try {
+            for (int i = 0; i < mounts.size(); i++) {
+                Mount mount = mounts.get(i);
+                getLogger().info("hotPlugDisk: " + node + " " + vmId + " " + mount.getUuid() + " " + mount.getDevice());
+                attaches.add(DiskUtils.submitAttachHotplugDisk(endpoint, node, vmId, mount.getUuid(),
+                        mount.getDevice(), turls.get(i)));
+            }
+        } catch (RuntimeException e) {
+            waitForAll(attaches);
+            rollback(endpoint, node, vmId, mounts.subList(0, attaches.size()));
+            throw e;
+        }
+
+        ResourceException failure = waitForAll(attaches);
+        if (failure != null) {
+            // A failed or timed out attach may still have been done on the
+            // node, so every submitted disk is detached.
+            rollback(endpoint, node, vmId, mounts);
+            throw failure;
+        }
+    }
+
+    /**
+     * Waits for all the operations and returns the first failure, if any.
+     */
+    private ResourceException waitForAll(List<HotplugOperation> operations) {
+        ResourceException failure = null;
+        for (HotplugOperation operation : operations) {
+            try {
+                operation.waitForCompletion();
+            } catch (ResourceException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        return failure;
+    }
+
+    private void rollback(String endpoint, String node, String vmId, List<Mount> submitted) {
+
+        List<HotplugOperation> detaches = new ArrayList<HotplugOperation>();
+        for (Mount mount : submitted) {
+            getLogger().info("rollback hotPlugDisk: " + node + " " + vmId + " " + mount.getUuid());
+            try {
+                detaches.add(DiskUtils.submitDetachHotplugDisk(endpoint, node, vmId, mount.getUuid(),
+                        mount.getDevice(), DiskUtils.getTurl(mount.getUuid())));
+            } catch (ResourceException e) {
+                getLogger().severe("rollback of disk attachment failed: " + e.getMessage());
+            }
+        }
+
+        for (HotplugOperation detach : detaches) {
+            try {
+                detach.waitForCompletion();
+            } catch (ResourceException e) {
+                getLogger().severe("rollback of disk attachment failed: " + e.getMessage());
+            }
+        }
     }
 
     private Map<String, Object> listInstances() {
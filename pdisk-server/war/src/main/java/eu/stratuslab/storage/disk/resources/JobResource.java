@@ -0,0 +1,63 @@
+package eu.stratuslab.storage.disk.resources;
+
+import eu.stratuslab.storage.disk.jobs.Job;
+import eu.stratuslab.storage.disk.jobs.JobManager;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ResourceException;
+
+import java.util.Map;
+
+import static org.restlet.data.MediaType.APPLICATION_JSON;
+import static org.restlet.data.MediaType.TEXT_HTML;
+
+/**
+ * Status of a background job (e.g. an asynchronous disk creation).
+ */
+public class JobResource extends BaseResource {
+
+    private static final int REFRESH_SECONDS = 5;
+
+    private Job job = null;
+
+    @Override
+    public void doInit() {
+
+        Object jobIdValue = getRequest().getAttributes().get("jobid");
+        if (jobIdValue == null) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "missing job identifier");
+        }
+
+        job = JobManager.getInstance().getJob(jobIdValue.toString());
+        if (job == null) {
+            throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "unknown job: " + jobIdValue);
+        }
+
+        String username = getUsername(getRequest());
+        if (!username.equals(job.getOwner()) && !isSuperUser(username)) {
+            throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN, "insufficient rights to view job");
+        }
+    }
+
+    @Get("html")
+    public Representation getAsHtml() {
+        Map<String, Object> info = getInfoMap();
+        if (!job.isFinished()) {
+            info.put("refresh", REFRESH_SECONDS);
+        }
+        return createTemplateRepresentation("html/job.ftl", info, TEXT_HTML);
+    }
+
+    @Get("json")
+    public Representation getAsJson() {
+        return createTemplateRepresentation("json/job.ftl", getInfoMap(), APPLICATION_JSON);
+    }
+
+    private Map<String, Object> getInfoMap() {
+        Map<String, Object> info = createInfoStructure("Job");
+        info.put("job", job);
+        return info;
+    }
+
+}
@@ -0,0 +1,110 @@
+package eu.stratuslab.storage.disk.resources;
+
+import eu.stratuslab.storage.disk.backend.BackEndStorageFactory;
+import eu.stratuslab.storage.disk.backend.CachingBackEndStorage;
+import eu.stratuslab.storage.disk.jobs.JobManager;
+import eu.stratuslab.storage.disk.utils.CompressedImageCache;
+import eu.stratuslab.storage.disk.utils.HttpClientPool;
+import eu.stratuslab.storage.disk.utils.NodeConnectionManager;
+import eu.stratuslab.storage.disk.utils.ParallelGzip;
+import eu.stratuslab.storage.persistence.ConnectionPool;
+import eu.stratuslab.storage.persistence.PersistenceUtil;
+import eu.stratuslab.storage.persistence.PooledConnectionProvider;
+import org.hibernate.stat.Statistics;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Get;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.restlet.data.MediaType.APPLICATION_JSON;
+import static org.restlet.data.MediaType.TEXT_HTML;
+
+/**
+ * Read-only view of the service counters (caches, pools...).
+ */
+public class MetricsResource extends BaseResource {
+
+    @Get("html")
+    public Representation getAsHtml() {
+        return createTemplateRepresentation("html/metrics.ftl", getInfoMap(), TEXT_HTML);
+    }
+
+    @Get("json")
+    public Representation getAsJson() {
+        return createTemplateRepresentation("json/dict.ftl", getInfoMap(), APPLICATION_JSON);
+    }
+
+    private Map<String, Object> getInfoMap() {
+        Map<String, Object> info = createInfoStructure("Service Metrics");
+        info.put("dict", collectMetrics());
+        return info;
+    }
+
+    private static Map<String, String> collectMetrics() {
+        Map<String, String> metrics = new TreeMap<String, String>();
+
+        CachingBackEndStorage turlCache = BackEndStorageFactory.getTurlCache();
+        if (turlCache != null) {
+            metrics.put("backend.turl_cache.hits", String.valueOf(turlCache.getHits()));
+            metrics.put("backend.turl_cache.misses", String.valueOf(turlCache.getMisses()));
+            metrics.put("backend.turl_cache.size", String.valueOf(turlCache.getSize()));
+        }
+
+        CompressedImageCache images = CompressedImageCache.getInstance();
+        metrics.put("compression.cache.hits", String.valueOf(images.getHits()));
+        metrics.put("compression.cache.misses", String.valueOf(images.getMisses()));
+        metrics.put("compression.cache.evictions", String.valueOf(images.getEvictions()));
+        metrics.put("compression.cache.entries", String.valueOf(images.getEntryCount()));
+        metrics.put("compression.cache.bytes", String.valueOf(images.getSizeInBytes()));
+        metrics.put("compression.zero_chunks", String.valueOf(ParallelGzip.getInstance().getZeroChunkCount()));
+
+        HttpClientPool http = HttpClientPool.getInstance();
+        metrics.put("http.pool.leased", String.valueOf(http.getLeasedCount()));
+        metrics.put("http.pool.available", String.valueOf(http.getAvailableCount()));
+        metrics.put("http.pool.pending", String.valueOf(http.getPendingCount()));
+        metrics.put("http.pool.max", String.valueOf(http.getMaxTotal()));
+        metrics.put("http.connections.opened", String.valueOf(http.getOpenedCount()));
+        metrics.put("http.requests", String.valueOf(http.getRequestCount()));
+
+        Statistics persistence = PersistenceUtil.getStatistics();
+        metrics.put("persistence.cache.hits", String.valueOf(persistence.getSecondLevelCacheHitCount()));
+        metrics.put("persistence.cache.misses", String.valueOf(persistence.getSecondLevelCacheMissCount()));
+        metrics.put("persistence.cache.puts", String.valueOf(persistence.getSecondLevelCachePutCount()));
+        metrics.put("persistence.query_cache.hits", String.valueOf(persistence.getQueryCacheHitCount()));
+        metrics.put("persistence.query_cache.misses", String.valueOf(persistence.getQueryCacheMissCount()));
+        metrics.put("persistence.queries", String.valueOf(persistence.getQueryExecutionCount()));
+        metrics.put("persistence.entities.loaded", String.valueOf(persistence.getEntityLoadCount()));
+
+        ConnectionPool db = PooledConnectionProvider.getPool();
+        if (db != null) {
+            metrics.put("db.pool.active", String.valueOf(db.getActiveCount()));
+            metrics.put("db.pool.idle", String.valueOf(db.getIdleCount()));
+            metrics.put("db.pool.waiting", String.valueOf(db.getWaitingCount()));
+            metrics.put("db.pool.max", String.valueOf(db.getMaxSize()));
+            metrics.put("db.pool.wait_ms", String.valueOf(db.getWaitMillis()));
+            metrics.put("db.pool.max_wait_ms", String.valueOf(db.getMaxWaitMillis()));
+            metrics.put("db.pool.timeouts", String.valueOf(db.getTimeoutCount()));
+            metrics.put("db.connections.opened", String.valueOf(db.getCreatedCount()));
+            metrics.put("db.connections.borrowed", String.valueOf(db.getBorrowedCount()));
+            metrics.put("db.connections.invalid", String.valueOf(db.getInvalidCount()));
+            metrics.put("db.connections.leaked", String.valueOf(db.getLeakCount()));
+        }
+
+        JobManager jobs = JobManager.getInstance();
+        metrics.put("provisioning.active", String.valueOf(jobs.getActiveCount()));
+        metrics.put("provisioning.queued", String.valueOf(jobs.getQueuedCount()));
+        metrics.put("provisioning.completed", String.valueOf(jobs.getCompletedCount()));
+        metrics.put("provisioning.rejected", String.valueOf(jobs.getRejectedCount()));
+
+        NodeConnectionManager ssh = NodeConnectionManager.getInstance();
+        metrics.put("ssh.masters", String.valueOf(ssh.getMasterCount()));
+        metrics.put("ssh.masters.opened", String.valueOf(ssh.getOpenedCount()));
+        metrics.put("ssh.masters.evicted", String.valueOf(ssh.getEvictedCount()));
+        metrics.put("ssh.sessions.reused", String.valueOf(ssh.getReusedCount()));
+        metrics.put("ssh.sessions.direct", String.valueOf(ssh.getDirectCount()));
+
+        return metrics;
+    }
+
+}
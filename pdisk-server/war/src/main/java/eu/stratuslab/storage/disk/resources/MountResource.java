@@ -1,6 +1,5 @@
 package eu.stratuslab.storage.disk.resources;
 
-import eu.stratuslab.storage.disk.backend.BackEndStorage;
 import eu.stratuslab.storage.disk.utils.DiskUtils;
 import eu.stratuslab.storage.persistence.Disk;
 import eu.stratuslab.storage.persistence.Instance;
@@ -131,8 +130,7 @@ public class MountResource extends BaseResource {
         if (!updateMetadataOnly) {
 
             try {
-                BackEndStorage backEndStorage = new BackEndStorage();
-                String turl = backEndStorage.getTurl(diskId);
+                String turl = DiskUtils.getTurl(diskId);
 
                 DiskUtils.detachHotplugDisk(getServiceEndpoint(), node, mount.getVmId(), diskId, diskTarget, turl);
                 getLogger().info("hotDetach: " + node + ", " + mount.getVmId() + ", " + diskId + ", " + diskTarget);
@@ -1,6 +1,5 @@
 package eu.stratuslab.storage.disk.resources;
 
-import eu.stratuslab.storage.disk.backend.BackEndStorage;
 import eu.stratuslab.storage.disk.utils.DiskUtils;
 import eu.stratuslab.storage.disk.utils.MiscUtils;
 import eu.stratuslab.storage.persistence.Disk;
@@ -145,9 +144,8 @@ public class MountsResource extends BaseResource {
 
         if (!target.equals(Disk.STATIC_DISK_TARGET)) {
             getLogger().info("hotPlugDisk: " + node + " " + vmId + " " + disk.getUuid() + " " + target);
-            BackEndStorage backEndStorage = new BackEndStorage();
             DiskUtils.attachHotplugDisk(getServiceEndpoint(), node, vmId, disk.getUuid(), target,
-                    backEndStorage.getTurl(disk.getUuid()));
+                    DiskUtils.getTurl(disk.getUuid()));
         }
 
         // Add this metadata only AFTER the device has been successfully added.
@@ -0,0 +1,106 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the value of an HTTP Range header ("bytes=0-99,200-,-500") for a
+ * resource of known length (RFC 2616, section 14.35). Ranges are clipped to
+ * the length and kept in the requested order.
+ */
+public final class ByteRanges {
+
+    private static final String UNIT = "bytes=";
+
+    private ByteRanges() {
+
+    }
+
+    /**
+     * Returns the satisfiable ranges, as {first, last} byte positions
+     * (inclusive). The list is empty when no range can be satisfied (416),
+     * and null when the header is not a valid byte range set (including one
+     * without any range, or with a signed position), in which case it must
+     * be ignored and the whole resource sent.
+     */
+    public static List<long[]> parse(String header, long length) {
+
+        if (header == null || !header.trim().startsWith(UNIT)) {
+            return null;
+        }
+
+        List<long[]> ranges = new ArrayList<long[]>();
+        int specs = 0;
+
+        String set = header.trim().substring(UNIT.length());
+        for (String spec : set.split(",")) {
+            spec = spec.trim();
+            if (spec.length() == 0) {
+                continue;
+            }
+            specs++;
+
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    long suffix = parsePosition(spec.substring(1));
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    first = Math.max(0L, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = parsePosition(spec.substring(0, dash));
+                    String end = spec.substring(dash + 1);
+                    if (end.length() == 0) {
+                        last = length - 1;
+                    } else {
+                        last = parsePosition(end);
+                        if (last < first) {
+                            return null;
+                        }
+                        last = Math.min(last, length - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (first < length) {
+                ranges.add(new long[] { first, last });
+            }
+        }
+
+        return (specs > 0) ? ranges : null;
+    }
+
+    /**
+     * Positions are digits only: Long.parseLong() would also accept a sign.
+     */
+    private static long parsePosition(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                throw new NumberFormatException(value);
+            }
+        }
+        return Long.parseLong(value);
+    }
+
+    /**
+     * Returns the total number of bytes of the ranges.
+     */
+    public static long getTotalLength(List<long[]> ranges) {
+        long total = 0L;
+        for (long[] range : ranges) {
+            total += range[1] - range[0] + 1;
+        }
+        return total;
+    }
+
+}
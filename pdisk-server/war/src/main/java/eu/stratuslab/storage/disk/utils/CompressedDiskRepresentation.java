@@ -0,0 +1,206 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.restlet.data.Disposition;
+import org.restlet.data.MediaType;
+import org.restlet.representation.OutputRepresentation;
+
+/**
+ * Gzip image compressed while it is sent: the first bytes leave as soon as
+ * the first chunk is compressed instead of after the whole image. The size
+ * is unknown, so the connector answers with chunked transfer encoding.
+ *
+ * The volume is attached when the representation is created, so that an
+ * attach failure is still reported with a proper error status. When a
+ * cache file is given the output is also written to it (through a .part
+ * file renamed at the end) so that the next request is served from disk;
+ * the flight is then completed with the cached file, or null if caching
+ * failed, to wake up the requests waiting for it.
+ */
+public final class CompressedDiskRepresentation extends OutputRepresentation {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private static final String PART_SUFFIX = ".part";
+
+    private final String uuid;
+
+    private final File diskLocation;
+
+    private final File cacheFile;
+
+    private final SingleFlight.Flight<File> flight;
+
+    private final AtomicBoolean attached = new AtomicBoolean(true);
+
+    public CompressedDiskRepresentation(String uuid, File cacheFile, SingleFlight.Flight<File> flight) {
+        super(MediaType.APPLICATION_GNU_ZIP);
+        getDisposition().setType(Disposition.TYPE_ATTACHMENT);
+
+        this.uuid = uuid;
+        this.cacheFile = cacheFile;
+        this.flight = flight;
+
+        try {
+            this.diskLocation = new File(DiskUtils.attachDiskToThisHost(uuid));
+        } catch (RuntimeException e) {
+            finish(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(OutputStream outputStream) throws IOException {
+
+        File part = (cacheFile != null) ? new File(cacheFile.getPath() + PART_SUFFIX) : null;
+        CacheTee out = new CacheTee(outputStream, part);
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(diskLocation);
+            ParallelGzip.getInstance().compress(in, out, new AtomicLong());
+            out.flush();
+            boolean cached = out.commit(cacheFile);
+            if (cached) {
+                CompressedImageCache.getInstance().add(uuid);
+            }
+            if (flight != null) {
+                flight.succeed(cached ? cacheFile : null);
+            }
+        } catch (IOException e) {
+            finish(e);
+            throw e;
+        } finally {
+            FileUtils.closeIgnoringError(in);
+            out.abort();
+            detach();
+            finish(null);
+        }
+    }
+
+    /**
+     * Restlet calls release() once the response is sent, or instead of
+     * write() when the client is gone before the body is written.
+     */
+    @Override
+    public void release() {
+        detach();
+        finish(new IOException("compressed disk " + uuid + " was not sent"));
+        super.release();
+    }
+
+    /**
+     * Completes the flight unless done already: with the error if there is
+     * one, otherwise with null since nothing was cached.
+     */
+    private void finish(Exception error) {
+        if (flight == null || flight.isDone()) {
+            return;
+        }
+        if (error != null) {
+            flight.fail(error);
+        } else {
+            flight.succeed(null);
+        }
+    }
+
+    private void detach() {
+        if (attached.compareAndSet(true, false)) {
+            DiskUtils.detachDiskFromThisHost(uuid);
+        }
+    }
+
+    /**
+     * Copies everything written to the client into the part file. A cache
+     * write error only stops the caching; client errors are raised.
+     */
+    private static final class CacheTee extends FilterOutputStream {
+
+        private File part;
+
+        private OutputStream cache;
+
+        CacheTee(OutputStream client, File part) throws IOException {
+            super(client);
+            this.part = part;
+            if (part != null) {
+                cache = new FileOutputStream(part);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (cache != null) {
+                try {
+                    cache.write(b);
+                } catch (IOException e) {
+                    stopCaching(e);
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (cache != null) {
+                try {
+                    cache.write(b, off, len);
+                } catch (IOException e) {
+                    stopCaching(e);
+                }
+            }
+        }
+
+        /**
+         * Moves the complete part file to its final name. Returns false if
+         * nothing was cached.
+         */
+        boolean commit(File target) {
+            if (cache == null) {
+                return false;
+            }
+            try {
+                cache.close();
+                cache = null;
+                if (!part.renameTo(target)) {
+                    stopCaching(new IOException("cannot rename " + part + " to " + target));
+                    return false;
+                }
+                part = null;
+                return true;
+            } catch (IOException e) {
+                stopCaching(e);
+                return false;
+            }
+        }
+
+        /**
+         * Removes the part file unless it was committed.
+         */
+        void abort() {
+            FileUtils.closeIgnoringError(cache);
+            cache = null;
+            if (part != null && part.exists() && !part.delete()) {
+                LOGGER.warning("Unable to remove " + part);
+            }
+            part = null;
+        }
+
+        private void stopCaching(IOException e) {
+            LOGGER.warning("Not caching compressed disk " + part + ": " + e.getMessage());
+            abort();
+        }
+    }
+
+}
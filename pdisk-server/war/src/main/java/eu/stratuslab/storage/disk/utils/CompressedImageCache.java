@@ -0,0 +1,349 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import eu.stratuslab.storage.disk.main.RootApplication;
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+
+/**
+ * Index of the compressed images (uuid.gz) kept in the cache directory.
+ * The directory is only listed once, at startup; afterwards requests look
+ * up the in-memory index. Entries expire maxAge after their creation (the
+ * disk may have been modified since) and the least recently used ones are
+ * removed when the total size goes over the byte budget. A background
+ * sweeper removes the expired entries of images nobody asks for.
+ *
+ * Images are written under a .gz.part name and only indexed once renamed,
+ * so that an image left unfinished by a crash is never served. An image
+ * returned by lookup() is pinned until release(): if its entry is removed
+ * meanwhile, the file is only deleted once it has been sent.
+ */
+public final class CompressedImageCache {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private static final String SUFFIX = ".gz";
+
+    private static final String PART_SUFFIX = ".gz.part";
+
+    private static final long SWEEP_INTERVAL = 60L;
+
+    private static CompressedImageCache instance = null;
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    private final long maxAgeMillis;
+
+    // Access-ordered: iteration starts with the least recently used entry.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long totalBytes = 0L;
+
+    // Files being sent (number of lookups not released yet).
+    private final Map<File, Integer> pins = new HashMap<File, Integer>();
+
+    // Pinned files removed from the index, deleted once released.
+    private final Set<File> removedWhilePinned = new HashSet<File>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private ScheduledExecutorService sweeper = null;
+
+    public CompressedImageCache(File directory, long maxBytes, long maxAgeMillis) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+
+        loadExistingEntries();
+    }
+
+    public static synchronized CompressedImageCache getInstance() {
+        if (instance == null) {
+            ServiceConfiguration cfg = RootApplication.CONFIGURATION;
+            instance = new CompressedImageCache(new File(cfg.CACHE_LOCATION), cfg.COMPRESSION_CACHE_SIZE,
+                    cfg.COMPRESSION_CACHE_MAX_AGE * 1000L);
+            instance.startSweeper(SWEEP_INTERVAL);
+        }
+        return instance;
+    }
+
+    public File getLocation(String uuid) {
+        return new File(directory, uuid + SUFFIX);
+    }
+
+    /**
+     * Name under which the compressed image is written before being moved
+     * to getLocation(uuid).
+     */
+    public File getPartLocation(String uuid) {
+        return new File(directory, uuid + PART_SUFFIX);
+    }
+
+    /**
+     * Returns the compressed image of the disk, or null if it is not cached
+     * or has expired. The returned file is pinned: it is not deleted before
+     * release() is called for it.
+     */
+    public synchronized File lookup(String uuid) {
+        Entry entry = entries.get(uuid);
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (entry.isExpired(System.currentTimeMillis(), maxAgeMillis) || !entry.file.isFile()) {
+            evict(uuid);
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+
+        Integer count = pins.get(entry.file);
+        pins.put(entry.file, (count == null) ? 1 : count + 1);
+
+        return entry.file;
+    }
+
+    /**
+     * Unpins an image returned by lookup(), deleting it if its entry has
+     * been removed in the meantime.
+     */
+    public synchronized void release(File file) {
+        Integer count = pins.get(file);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            pins.put(file, count - 1);
+        } else {
+            pins.remove(file);
+            if (removedWhilePinned.remove(file)) {
+                delete(file);
+            }
+        }
+    }
+
+    /**
+     * Registers a compressed image moved to getLocation(uuid), then evicts
+     * the least recently used images over the budget. The new image is kept
+     * even if it is larger than the whole budget.
+     */
+    public synchronized void add(String uuid) {
+        File file = getLocation(uuid);
+
+        // The file now holds the new image; the previous one is gone.
+        removedWhilePinned.remove(file);
+
+        Entry previous = entries.remove(uuid);
+        if (previous != null) {
+            totalBytes -= previous.size;
+        }
+
+        Entry entry = new Entry(file, file.length(), System.currentTimeMillis());
+        entries.put(uuid, entry);
+        totalBytes += entry.size;
+
+        enforceBudget(uuid);
+    }
+
+    /**
+     * Removes the compressed image, e.g. when the disk is deleted.
+     */
+    public synchronized void remove(String uuid) {
+        Entry entry = entries.remove(uuid);
+        if (entry != null) {
+            totalBytes -= entry.size;
+            delete(entry.file);
+        }
+    }
+
+    /**
+     * Removes the expired entries and those over the budget.
+     */
+    public synchronized void sweep() {
+        sweep(System.currentTimeMillis());
+    }
+
+    synchronized void sweep(long now) {
+        List<String> expired = new ArrayList<String>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (e.getValue().isExpired(now, maxAgeMillis)) {
+                expired.add(e.getKey());
+            }
+        }
+        for (String uuid : expired) {
+            evict(uuid);
+        }
+
+        enforceBudget(null);
+    }
+
+    public synchronized long getSizeInBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized void startSweeper(long intervalSeconds) {
+        if (sweeper != null) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(new SweeperFactory());
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sweep();
+                } catch (RuntimeException e) {
+                    LOGGER.warning("Compressed image cache sweep failed: " + e.getMessage());
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+    }
+
+    private void enforceBudget(String keep) {
+        Iterator<Map.Entry<String, Entry>> lru = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && lru.hasNext()) {
+            Map.Entry<String, Entry> e = lru.next();
+            if (e.getKey().equals(keep)) {
+                continue;
+            }
+            lru.remove();
+            totalBytes -= e.getValue().size;
+            evictions.incrementAndGet();
+            delete(e.getValue().file);
+        }
+    }
+
+    private void evict(String uuid) {
+        Entry entry = entries.remove(uuid);
+        if (entry != null) {
+            totalBytes -= entry.size;
+            evictions.incrementAndGet();
+            delete(entry.file);
+        }
+    }
+
+    /**
+     * Indexes the images left by a previous run, oldest first, and removes
+     * unfinished ones.
+     */
+    private void loadExistingEntries() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX) || name.endsWith(PART_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+            }
+        });
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(PART_SUFFIX)) {
+                delete(file);
+            } else {
+                Entry entry = new Entry(file, file.length(), file.lastModified());
+                entries.put(name.substring(0, name.length() - SUFFIX.length()), entry);
+                totalBytes += entry.size;
+            }
+        }
+
+        sweep(System.currentTimeMillis());
+    }
+
+    private void delete(File file) {
+        if (pins.containsKey(file)) {
+            removedWhilePinned.add(file);
+            return;
+        }
+        if (!file.exists()) {
+            return;
+        }
+        if (file.delete()) {
+            LOGGER.info("Removed compressed disk " + file.getAbsolutePath());
+        } else {
+            LOGGER.warning("Unable to remove compressed disk " + file.getAbsolutePath());
+        }
+    }
+
+    private static final class Entry {
+
+        final File file;
+
+        final long size;
+
+        final long created;
+
+        Entry(File file, long size, long created) {
+            this.file = file;
+            this.size = size;
+            this.created = created;
+        }
+
+        boolean isExpired(long now, long maxAge) {
+            return now > created + maxAge;
+        }
+    }
+
+    private static final class SweeperFactory implements ThreadFactory {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "compressed-image-cache-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Block-level difference between a copy on write disk and its base.
+ *
+ * Both volumes are read block by block; only the blocks of the live volume
+ * that differ from the base are written to the delta. Blocks beyond the end
+ * of the base compare against zeros, as they read on a copy on write
+ * volume larger than its base. The delta is:
+ *
+ * <pre>
+ * magic "PDSKDLT2", base (UTF), block size (int)
+ * { block index (long), length (int), data }*         changed blocks
+ * -1 (long)                                            end
+ * </pre>
+ *
+ * A changed block holding only zeros is written with its length negated and
+ * no data. Applying the delta onto a copy on write volume of the same base
+ * gives back the live volume; the base named in the header is checked
+ * first, and blocks ending beyond the end of the target are rejected.
+ */
+public final class DeltaCodec {
+
+    private static final byte[] MAGIC = { 'P', 'D', 'S', 'K', 'D', 'L', 'T', '2' };
+
+    private static final long END = -1L;
+
+    private static final int STREAM_BUFFER = 64 * 1024;
+
+    private static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+
+    private final int blockSize;
+
+    public DeltaCodec(int blockSize) {
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("invalid block size: " + blockSize);
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Writes the blocks of live that differ from base into out (which is
+     * flushed but not closed). The base is named by baseReference in the
+     * header. Returns the number of changed blocks.
+     */
+    public long encode(String baseReference, InputStream base, InputStream live, OutputStream out)
+            throws IOException {
+
+        DataOutputStream delta = new DataOutputStream(new BufferedOutputStream(out, STREAM_BUFFER));
+        delta.write(MAGIC);
+        delta.writeUTF(baseReference);
+        delta.writeInt(blockSize);
+
+        byte[] baseBlock = new byte[blockSize];
+        byte[] liveBlock = new byte[blockSize];
+
+        long changed = 0L;
+        boolean baseEnded = false;
+
+        for (long index = 0L;; index++) {
+            int n = readBlock(live, liveBlock);
+            if (n == 0) {
+                break;
+            }
+
+            int m = baseEnded ? 0 : readBlock(base, baseBlock);
+            if (m < blockSize) {
+                baseEnded = true;
+                Arrays.fill(baseBlock, m, blockSize, (byte) 0);
+            }
+
+            if (!sameBytes(liveBlock, baseBlock, n)) {
+                delta.writeLong(index);
+                if (isZero(liveBlock, n)) {
+                    delta.writeInt(-n);
+                } else {
+                    delta.writeInt(n);
+                    delta.write(liveBlock, 0, n);
+                }
+                changed++;
+            }
+
+            if (n < blockSize) {
+                break;
+            }
+        }
+
+        delta.writeLong(END);
+        delta.flush();
+
+        return changed;
+    }
+
+    /**
+     * Writes the blocks of the delta at their offsets in the target, which
+     * must hold the base named baseReference and be size bytes long. The
+     * block size is the one of the delta. Returns the number of blocks
+     * written.
+     */
+    public static long apply(InputStream in, RandomAccessFile target, String baseReference, long size)
+            throws IOException {
+
+        DataInputStream delta = new DataInputStream(new BufferedInputStream(in, STREAM_BUFFER));
+
+        long applied = 0L;
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            delta.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("not a disk delta");
+            }
+
+            String base = delta.readUTF();
+            if (!base.equals(baseReference)) {
+                throw new IOException("delta of " + base + ", not of " + baseReference);
+            }
+
+            int blockSize = delta.readInt();
+            if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+                throw new IOException("invalid delta block size: " + blockSize);
+            }
+
+            byte[] block = new byte[blockSize];
+            byte[] zeros = new byte[blockSize];
+
+            for (long index = delta.readLong(); index != END; index = delta.readLong()) {
+                int n = delta.readInt();
+                if (index < 0 || n == 0 || n < -blockSize || n > blockSize) {
+                    throw new IOException("corrupted delta: block " + index + ", length " + n);
+                }
+                long lastOffset = size - Math.abs(n);
+                if (lastOffset < 0 || index > lastOffset / blockSize) {
+                    throw new IOException("block " + index + " of the delta ends beyond the end of the disk ("
+                            + size + " bytes)");
+                }
+
+                target.seek(index * blockSize);
+                if (n < 0) {
+                    target.write(zeros, 0, -n);
+                } else {
+                    delta.readFully(block, 0, n);
+                    target.write(block, 0, n);
+                }
+                applied++;
+            }
+        } catch (EOFException e) {
+            throw new IOException("truncated delta after " + applied + " blocks");
+        }
+
+        return applied;
+    }
+
+    private static int readBlock(InputStream in, byte[] block) throws IOException {
+        int total = 0;
+        while (total < block.length) {
+            int n = in.read(block, total, block.length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private static boolean sameBytes(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isZero(byte[] block, int length) {
+        for (int i = 0; i < length; i++) {
+            if (block[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,94 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import org.restlet.data.Disposition;
+import org.restlet.data.MediaType;
+import org.restlet.representation.OutputRepresentation;
+
+/**
+ * Changed blocks of a copy on write disk relative to its base (see
+ * DeltaCodec), computed while they are sent. As for compressed images,
+ * both volumes are attached when the representation is created so that an
+ * attach failure is reported with a proper error status.
+ */
+public final class DeltaRepresentation extends OutputRepresentation {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private final String baseUuid;
+
+    private final String baseReference;
+
+    private final String liveUuid;
+
+    private final int blockSize;
+
+    private final File baseLocation;
+
+    private final File liveLocation;
+
+    private final AtomicBoolean attached = new AtomicBoolean(true);
+
+    public DeltaRepresentation(String baseUuid, String baseReference, String liveUuid, int blockSize) {
+        super(MediaType.APPLICATION_OCTET_STREAM);
+        getDisposition().setType(Disposition.TYPE_ATTACHMENT);
+
+        this.baseUuid = baseUuid;
+        this.baseReference = baseReference;
+        this.liveUuid = liveUuid;
+        this.blockSize = blockSize;
+
+        this.baseLocation = new File(DiskUtils.attachDiskToThisHost(baseUuid));
+        try {
+            this.liveLocation = new File(DiskUtils.attachDiskToThisHost(liveUuid));
+        } catch (RuntimeException e) {
+            DiskUtils.detachDiskFromThisHost(baseUuid);
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(OutputStream outputStream) throws IOException {
+
+        InputStream base = null;
+        InputStream live = null;
+        try {
+            base = new FileInputStream(baseLocation);
+            live = new FileInputStream(liveLocation);
+
+            long changed = new DeltaCodec(blockSize).encode(baseReference, base, live, outputStream);
+
+            LOGGER.info(String.format("delta of %s against %s: %d changed blocks of %d bytes", liveUuid, baseUuid,
+                    changed, blockSize));
+        } finally {
+            FileUtils.closeIgnoringError(base);
+            FileUtils.closeIgnoringError(live);
+            detach();
+        }
+    }
+
+    /**
+     * Restlet calls release() once the response is sent, or instead of
+     * write() when the client is gone before the body is written.
+     */
+    @Override
+    public void release() {
+        detach();
+        super.release();
+    }
+
+    private void detach() {
+        if (attached.compareAndSet(true, false)) {
+            DiskUtils.detachDiskFromThisHost(liveUuid);
+            DiskUtils.detachDiskFromThisHost(baseUuid);
+        }
+    }
+
+}
@@ -1,7 +1,10 @@
 package eu.stratuslab.storage.disk.utils;
 
 import eu.stratuslab.marketplace.metadata.MetadataUtils;
+import eu.stratuslab.storage.disk.backend.BackEndOperation;
+import eu.stratuslab.storage.disk.backend.BackEndResult;
 import eu.stratuslab.storage.disk.backend.BackEndStorage;
+import eu.stratuslab.storage.disk.backend.BackEndStorageFactory;
 import eu.stratuslab.storage.disk.main.RootApplication;
 import eu.stratuslab.storage.disk.main.ServiceConfiguration;
 import eu.stratuslab.storage.persistence.Disk;
@@ -14,14 +17,20 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 public final class DiskUtils {
@@ -33,13 +42,16 @@ public final class DiskUtils {
     public static final long BYTES_IN_GiB = 1024L * 1024L * 1024L;
     public static final double BYTES_IN_GiB_DOUBLE = (double) BYTES_IN_GiB;
 
+    // Compressions of volumes into the cache, by uuid (see SingleFlight).
+    private static final SingleFlight<String, File> COMPRESSIONS = new SingleFlight<String, File>();
+
     private DiskUtils() {
 
     }
 
     private static BackEndStorage getDiskStorage() {
 
-        return new BackEndStorage();
+        return BackEndStorageFactory.getBackEndStorage();
 
     }
 
@@ -48,12 +60,21 @@ public final class DiskUtils {
         return backend.getTurl(diskUuid);
     }
 
-    public static void createDisk(Disk disk) {
+    /**
+     * Runs the operations with a single backend invocation and raises the
+     * error of the first one that failed.
+     */
+    private static List<BackEndResult> executeOnBackEnd(BackEndOperation... operations) {
+        List<BackEndOperation> batch = Arrays.asList(operations);
+        List<BackEndResult> results = getDiskStorage().execute(batch);
+        BackEndResult.checkAll(batch, results);
+        return results;
+    }
 
-        BackEndStorage diskStorage = getDiskStorage();
+    public static void createDisk(Disk disk) {
 
-        diskStorage.create(disk.getUuid(), disk.getSize());
-        diskStorage.map(disk.getUuid());
+        executeOnBackEnd(BackEndOperation.create(disk.getUuid(), disk.getSize()),
+                BackEndOperation.map(disk.getUuid()));
 
         disk.store();
 
@@ -61,20 +82,40 @@ public final class DiskUtils {
 
     public static Disk createMachineImageCoWDisk(Disk disk) {
 
-        BackEndStorage diskStorage = getDiskStorage();
-
         Disk cowDisk = createCowDisk(disk);
 
-        diskStorage.createCopyOnWrite(disk.getUuid(), cowDisk.getUuid(), disk.getSize());
+        executeOnBackEnd(BackEndOperation.snapshot(disk.getUuid(), cowDisk.getUuid(), disk.getSize()),
+                BackEndOperation.map(cowDisk.getUuid()));
 
         cowDisk.setType(DiskType.MACHINE_IMAGE_LIVE);
-        diskStorage.map(cowDisk.getUuid());
 
         cowDisk.store();
 
         return cowDisk;
     }
 
+    /**
+     * Creates the disk as a copy on write volume of a seed disk with the
+     * same contents, instead of copying the image again. Like the other
+     * snapshots, the disk is bound to the seed (see Disk.countSnapshots())
+     * so that the seed cannot be removed while it is in use (see
+     * checkDiskRemovable()).
+     */
+    public static void createDiskFromSeed(Disk disk, Disk seed) {
+
+        long size = Math.max(disk.getSize(), seed.getSize());
+
+        executeOnBackEnd(BackEndOperation.snapshot(seed.getUuid(), disk.getUuid(), size),
+                BackEndOperation.map(disk.getUuid()));
+
+        disk.setBaseDiskUuid(seed.getUuid());
+        disk.setSize(size);
+        disk.setIdentifier("snapshot:" + seed.getUuid());
+        disk.setSeed(false);
+
+        disk.store();
+    }
+
     protected static Disk createCowDisk(Disk disk) {
         Disk cowDisk = new Disk();
         cowDisk.setType(DiskType.DATA_IMAGE_LIVE);
@@ -91,9 +132,27 @@ public final class DiskUtils {
         return diskStorage.rebase(disk);
     }
 
+    /**
+     * Refuses (409) the removal of a disk that is mounted, or that is the
+     * base of copy on write disks (snapshots, or disks created from it as a
+     * seed, possibly by other users), whatever its type.
+     */
+    public static void checkDiskRemovable(Disk disk) {
+
+        if (disk.getMountsCount() > 0) {
+            throw new ResourceException(Status.CLIENT_ERROR_CONFLICT,
+                    "disk (" + disk.getUuid() + ") is in use and can't be deleted");
+        }
+
+        int snapshots = Disk.countSnapshots(disk.getUuid());
+        if (snapshots > 0) {
+            throw new ResourceException(Status.CLIENT_ERROR_CONFLICT, "disk (" + disk.getUuid()
+                    + ") is the base of " + snapshots + " other disk(s) and can't be deleted");
+        }
+    }
+
     public static void removeDisk(String uuid) {
-        getDiskStorage().unmap(uuid);
-        getDiskStorage().delete(uuid);
+        executeOnBackEnd(BackEndOperation.unmap(uuid), BackEndOperation.delete(uuid));
     }
 
     public static String getDiskUri(String endpoint, String uuid) {
@@ -114,44 +173,86 @@ public final class DiskUtils {
     public static void attachHotplugDisk(String serviceEndpoint, String node, String vmId, String diskUuid,
                                          String target, String turl) {
 
-        // Do NOT use the --register flag here. This may cause an infinite loop
-        // in the process because it calls the pdisk service again.
+        submitAttachHotplugDisk(serviceEndpoint, node, vmId, diskUuid, target, turl).waitForCompletion();
+    }
 
-        List<String> cmd = createHotPlugCommand(node);
-        cmd.add("--op up");
+    public static void detachHotplugDisk(String serviceEndpoint, String node, String vmId, String diskUuid,
+                                         String target, String turl) {
 
-        cmd.add("--attach");
-        cmd.add("--mark");
-        cmd.add("--link");
-        cmd.add("--mount");
+        submitDetachHotplugDisk(serviceEndpoint, node, vmId, diskUuid, target, turl).waitForCompletion();
+    }
 
-        cmd.add("--pdisk-id");
-        cmd.add(getDiskUri(serviceEndpoint, diskUuid));
+    /**
+     * Starts the attach command without waiting for it. Hotplug commands
+     * are limited per node (see disk.store.hotplug.max_per_node); use
+     * waitForHotplug() to get the result.
+     */
+    public static HotplugOperation submitAttachHotplugDisk(String serviceEndpoint, String node, String vmId,
+                                                           String diskUuid, String target, String turl) {
 
-        cmd.add("--target");
-        cmd.add(target);
+        ProcessBuilder pb = createHotplugProcess("--op up", serviceEndpoint, node, vmId, diskUuid, target, turl);
+        return submitHotplug(node, pb, "Unable to attach persistent disk " + diskUuid);
+    }
 
-        cmd.add("--vm-id");
-        cmd.add(vmId);
+    public static HotplugOperation submitDetachHotplugDisk(String serviceEndpoint, String node, String vmId,
+                                                           String diskUuid, String target, String turl) {
 
-        cmd.add("--turl");
-        cmd.add(turl);
+        ProcessBuilder pb = createHotplugProcess("--op down", serviceEndpoint, node, vmId, diskUuid, target, turl);
+        return submitHotplug(node, pb, "Unable to detach persistent disk " + diskUuid);
+    }
 
-        cmd.add("--vm-disk-name");
-        cmd.add(diskUuid);
+    private static HotplugOperation submitHotplug(String node, ProcessBuilder pb, String errorMsg) {
+        long timeout = RootApplication.CONFIGURATION.PROCESS_TIMEOUT;
+        int maxPerNode = RootApplication.CONFIGURATION.HOTPLUG_MAX_PER_NODE;
 
-        ProcessBuilder pb = new ProcessBuilder(cmd);
-        ProcessUtils.execute(pb, "Unable to attach persistent disk");
+        LOGGER.info(MiscUtils.join(pb.command(), " "));
+        Future<ProcessResult> future = ProcessUtils.submit("hotplug-" + node, maxPerNode, pb, timeout,
+                NodeConnectionManager.getInstance().getSessionListener(node));
+
+        return new HotplugOperation(future, pb, errorMsg, timeout);
     }
 
-    public static void detachHotplugDisk(String serviceEndpoint, String node, String vmId, String diskUuid,
-                                         String target, String turl) {
+    /**
+     * Hotplug command started by submitAttachHotplugDisk() or
+     * submitDetachHotplugDisk().
+     */
+    public static final class HotplugOperation {
+
+        private final Future<ProcessResult> future;
+
+        private final ProcessBuilder pb;
+
+        private final String errorMsg;
+
+        private final long timeout;
+
+        private HotplugOperation(Future<ProcessResult> future, ProcessBuilder pb, String errorMsg, long timeout) {
+            this.future = future;
+            this.pb = pb;
+            this.errorMsg = errorMsg;
+            this.timeout = timeout;
+        }
+
+        /**
+         * Waits for the command; raises a ResourceException if it failed.
+         */
+        public void waitForCompletion() {
+            ProcessUtils.getOutput(future, pb, errorMsg, timeout);
+        }
+
+        public void cancel() {
+            future.cancel(true);
+        }
+    }
+
+    private static ProcessBuilder createHotplugProcess(String operation, String serviceEndpoint, String node,
+                                                       String vmId, String diskUuid, String target, String turl) {
 
         // Do NOT use the --register flag here. This may cause an infinite loop
         // in the process because it calls the pdisk service again.
 
         List<String> cmd = createHotPlugCommand(node);
-        cmd.add("--op down");
+        cmd.add(operation);
 
         cmd.add("--attach");
         cmd.add("--mark");
@@ -173,22 +274,11 @@ public final class DiskUtils {
         cmd.add("--vm-disk-name");
         cmd.add(diskUuid);
 
-        ProcessBuilder pb = new ProcessBuilder(cmd);
-        ProcessUtils.execute(pb, "Unable to detach persistent disk");
+        return new ProcessBuilder(cmd);
     }
 
     protected static List<String> createHotPlugCommand(String node) {
-        List<String> cmd = new ArrayList<String>();
-        cmd.add("ssh");
-        cmd.add("-p");
-        cmd.add("22");
-        cmd.add("-o");
-        cmd.add("ConnectTimeout=5");
-        cmd.add("-o");
-        cmd.add("StrictHostKeyChecking=no");
-        cmd.add("-i");
-        cmd.add(RootApplication.CONFIGURATION.CLOUD_NODE_SSH_KEY);
-        cmd.add(RootApplication.CONFIGURATION.CLOUD_NODE_ADMIN + "@" + node);
+        List<String> cmd = NodeConnectionManager.getInstance().createCommand(node);
         cmd.add("/usr/sbin/stratus-pdisk-client.py");
         return cmd;
     }
@@ -260,10 +350,81 @@ public final class DiskUtils {
     }
 
     public static Map<String, BigInteger> copyUrlToVolume(String uuid, String url) throws IOException {
+        return copyUrlToVolume(uuid, url, new AtomicLong());
+    }
+
+    public static Map<String, BigInteger> copyUrlToVolume(String uuid, String url, AtomicLong bytesCopied)
+            throws IOException {
+
+        File diskLocation = new File(attachDiskToThisHost(uuid));
+        try {
+            return DownloadUtils.copyUrlContentsToFile(url, diskLocation, bytesCopied);
+        } finally {
+            detachDiskFromThisHost(uuid);
+            getDiskStorage().unmap(uuid);
+        }
+    }
+
+    /**
+     * Writes the stream into the volume, computing its checksum on the way
+     * (see MetadataUtils.copyWithStreamInfo()).
+     */
+    public static Map<String, BigInteger> copyStreamToVolume(String uuid, InputStream contents) throws IOException {
 
         File diskLocation = new File(attachDiskToThisHost(uuid));
         try {
-            return DownloadUtils.copyUrlContentsToFile(url, diskLocation);
+            OutputStream os = SparseFileOutputStream.open(diskLocation);
+            try {
+                return MetadataUtils.copyWithStreamInfo(contents, os);
+            } finally {
+                FileUtils.closeRaisingError(os, diskLocation.getPath());
+            }
+        } finally {
+            detachDiskFromThisHost(uuid);
+            getDiskStorage().unmap(uuid);
+        }
+    }
+
+    /**
+     * Writes the blocks of the delta into the volume, which holds the base
+     * named baseReference (see DeltaCodec). Blocks beyond the size of the
+     * disk are rejected. Returns the number of blocks written.
+     */
+    public static long applyDeltaToVolume(Disk disk, InputStream delta, String baseReference) throws IOException {
+
+        String uuid = disk.getUuid();
+
+        File diskLocation = new File(attachDiskToThisHost(uuid));
+        try {
+            RandomAccessFile target = new RandomAccessFile(diskLocation, "rw");
+            try {
+                return DeltaCodec.apply(delta, target, baseReference, disk.getSizeInBytes());
+            } finally {
+                FileUtils.closeRaisingError(target, diskLocation.getPath());
+            }
+        } finally {
+            detachDiskFromThisHost(uuid);
+            getDiskStorage().unmap(uuid);
+        }
+    }
+
+    /**
+     * Identifier of the contents of the volume, as for uploaded images
+     * (see calculateHash()).
+     */
+    public static String calculateVolumeHash(String uuid) {
+
+        File diskLocation = new File(attachDiskToThisHost(uuid));
+        try {
+            InputStream contents = new FileInputStream(diskLocation);
+            try {
+                return calculateHash(contents);
+            } finally {
+                FileUtils.closeIgnoringError(contents);
+            }
+        } catch (FileNotFoundException e) {
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "Unable to read volume " + uuid + ": "
+                    + e.getMessage());
         } finally {
             detachDiskFromThisHost(uuid);
             getDiskStorage().unmap(uuid);
@@ -275,19 +436,92 @@ public final class DiskUtils {
         return (inGiB <= 0 ? 1L : inGiB);
     }
 
-    public static void createCompressedDisk(String uuid) {
+    /**
+     * Compresses the volume into the cache on all available cores (see
+     * ParallelGzip). A request arriving while the same volume is being
+     * compressed waits for that compression instead of starting another.
+     */
+    public static void createCompressedDisk(final String uuid) {
 
-        String diskLocation = attachDiskToThisHost(uuid);
+        try {
+            COMPRESSIONS.execute(uuid, new Callable<File>() {
+                public File call() throws IOException {
+                    return compressDisk(uuid);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "Unable to compress disk " + uuid + ": "
+                    + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "Interrupted while compressing disk " + uuid);
+        }
+    }
 
-        ProcessBuilder pb = new ProcessBuilder("/bin/sh", "-c",
-                RootApplication.CONFIGURATION.GZIP_CMD + " -f -c " + diskLocation + " > " + getCompressedDiskLocation(
-                        uuid));
-        ProcessUtils.execute(pb, "Unable to compress disk " + uuid);
+    /**
+     * The image is written to a part file, moved to its cached name only
+     * once complete.
+     */
+    private static File compressDisk(String uuid) throws IOException {
 
-        detachDiskFromThisHost(uuid);
+        CompressedImageCache cache = CompressedImageCache.getInstance();
+        File part = cache.getPartLocation(uuid);
+        File compressed = cache.getLocation(uuid);
+
+        File diskLocation = new File(attachDiskToThisHost(uuid));
+        try {
+            ParallelGzip.getInstance().compress(diskLocation, part);
+            if (!part.renameTo(compressed)) {
+                throw new IOException("cannot rename " + part + " to " + compressed);
+            }
+        } finally {
+            detachDiskFromThisHost(uuid);
+            if (part.exists() && !part.delete()) {
+                LOGGER.warning("Unable to remove " + part);
+            }
+        }
+
+        cache.add(uuid);
+        return compressed;
     }
 
-    private static String attachDiskToThisHost(String uuid) {
+    /**
+     * Registers a compression of the volume into the cache done by the
+     * caller, which must complete the returned flight with the compressed
+     * file (or null if it was not cached). Returns null if the volume is
+     * already being compressed.
+     */
+    public static SingleFlight.Flight<File> startCompression(String uuid) {
+        return COMPRESSIONS.start(uuid);
+    }
+
+    /**
+     * Waits for the running compression of the volume, if any. Returns
+     * false when that compression failed.
+     */
+    public static boolean waitForCompressedDisk(String uuid) {
+        Future<File> running = COMPRESSIONS.find(uuid);
+        if (running == null) {
+            return true;
+        }
+
+        try {
+            running.get();
+            return true;
+        } catch (ExecutionException e) {
+            LOGGER.warning("Compression of disk " + uuid + " failed: " + e.getCause().getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "Interrupted while waiting for disk " + uuid);
+        }
+    }
+
+    /**
+     * Attaches the volume to this host and returns the link through which
+     * it can be read. Must be followed by detachDiskFromThisHost().
+     */
+    public static String attachDiskToThisHost(String uuid) {
 
         int port = ServiceConfiguration.getInstance().PDISK_SERVER_PORT;
 
@@ -303,13 +537,12 @@ public final class DiskUtils {
         return linkName;
     }
 
-    private static void detachDiskFromThisHost(String uuid) {
+    public static void detachDiskFromThisHost(String uuid) {
         unlinkVolumeFromDownloadCache(uuid);
 
         int port = ServiceConfiguration.getInstance().PDISK_SERVER_PORT;
 
-        BackEndStorage backend = getDiskStorage();
-        String turl = backend.getTurl(uuid);
+        String turl = getTurl(uuid);
 
         List<String> cmd = getCommandDetachLocal(uuid, "https://localhost:" + port + "/pdisk", turl);
 
@@ -371,22 +604,8 @@ public final class DiskUtils {
         return RootApplication.CONFIGURATION.CACHE_LOCATION + "/" + uuid + ".link";
     }
 
-    public static String getCompressedDiskLocation(String uuid) {
-        return RootApplication.CONFIGURATION.CACHE_LOCATION + "/" + uuid + ".gz";
-    }
-
     public static Boolean isCompressedDiskBuilding(String uuid) {
-        return FileUtils.isCachedDiskExists(uuid);
-    }
-
-    public static Boolean hasCompressedDiskExpire(String uuid) {
-        File zip = new File(FileUtils.getCompressedDiskLocation(uuid));
-        return hasCompressedDiskExpire(zip);
-    }
-
-    public static Boolean hasCompressedDiskExpire(File disk) {
-        Calendar cal = Calendar.getInstance();
-        return (cal.getTimeInMillis() > (disk.lastModified() + ServiceConfiguration.CACHE_EXPIRATION_DURATION));
+        return COMPRESSIONS.isRunning(uuid);
     }
 
 }
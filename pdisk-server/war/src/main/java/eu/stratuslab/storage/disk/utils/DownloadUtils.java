@@ -1,22 +1,20 @@
 package eu.stratuslab.storage.disk.utils;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.security.SecureRandom;
-import java.security.cert.X509Certificate;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
-
 import org.apache.http.Header;
 import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
@@ -28,32 +26,139 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.client.entity.GzipDecompressingEntity;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.conn.params.ConnRoutePNames;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.BasicClientConnectionManager;
 import org.apache.http.protocol.HttpContext;
 
 import eu.stratuslab.marketplace.metadata.MetadataUtils;
+import eu.stratuslab.storage.disk.main.RootApplication;
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
 
 public class DownloadUtils {
 	
 	private static final String ENV_PROXY = "http_proxy";
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
 	
     public static Map<String, BigInteger> copyUrlContentsToFile(String url, File file)
             throws IOException {
+        return copyUrlContentsToFile(url, file, new AtomicLong());
+    }
 
-        Map<String, BigInteger> streamInfo = new HashMap<String, BigInteger>();
+    /**
+     * Same as copyUrlContentsToFile(url, file) but adds the number of bytes
+     * written to the file to bytesCopied as the copy progresses. Large
+     * contents are downloaded with parallel range requests when the server
+     * supports them (see SegmentedDownloader).
+     */
+    public static Map<String, BigInteger> copyUrlContentsToFile(String url, File file, AtomicLong bytesCopied)
+            throws IOException {
 
-        DefaultHttpClient client = getHttpClientWithProxy(url);
+        if (RootApplication.CONFIGURATION.DOWNLOAD_SEGMENTS > 1) {
+            Map<String, BigInteger> streamInfo = copyUrlContentsInSegments(url, file, bytesCopied);
+            if (streamInfo != null) {
+                return streamInfo;
+            }
+        }
+
+        return copyUrlContentsInOneStream(url, file, bytesCopied);
+    }
+
+    /**
+     * Returns null, without downloading anything, when the server does not
+     * accept ranges or the contents are too small to be split.
+     *
+     * The checksums must be those of the (uncompressed) contents in order:
+     * compressed contents are downloaded into the cache then inflated into
+     * the file, raw contents are downloaded into the file then read back.
+     */
+    private static Map<String, BigInteger> copyUrlContentsInSegments(String url, File file, AtomicLong bytesCopied)
+            throws IOException {
 
+        ServiceConfiguration cfg = RootApplication.CONFIGURATION;
+        HttpClientPool pool = HttpClientPool.getInstance();
+
+        int segments = Math.min(cfg.DOWNLOAD_SEGMENTS, pool.getMaxPerRoute());
+        SegmentedDownloader downloader = new SegmentedDownloader(getHttpClientWithProxy(url, pool), segments,
+                cfg.DOWNLOAD_SEGMENT_MIN_SIZE, cfg.DOWNLOAD_RETRIES);
+
+        long length;
         try {
+            length = downloader.probe(url);
+        } catch (IOException e) {
+            LOGGER.warning("Unable to probe " + url + ", using a single connection: " + e.getMessage());
+            return null;
+        }
+
+        if (length < 0 || downloader.getSegmentCount(length) < 2) {
+            return null;
+        }
 
-            HttpGet get = new HttpGet(url);
+        if (!isCompressed(url)) {
+            downloader.download(url, length, file, bytesCopied);
+            return readStreamInfo(file, length);
+        }
+
+        File compressed = File.createTempFile("download-", ".gz", FileUtils.getUploadCacheDirectory());
+        try {
+            downloader.download(url, length, compressed, new AtomicLong());
+            return inflateWithStreamInfo(compressed, file, bytesCopied);
+        } finally {
+            if (!compressed.delete()) {
+                LOGGER.warning("Unable to remove " + compressed);
+            }
+        }
+    }
+
+    private static Map<String, BigInteger> inflateWithStreamInfo(File compressed, File file, AtomicLong bytesCopied)
+            throws IOException {
+
+        InputStream is = null;
+        OutputStream os = null;
+        try {
+            is = new CountingInputStream(new GZIPInputStream(new FileInputStream(compressed)), bytesCopied);
+            os = SparseFileOutputStream.open(file);
+            return MetadataUtils.copyWithStreamInfo(is, os);
+        } finally {
+            FileUtils.closeIgnoringError(is);
+            FileUtils.closeIgnoringError(os);
+        }
+    }
+
+    private static Map<String, BigInteger> readStreamInfo(File file, long length) throws IOException {
+
+        InputStream is = new LimitedInputStream(new FileInputStream(file), length);
+        try {
+            return MetadataUtils.copyWithStreamInfo(is, new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+        } finally {
+            FileUtils.closeIgnoringError(is);
+        }
+    }
+
+    // FIXME: This information should be passed as a parameter.
+    // FIXME: This should also support BZ2 compression.
+    private static boolean isCompressed(String url) {
+        return url.endsWith(".gz");
+    }
+
+    private static Map<String, BigInteger> copyUrlContentsInOneStream(String url, File file,
+            AtomicLong bytesCopied) throws IOException {
+
+        Map<String, BigInteger> streamInfo = new HashMap<String, BigInteger>();
+
+        DefaultHttpClient client = getHttpClientWithProxy(url, HttpClientPool.getInstance());
+
+        HttpGet get = new HttpGet(url);
+
+        try {
 
             HttpResponse response = client.execute(get);
 
@@ -62,20 +167,24 @@ public class DownloadUtils {
             if (entity != null) {
 
                 InputStream is = null;
-                FileOutputStream os = null;
+                OutputStream os = null;
 
                 try {
                     is = entity.getContent();
 
-                    // FIXME: This information should be passed as a parameter.
-                    // FIXME: This should also support BZ2 compression.
-                    if (url.endsWith(".gz")) {
+                    if (isCompressed(url)) {
                         is = new GZIPInputStream(is);
                     }
+                    is = new CountingInputStream(is, bytesCopied);
 
-                    os = new FileOutputStream(file);
+                    os = SparseFileOutputStream.open(file);
                     streamInfo = MetadataUtils.copyWithStreamInfo(is, os);
 
+                } catch (IOException e) {
+                    // Do not read the rest of the body to keep the
+                    // connection: drop it.
+                    get.abort();
+                    throw e;
                 } finally {
                     FileUtils.closeIgnoringError(is);
                     FileUtils.closeIgnoringError(os);
@@ -84,7 +193,7 @@ public class DownloadUtils {
             }
 
         } finally {
-            client.getConnectionManager().shutdown();
+            get.releaseConnection();
         }
 
         return streamInfo;
@@ -126,8 +235,12 @@ public class DownloadUtils {
 
     }
 
-    public static DefaultHttpClient getHttpClientWithProxy(String url) {
-		DefaultHttpClient client = getHttpClient();
+    /**
+     * Returns a client of the pool, going through the proxy of the
+     * environment (http_proxy) unless the host is listed in no_proxy.
+     */
+    public static DefaultHttpClient getHttpClientWithProxy(String url, HttpClientPool pool) {
+		DefaultHttpClient client = pool.createClient();
 	    try {
 			setProxy(client, url);
 		} catch (MalformedURLException e) {
@@ -136,53 +249,6 @@ public class DownloadUtils {
 		return client;
 	}
 
-	private static DefaultHttpClient getHttpClient() {
-
-        try {
-
-            SSLContext sslContext = SSLContext.getInstance("SSL");
-
-            sslContext.init(null, new TrustManager[] { new X509TrustManager() {
-
-                public X509Certificate[] getAcceptedIssuers() {
-                    return new X509Certificate[] {};
-                }
-
-                public void checkClientTrusted(X509Certificate[] certs,
-                        String authType) {
-                }
-
-                public void checkServerTrusted(X509Certificate[] certs,
-                        String authType) {
-                }
-
-            } }, new SecureRandom());
-
-            SSLSocketFactory sf = new SSLSocketFactory(sslContext,
-                    SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
-
-            Scheme httpsScheme = new Scheme("https", 443, sf);
-            Scheme httpScheme = new Scheme("http", 80, new PlainSocketFactory());
-            SchemeRegistry schemeRegistry = new SchemeRegistry();
-            schemeRegistry.register(httpsScheme);
-            schemeRegistry.register(httpScheme);
-
-            ClientConnectionManager cm = new BasicClientConnectionManager(
-                    schemeRegistry);
-
-            DefaultHttpClient client = new DefaultHttpClient(cm);
-            
-            // client.addRequestInterceptor(new GzipRequestInterceptor());
-            // client.addResponseInterceptor(new GzipResponseInterceptor());
-
-            return client;
-
-        } catch (Exception e) {
-            // FIXME: This should probably do something more intelligent!
-            throw new RuntimeException(e.getMessage());
-        }
-    }
-
 	private static void setProxy(DefaultHttpClient client, String url)
 			throws MalformedURLException {
 		if (noProxy(url))
@@ -226,4 +292,42 @@ public class DownloadUtils {
 		return value != null && !value.isEmpty();
 	}
 
+    /**
+     * Stops after limit bytes, e.g. at the end of an image written to a
+     * larger volume.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+    }
+
 }
@@ -0,0 +1,123 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Range;
+import org.restlet.representation.OutputRepresentation;
+
+/**
+ * Part(s) of a file sent as the answer to a Range request (status 206). A
+ * single range is sent as is, with a Content-Range header; several ranges
+ * are sent as a multipart/byteranges body, each part with its own
+ * Content-Range (RFC 2616, section 19.2).
+ */
+public class FileRangeRepresentation extends OutputRepresentation {
+
+    private static final String BOUNDARY = "PDISK_BYTE_RANGES";
+
+    private static final String CRLF = "\r\n";
+
+    private static final String ENCODING = "US-ASCII";
+
+    private final File file;
+
+    private final long length;
+
+    private final List<long[]> ranges;
+
+    private final MediaType partType;
+
+    public FileRangeRepresentation(File file, MediaType mediaType, List<long[]> ranges) {
+        super(ranges.size() == 1 ? mediaType : createMultipartType());
+
+        this.file = file;
+        this.length = file.length();
+        this.ranges = ranges;
+        this.partType = mediaType;
+
+        if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            setSize(length);
+            setRange(new Range(range[0], range[1] - range[0] + 1));
+        } else {
+            setSize(getMultipartSize());
+        }
+    }
+
+    private static MediaType createMultipartType() {
+        Form parameters = new Form();
+        parameters.add("boundary", BOUNDARY);
+        return new MediaType("multipart/byteranges", parameters);
+    }
+
+    @Override
+    public void write(OutputStream outputStream) throws IOException {
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel src = in.getChannel();
+            WritableByteChannel dst = Channels.newChannel(outputStream);
+
+            if (ranges.size() == 1) {
+                transfer(src, ranges.get(0), dst);
+            } else {
+                for (long[] range : ranges) {
+                    outputStream.write(getPartHeader(range));
+                    outputStream.flush();
+                    transfer(src, range, dst);
+                }
+                outputStream.write(getClosingBoundary());
+            }
+            outputStream.flush();
+        } finally {
+            FileUtils.closeIgnoringError(in);
+        }
+    }
+
+    private static void transfer(FileChannel src, long[] range, WritableByteChannel dst) throws IOException {
+        long position = range[0];
+        long end = range[1] + 1;
+        while (position < end) {
+            long n = src.transferTo(position, end - position, dst);
+            if (n <= 0) {
+                throw new IOException("file truncated while being sent");
+            }
+            position += n;
+        }
+    }
+
+    private long getMultipartSize() {
+        try {
+            long size = ByteRanges.getTotalLength(ranges) + getClosingBoundary().length;
+            for (long[] range : ranges) {
+                size += getPartHeader(range).length;
+            }
+            return size;
+        } catch (UnsupportedEncodingException e) {
+            return UNKNOWN_SIZE;
+        }
+    }
+
+    private byte[] getPartHeader(long[] range) throws UnsupportedEncodingException {
+        String header = CRLF + "--" + BOUNDARY + CRLF
+                + "Content-Type: " + partType.getName() + CRLF
+                + "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + length + CRLF
+                + CRLF;
+        return header.getBytes(ENCODING);
+    }
+
+    private static byte[] getClosingBoundary() throws UnsupportedEncodingException {
+        return (CRLF + "--" + BOUNDARY + "--" + CRLF).getBytes(ENCODING);
+    }
+
+}
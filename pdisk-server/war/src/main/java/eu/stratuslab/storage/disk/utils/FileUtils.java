@@ -12,6 +12,7 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.restlet.data.Status;
@@ -32,8 +33,21 @@ public final class FileUtils {
     }
 
     public static void copyFile(String src, String dst) {
-        ProcessBuilder pb = new ProcessBuilder("dd", "if=" + src, "of=" + dst);
-        ProcessUtils.execute(pb, "Unable to copy file " + src + " to " + dst);
+        copyFile(src, dst, new AtomicLong());
+    }
+
+    /**
+     * Copies a disk image (see VolumeCopier); bytesCopied follows the
+     * progress of the copy.
+     */
+    public static void copyFile(String src, String dst, AtomicLong bytesCopied) {
+        try {
+            VolumeCopier.copy(new File(src), new File(dst), bytesCopied);
+        } catch (IOException e) {
+            String msg = "Unable to copy file " + src + " to " + dst;
+            LOGGER.severe(msg + ": " + e.getMessage());
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, msg);
+        }
     }
 
     public static File getUploadCacheDirectory() {
@@ -48,15 +62,6 @@ public final class FileUtils {
         return getCachedDiskFile(uuid).getAbsolutePath() + ".gz";
     }
 
-    public static Boolean isCachedDiskExists(String uuid) {
-        return getCachedDiskFile(uuid).canRead(); // implies exists()
-    }
-
-    public static Boolean isCompressedDiskExists(String uuid) {
-        File cachedDisk = new File(getCompressedDiskLocation(uuid));
-        return cachedDisk.canRead(); // implies exists()
-    }
-
     public static void closeIgnoringError(Closeable c) {
         try {
             if (c != null) {
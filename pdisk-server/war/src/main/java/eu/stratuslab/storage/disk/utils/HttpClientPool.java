@@ -0,0 +1,235 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import eu.stratuslab.storage.disk.main.RootApplication;
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+
+/**
+ * Connection pool shared by all the HTTP clients of the service (image
+ * downloads), so that keep-alive connections and TLS sessions to the same
+ * Marketplace or image host are reused from one import to the next. The
+ * clients are cheap and must not be shut down; connections left idle are
+ * closed by a background sweeper.
+ */
+public final class HttpClientPool {
+
+    private static HttpClientPool instance = null;
+
+    private final PoolingClientConnectionManager manager;
+
+    private final int maxPerRoute;
+
+    private final int connectTimeout;
+
+    private final int socketTimeout;
+
+    private final long idleSeconds;
+
+    private final ScheduledExecutorService sweeper;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong opened = new AtomicLong();
+
+    /**
+     * Timeouts are in seconds, 0 meaning no timeout.
+     */
+    public HttpClientPool(int maxTotal, int maxPerRoute, int connectTimeout, int socketTimeout, long idleSeconds) {
+        this.maxPerRoute = maxPerRoute;
+        this.connectTimeout = (int) TimeUnit.SECONDS.toMillis(connectTimeout);
+        this.socketTimeout = (int) TimeUnit.SECONDS.toMillis(socketTimeout);
+        this.idleSeconds = idleSeconds;
+
+        manager = new PoolingClientConnectionManager(createSchemeRegistry()) {
+            @Override
+            protected ClientConnectionOperator createConnectionOperator(SchemeRegistry registry) {
+                return new CountingConnectionOperator(registry);
+            }
+        };
+        manager.setMaxTotal(maxTotal);
+        manager.setDefaultMaxPerRoute(maxPerRoute);
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "http-connection-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(1L, idleSeconds / 2);
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                closeIdleConnections();
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    public static synchronized HttpClientPool getInstance() {
+        if (instance == null) {
+            ServiceConfiguration cfg = RootApplication.CONFIGURATION;
+            instance = new HttpClientPool(cfg.HTTP_MAX_CONNECTIONS, cfg.HTTP_MAX_PER_ROUTE, cfg.HTTP_CONNECT_TIMEOUT,
+                    cfg.HTTP_SOCKET_TIMEOUT, cfg.HTTP_IDLE_TIMEOUT);
+
+            final HttpClientPool pool = instance;
+            Runtime.getRuntime().addShutdownHook(new Thread("http-pool-shutdown") {
+                @Override
+                public void run() {
+                    pool.shutdown();
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * Returns a new client using the pooled connections. Parameters set on
+     * the client (e.g. a proxy) only apply to it.
+     */
+    public DefaultHttpClient createClient() {
+        DefaultHttpClient client = new DefaultHttpClient(manager);
+
+        HttpParams params = client.getParams();
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, socketTimeout);
+
+        client.addRequestInterceptor(new HttpRequestInterceptor() {
+            public void process(HttpRequest request, HttpContext context) {
+                requests.incrementAndGet();
+            }
+        });
+        return client;
+    }
+
+    /**
+     * Maximum number of connections to one host, i.e. of parallel requests
+     * that one download can use.
+     */
+    public int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    public void closeIdleConnections() {
+        manager.closeExpiredConnections();
+        manager.closeIdleConnections(idleSeconds, TimeUnit.SECONDS);
+    }
+
+    public void shutdown() {
+        sweeper.shutdownNow();
+        manager.shutdown();
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getOpenedCount() {
+        return opened.get();
+    }
+
+    public int getLeasedCount() {
+        return manager.getTotalStats().getLeased();
+    }
+
+    public int getAvailableCount() {
+        return manager.getTotalStats().getAvailable();
+    }
+
+    public int getPendingCount() {
+        return manager.getTotalStats().getPending();
+    }
+
+    public int getMaxTotal() {
+        return manager.getTotalStats().getMax();
+    }
+
+    /**
+     * Image hosts often use self-signed certificates: all of them are
+     * accepted, as before.
+     */
+    private static SchemeRegistry createSchemeRegistry() {
+
+        try {
+
+            SSLContext sslContext = SSLContext.getInstance("SSL");
+
+            sslContext.init(null, new TrustManager[] { new X509TrustManager() {
+
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[] {};
+                }
+
+                public void checkClientTrusted(X509Certificate[] certs,
+                        String authType) {
+                }
+
+                public void checkServerTrusted(X509Certificate[] certs,
+                        String authType) {
+                }
+
+            } }, new SecureRandom());
+
+            SSLSocketFactory sf = new SSLSocketFactory(sslContext,
+                    SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+
+            Scheme httpsScheme = new Scheme("https", 443, sf);
+            Scheme httpScheme = new Scheme("http", 80, new PlainSocketFactory());
+            SchemeRegistry schemeRegistry = new SchemeRegistry();
+            schemeRegistry.register(httpsScheme);
+            schemeRegistry.register(httpScheme);
+
+            return schemeRegistry;
+
+        } catch (Exception e) {
+            // FIXME: This should probably do something more intelligent!
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * Counts the connections actually opened; requests minus opened
+     * connections gives the number of reused ones.
+     */
+    private final class CountingConnectionOperator extends DefaultClientConnectionOperator {
+
+        CountingConnectionOperator(SchemeRegistry registry) {
+            super(registry);
+        }
+
+        @Override
+        public void openConnection(OperatedClientConnection conn, HttpHost target, InetAddress local,
+                HttpContext context, HttpParams params) throws IOException {
+            super.openConnection(conn, target, local, context, params);
+            opened.incrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import org.restlet.data.CharacterSet;
+import org.restlet.data.MediaType;
+import org.restlet.representation.OutputRepresentation;
+
+/**
+ * JSON array written while its rows are read from the database, one batch
+ * at a time, so that neither the rows nor the document are held in memory.
+ * The first batch is read by the resource, where a failure is still
+ * reported with a proper error status; if it is complete (i.e. the page
+ * requested by the client) nothing else is read.
+ */
+public abstract class JsonListRepresentation<T> extends OutputRepresentation {
+
+    private final List<T> firstBatch;
+
+    private final int batchSize;
+
+    private final boolean complete;
+
+    /**
+     * The rows after firstBatch are read with fetch() unless complete is
+     * true or firstBatch is shorter than batchSize.
+     */
+    protected JsonListRepresentation(List<T> firstBatch, int batchSize, boolean complete) {
+        super(MediaType.APPLICATION_JSON);
+        setCharacterSet(CharacterSet.UTF_8);
+
+        this.firstBatch = firstBatch;
+        this.batchSize = batchSize;
+        this.complete = complete;
+    }
+
+    /**
+     * Returns at most max rows following last.
+     */
+    protected abstract List<T> fetch(T last, int max);
+
+    /**
+     * Writes the JSON object of the row.
+     */
+    protected abstract void writeRow(Writer writer, T row) throws IOException;
+
+    @Override
+    public void write(OutputStream outputStream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+
+        writer.write("[");
+
+        List<T> batch = firstBatch;
+        boolean first = true;
+        while (true) {
+            for (T row : batch) {
+                writer.write(first ? "\n  " : ",\n  ");
+                writeRow(writer, row);
+                first = false;
+            }
+
+            if (complete || batch.size() < batchSize) {
+                break;
+            }
+
+            writer.flush();
+            batch = fetch(batch.get(batch.size() - 1), batchSize);
+        }
+
+        writer.write("\n]\n");
+        writer.flush();
+    }
+
+    /**
+     * Writes "name": "value", with the value quoted as a JSON string (the
+     * listings have always given numbers as strings too) or null.
+     */
+    protected static void writeField(Writer writer, String name, Object value, boolean last) throws IOException {
+        writer.write(quote(name));
+        writer.write(": ");
+        writer.write(value == null ? "null" : quote(value.toString()));
+        if (!last) {
+            writer.write(", ");
+        }
+    }
+
+    public static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+
+}
@@ -25,8 +25,11 @@ public final class MiscUtils {
 	}
 
 	public static String getTimestamp() {
+		return formatTimestamp(new Date());
+	}
+
+	public static String formatTimestamp(Date date) {
 		DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-		Date date = new Date();
 
 		return dateFormat.format(date);
 	}
@@ -0,0 +1,403 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import eu.stratuslab.storage.disk.main.RootApplication;
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+
+/**
+ * Keeps one ssh master connection (ControlMaster) per cloud node, so that
+ * hotplug commands share an already authenticated connection instead of
+ * paying the TCP and key exchange for each command. The masters are held
+ * by this class (the ssh of the nodes' OS does not support ControlPersist)
+ * and closed after an idle period without running sessions. When a master
+ * cannot be established the commands connect directly, as before.
+ *
+ * The number of sessions per node is bounded by the hotplug pool of each
+ * node (see DiskUtils.submitAttachHotplugDisk()).
+ */
+public final class NodeConnectionManager {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private static final int SSH_PORT = 22;
+
+    private static final int CONNECT_TIMEOUT = 5;
+
+    private static final long SOCKET_POLL_MILLIS = 100L;
+
+    private static NodeConnectionManager instance = null;
+
+    private final String keyFile;
+
+    private final String user;
+
+    private final File controlDir;
+
+    private final long idleMillis;
+
+    private final ConcurrentMap<String, MasterConnection> masters = new ConcurrentHashMap<String, MasterConnection>();
+
+    private final ConcurrentMap<String, AtomicInteger> sessions = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private final ScheduledExecutorService sweeper;
+
+    private final AtomicLong opened = new AtomicLong();
+
+    private final AtomicLong reused = new AtomicLong();
+
+    private final AtomicLong direct = new AtomicLong();
+
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * A null control directory disables multiplexing.
+     */
+    public NodeConnectionManager(String keyFile, String user, File controlDir, long idleSeconds) {
+        this.keyFile = keyFile;
+        this.user = user;
+        this.controlDir = controlDir;
+        this.idleMillis = TimeUnit.SECONDS.toMillis(idleSeconds);
+
+        if (controlDir != null) {
+            sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ssh-master-sweeper");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long period = Math.max(1L, idleSeconds / 2);
+            sweeper.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    closeIdleConnections();
+                }
+            }, period, period, TimeUnit.SECONDS);
+        } else {
+            sweeper = null;
+        }
+    }
+
+    public static synchronized NodeConnectionManager getInstance() {
+        if (instance == null) {
+            ServiceConfiguration cfg = RootApplication.CONFIGURATION;
+            File controlDir = cfg.SSH_MULTIPLEXING ? new File(cfg.SSH_CONTROL_DIR) : null;
+            instance = new NodeConnectionManager(cfg.CLOUD_NODE_SSH_KEY, cfg.CLOUD_NODE_ADMIN, controlDir,
+                    cfg.SSH_IDLE_TIMEOUT);
+
+            final NodeConnectionManager manager = instance;
+            Runtime.getRuntime().addShutdownHook(new Thread("ssh-master-shutdown") {
+                @Override
+                public void run() {
+                    manager.closeAll();
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the ssh command (up to and including the destination) to run
+     * a remote command on the node. The remote command and its arguments
+     * must be appended by the caller.
+     */
+    public List<String> createCommand(String node) {
+        List<String> cmd = createBaseCommand();
+
+        File socket = (controlDir != null) ? getMasterSocket(node) : null;
+        if (socket != null) {
+            cmd.add("-o");
+            cmd.add("ControlMaster=no");
+            cmd.add("-S");
+            cmd.add(socket.getAbsolutePath());
+        } else {
+            direct.incrementAndGet();
+        }
+
+        cmd.add(user + "@" + node);
+        return cmd;
+    }
+
+    /**
+     * Returns the listener to submit a command created by createCommand()
+     * with (see ProcessExecutor): the master of the node is not closed while
+     * the command runs, and is idle only from the end of its last session.
+     */
+    public ProcessExecutor.ProcessListener getSessionListener(final String node) {
+        return new ProcessExecutor.ProcessListener() {
+            public void starting() {
+                // Counted under the lock of the master, so that the sweeper
+                // does not close it at the same time.
+                MasterConnection master = masters.get(node);
+                if (master == null) {
+                    getSessions(node).incrementAndGet();
+                    return;
+                }
+                synchronized (master) {
+                    getSessions(node).incrementAndGet();
+                }
+            }
+
+            public void exited() {
+                MasterConnection master = masters.get(node);
+                if (master != null) {
+                    master.touch();
+                }
+                getSessions(node).decrementAndGet();
+            }
+        };
+    }
+
+    public int getActiveSessionCount(String node) {
+        AtomicInteger count = sessions.get(node);
+        return (count != null) ? count.get() : 0;
+    }
+
+    public long getOpenedCount() {
+        return opened.get();
+    }
+
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    public long getDirectCount() {
+        return direct.get();
+    }
+
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+
+    public int getMasterCount() {
+        return masters.size();
+    }
+
+    public void closeAll() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+        for (String node : masters.keySet()) {
+            MasterConnection master = masters.remove(node);
+            if (master != null) {
+                master.close();
+            }
+        }
+    }
+
+    private List<String> createBaseCommand() {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add("ssh");
+        cmd.add("-p");
+        cmd.add(String.valueOf(SSH_PORT));
+        cmd.add("-o");
+        cmd.add("ConnectTimeout=" + CONNECT_TIMEOUT);
+        cmd.add("-o");
+        cmd.add("StrictHostKeyChecking=no");
+        cmd.add("-i");
+        cmd.add(keyFile);
+        return cmd;
+    }
+
+    /**
+     * Returns the socket of a live master for the node, starting one if
+     * needed, or null if no master could be started.
+     */
+    private File getMasterSocket(String node) {
+
+        MasterConnection master = masters.get(node);
+        if (master == null) {
+            MasterConnection created = new MasterConnection(node);
+            master = masters.putIfAbsent(node, created);
+            if (master == null) {
+                master = created;
+            }
+        }
+
+        synchronized (master) {
+            if (master.isUsable()) {
+                master.touch();
+                reused.incrementAndGet();
+                return master.socket;
+            }
+
+            master.close();
+            if (master.start()) {
+                opened.incrementAndGet();
+                return master.socket;
+            }
+        }
+
+        masters.remove(node, master);
+        return null;
+    }
+
+    private AtomicInteger getSessions(String node) {
+        AtomicInteger count = sessions.get(node);
+        if (count == null) {
+            AtomicInteger created = new AtomicInteger();
+            count = sessions.putIfAbsent(node, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        return count;
+    }
+
+    private void closeIdleConnections() {
+        long limit = System.currentTimeMillis() - idleMillis;
+        for (String node : masters.keySet()) {
+            MasterConnection master = masters.get(node);
+            if (master == null) {
+                continue;
+            }
+            synchronized (master) {
+                if (getActiveSessionCount(node) > 0) {
+                    continue;
+                }
+                if (master.lastUsed < limit || !master.isUsable()) {
+                    masters.remove(node, master);
+                    master.close();
+                    evicted.incrementAndGet();
+                    LOGGER.info("closed ssh master connection to " + node);
+                }
+            }
+        }
+    }
+
+    private class MasterConnection {
+
+        private final String node;
+
+        private final File socket;
+
+        private Process process = null;
+
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        MasterConnection(String node) {
+            this.node = node;
+            this.socket = new File(controlDir, node.replaceAll("[^A-Za-z0-9._-]", "_"));
+        }
+
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+
+        boolean isUsable() {
+            return process != null && isAlive(process) && socket.exists();
+        }
+
+        /**
+         * Starts the master and waits until its socket is available (i.e.
+         * the connection is authenticated).
+         */
+        boolean start() {
+
+            if (socket.exists() && !socket.delete()) {
+                LOGGER.warning("cannot remove stale ssh control socket " + socket);
+                return false;
+            }
+
+            List<String> cmd = createBaseCommand();
+            cmd.add("-o");
+            cmd.add("ServerAliveInterval=30");
+            cmd.add("-M");
+            cmd.add("-N");
+            cmd.add("-S");
+            cmd.add(socket.getAbsolutePath());
+            cmd.add(user + "@" + node);
+
+            ProcessBuilder pb = new ProcessBuilder(cmd);
+            pb.redirectErrorStream(true);
+
+            try {
+                process = pb.start();
+            } catch (IOException e) {
+                LOGGER.warning("cannot start ssh master connection to " + node + ": " + e.getMessage());
+                return false;
+            }
+            FileUtils.closeIgnoringError(process.getOutputStream());
+            logOutput(node, process.getInputStream());
+
+            long limit = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(CONNECT_TIMEOUT + 1);
+            while (System.currentTimeMillis() < limit) {
+                if (socket.exists()) {
+                    touch();
+                    LOGGER.info("opened ssh master connection to " + node);
+                    return true;
+                }
+                if (!isAlive(process)) {
+                    break;
+                }
+                try {
+                    Thread.sleep(SOCKET_POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            LOGGER.warning("ssh master connection to " + node + " not available; using direct connections");
+            close();
+            return false;
+        }
+
+        void close() {
+            if (process != null) {
+                process.destroy();
+                process = null;
+            }
+            if (socket.exists() && !socket.delete()) {
+                LOGGER.warning("cannot remove ssh control socket " + socket);
+            }
+        }
+    }
+
+    private static boolean isAlive(Process process) {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    private static void logOutput(final String node, final InputStream output) {
+        Thread gobbler = new Thread("ssh-master-" + node) {
+            @Override
+            public void run() {
+                BufferedReader reader = null;
+                try {
+                    reader = new BufferedReader(new InputStreamReader(output, "UTF-8"));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        LOGGER.info("ssh master " + node + ": " + line);
+                    }
+                } catch (IOException consumed) {
+                    // master is gone
+                } finally {
+                    FileUtils.closeIgnoringError(reader);
+                }
+            }
+        };
+        gobbler.setDaemon(true);
+        gobbler.start();
+    }
+
+}
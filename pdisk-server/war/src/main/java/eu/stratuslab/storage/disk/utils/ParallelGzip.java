@@ -0,0 +1,281 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import eu.stratuslab.storage.disk.main.RootApplication;
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+
+/**
+ * Block-parallel gzip compression (same idea as pigz). The input is cut in
+ * chunks which are compressed on a pool of threads, each chunk becoming a
+ * complete gzip member; members are written in order, which gives a
+ * standard multi-member gzip stream that gunzip, pigz or any RFC 1952
+ * reader inflates to the original data. A few chunks per thread are kept
+ * in flight so that memory use stays bounded whatever the image size.
+ */
+public final class ParallelGzip {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private static final int OS_UNKNOWN = 255;
+
+    private static final int TRAILER_SIZE = 8;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int CHUNKS_PER_THREAD = 2;
+
+    private static ParallelGzip instance = null;
+
+    private final ThreadPoolExecutor executor;
+
+    private final int chunkSize;
+
+    private final int maxInFlight;
+
+    private final AtomicLong zeroChunks = new AtomicLong();
+
+    private volatile byte[] zeroMember = null;
+
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    public ParallelGzip(int threads, int chunkSize) {
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new CompressorFactory());
+        this.chunkSize = chunkSize;
+        this.maxInFlight = threads * CHUNKS_PER_THREAD;
+    }
+
+    /**
+     * Compressions running in parallel share the same threads, so the
+     * server never uses more than disk.store.compression.threads cores.
+     */
+    public static synchronized ParallelGzip getInstance() {
+        if (instance == null) {
+            ServiceConfiguration cfg = RootApplication.CONFIGURATION;
+            instance = new ParallelGzip(cfg.COMPRESSION_THREADS, cfg.COMPRESSION_CHUNK_SIZE);
+        }
+        return instance;
+    }
+
+    public long compress(File source, File target) throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(target);
+            try {
+                return compress(in, out, new AtomicLong());
+            } finally {
+                FileUtils.closeRaisingError(out, target.getPath());
+            }
+        } finally {
+            FileUtils.closeIgnoringError(in);
+        }
+    }
+
+    /**
+     * Compresses the whole input into out and returns the number of bytes
+     * read. bytesRead is incremented as chunks are written. Neither stream
+     * is closed.
+     */
+    public long compress(InputStream in, OutputStream out, AtomicLong bytesRead) throws IOException {
+
+        OutputStream os = new BufferedOutputStream(out, BUFFER_SIZE);
+        LinkedList<Future<byte[]>> inFlight = new LinkedList<Future<byte[]>>();
+
+        long total = 0L;
+        try {
+            byte[] chunk;
+            while ((chunk = readChunk(in)) != null) {
+                if (inFlight.size() >= maxInFlight) {
+                    os.write(waitFor(inFlight.removeFirst()));
+                }
+                inFlight.add(executor.submit(new MemberCompressor(chunk)));
+
+                total += chunk.length;
+                bytesRead.addAndGet(chunk.length);
+            }
+
+            if (total == 0L) {
+                // An empty file still has to be a valid gzip stream.
+                inFlight.add(executor.submit(new MemberCompressor(new byte[0])));
+            }
+
+            while (!inFlight.isEmpty()) {
+                os.write(waitFor(inFlight.removeFirst()));
+            }
+            os.flush();
+        } finally {
+            for (Future<byte[]> pending : inFlight) {
+                pending.cancel(true);
+            }
+        }
+
+        return total;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Number of chunks of zeros (holes of sparse images) for which the
+     * compressed member was reused instead of deflating them again.
+     */
+    public long getZeroChunkCount() {
+        return zeroChunks.get();
+    }
+
+    /**
+     * The member of a full chunk of zeros is always the same: it is
+     * compressed once (two threads may both do it the first time, with the
+     * same result).
+     */
+    private byte[] getZeroMember() {
+        byte[] member = zeroMember;
+        if (member == null) {
+            member = new MemberCompressor(new byte[chunkSize]).compress();
+            zeroMember = member;
+        }
+        return member;
+    }
+
+    /**
+     * Returns the next chunk, shorter than chunkSize only at the end of the
+     * input, or null when there is nothing left to read.
+     */
+    private byte[] readChunk(InputStream in) throws IOException {
+        byte[] buffer = new byte[chunkSize];
+
+        int filled = 0;
+        int n;
+        while (filled < chunkSize && (n = in.read(buffer, filled, chunkSize - filled)) >= 0) {
+            filled += n;
+        }
+
+        if (filled == 0) {
+            return null;
+        }
+        if (filled < chunkSize) {
+            byte[] last = new byte[filled];
+            System.arraycopy(buffer, 0, last, 0, filled);
+            return last;
+        }
+        return buffer;
+    }
+
+    private static byte[] waitFor(Future<byte[]> member) throws IOException {
+        try {
+            return member.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while compressing");
+        } catch (ExecutionException e) {
+            IOException ioe = new IOException("compression failed: " + e.getCause());
+            ioe.initCause(e.getCause());
+            throw ioe;
+        }
+    }
+
+    /**
+     * Deflates one chunk into a complete gzip member: 10 byte header, raw
+     * deflate data, then the CRC32 and length of the chunk. A full chunk of
+     * zeros gets the member computed once.
+     */
+    private final class MemberCompressor implements Callable<byte[]> {
+
+        private final byte[] chunk;
+
+        MemberCompressor(byte[] chunk) {
+            this.chunk = chunk;
+        }
+
+        public byte[] call() {
+            if (chunk.length == chunkSize && ZeroBlocks.isZero(chunk, 0, chunk.length)) {
+                zeroChunks.incrementAndGet();
+                return getZeroMember();
+            }
+            return compress();
+        }
+
+        byte[] compress() {
+            ByteArrayOutputStream member = new ByteArrayOutputStream(chunk.length / 2 + 64);
+
+            writeHeader(member);
+
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            deflater.setInput(chunk);
+            deflater.finish();
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                member.write(buffer, 0, n);
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(chunk);
+
+            byte[] trailer = new byte[TRAILER_SIZE];
+            writeInt(trailer, 0, crc.getValue());
+            writeInt(trailer, 4, chunk.length);
+            member.write(trailer, 0, TRAILER_SIZE);
+
+            return member.toByteArray();
+        }
+
+        private void writeHeader(ByteArrayOutputStream member) {
+            member.write(GZIP_MAGIC & 0xff);
+            member.write(GZIP_MAGIC >> 8);
+            member.write(Deflater.DEFLATED);
+            // flags, modification time (4 bytes), extra flags
+            for (int i = 0; i < 6; i++) {
+                member.write(0);
+            }
+            member.write(OS_UNKNOWN);
+        }
+
+        private void writeInt(byte[] buffer, int offset, long value) {
+            for (int i = 0; i < 4; i++) {
+                buffer[offset + i] = (byte) (value >> (8 * i));
+            }
+        }
+    }
+
+    private static final class CompressorFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "gzip-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
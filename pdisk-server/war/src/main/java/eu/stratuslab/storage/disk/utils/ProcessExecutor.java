@@ -0,0 +1,307 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs child processes asynchronously. Each command type (usually the name
+ * of the executable) has its own pool, so at most maxProcessesPerType
+ * processes of a type run at the same time; further requests wait in a
+ * queue. Processes exceeding their timeout, or whose future is cancelled,
+ * are killed.
+ */
+public final class ProcessExecutor {
+
+    private static final long IDLE_THREAD_SECONDS = 60L;
+
+    private static final long POLL_MILLIS = 100L;
+
+    private static final long KILLED_OUTPUT_WAIT_MILLIS = 1000L;
+
+    private final int maxProcessesPerType;
+
+    private final ConcurrentMap<String, ThreadPoolExecutor> executors = new ConcurrentHashMap<String, ThreadPoolExecutor>();
+
+    private final ScheduledExecutorService watchdog;
+
+    public ProcessExecutor(int maxProcessesPerType) {
+        this.maxProcessesPerType = maxProcessesPerType;
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("process-watchdog"));
+    }
+
+    /**
+     * Queues the command. The standard error is merged into the output. A
+     * timeout of zero or less means that the process may run forever.
+     */
+    public Future<ProcessResult> submit(String commandType, ProcessBuilder pb, long timeout, TimeUnit unit) {
+        return submit(commandType, maxProcessesPerType, pb, timeout, unit);
+    }
+
+    /**
+     * Same as submit(commandType, pb, timeout, unit) with a specific limit
+     * for this command type. The limit is fixed by the first submission of
+     * the type.
+     */
+    public Future<ProcessResult> submit(String commandType, int maxProcesses, ProcessBuilder pb, long timeout,
+            TimeUnit unit) {
+        return submit(commandType, maxProcesses, pb, timeout, unit, null);
+    }
+
+    /**
+     * Same as submit(commandType, maxProcesses, pb, timeout, unit); the
+     * listener, if not null, is told when the process starts and exits.
+     */
+    public Future<ProcessResult> submit(String commandType, int maxProcesses, ProcessBuilder pb, long timeout,
+            TimeUnit unit, ProcessListener listener) {
+
+        pb.redirectErrorStream(true);
+
+        ProcessTask task = new ProcessTask(new ProcessCallable(pb, timeout, unit, listener));
+        getExecutor(commandType, maxProcesses).execute(task);
+
+        return task;
+    }
+
+    /**
+     * Number of processes of the given type running or waiting to run.
+     */
+    public int getPendingCount(String commandType) {
+        ThreadPoolExecutor executor = executors.get(commandType);
+        if (executor == null) {
+            return 0;
+        }
+        return executor.getActiveCount() + executor.getQueue().size();
+    }
+
+    public void shutdown() {
+        for (ExecutorService executor : executors.values()) {
+            executor.shutdownNow();
+        }
+        watchdog.shutdownNow();
+    }
+
+    private ThreadPoolExecutor getExecutor(String commandType, int maxProcesses) {
+        ThreadPoolExecutor executor = executors.get(commandType);
+        if (executor == null) {
+            ThreadPoolExecutor created = new ThreadPoolExecutor(maxProcesses, maxProcesses,
+                    IDLE_THREAD_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new NamedThreadFactory("process-" + commandType));
+            created.allowCoreThreadTimeOut(true);
+
+            executor = executors.putIfAbsent(commandType, created);
+            if (executor == null) {
+                executor = created;
+            } else {
+                created.shutdown();
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Follows the life of a submitted process. starting() is called just
+     * before the process is started, and exited() once it is gone (or could
+     * not be started); neither is called for a request cancelled while it
+     * waits in the queue.
+     */
+    public interface ProcessListener {
+
+        void starting();
+
+        void exited();
+    }
+
+    private class ProcessCallable implements Callable<ProcessResult> {
+
+        private final ProcessBuilder pb;
+
+        private final long timeout;
+
+        private final TimeUnit unit;
+
+        private final ProcessListener listener;
+
+        private volatile Process process = null;
+
+        private volatile boolean cancelled = false;
+
+        ProcessCallable(ProcessBuilder pb, long timeout, TimeUnit unit, ProcessListener listener) {
+            this.pb = pb;
+            this.timeout = timeout;
+            this.unit = unit;
+            this.listener = listener;
+        }
+
+        public ProcessResult call() throws IOException, InterruptedException {
+
+            if (cancelled) {
+                throw new InterruptedException("cancelled before start");
+            }
+
+            if (listener == null) {
+                return run();
+            }
+
+            listener.starting();
+            try {
+                return run();
+            } finally {
+                listener.exited();
+            }
+        }
+
+        private ProcessResult run() throws IOException, InterruptedException {
+
+            final Process p = pb.start();
+            process = p;
+
+            final AtomicBoolean timedOut = new AtomicBoolean(false);
+            ScheduledFuture<?> kill = null;
+            if (timeout > 0) {
+                kill = watchdog.schedule(new Runnable() {
+                    public void run() {
+                        timedOut.set(true);
+                        p.destroy();
+                    }
+                }, timeout, unit);
+            }
+
+            OutputReader reader = new OutputReader(p.getInputStream());
+            reader.start();
+
+            try {
+                int returnCode = p.waitFor();
+                waitForOutput(reader, timedOut);
+                return new ProcessResult(returnCode, reader.getOutput(), timedOut.get());
+            } catch (InterruptedException e) {
+                p.destroy();
+                throw e;
+            } finally {
+                if (kill != null) {
+                    kill.cancel(false);
+                }
+                if (cancelled) {
+                    p.destroy();
+                }
+            }
+        }
+
+        /**
+         * Children of a killed process may keep the output pipe open, so
+         * the output of a killed process is only waited for a short time.
+         */
+        private void waitForOutput(OutputReader reader, AtomicBoolean timedOut) throws InterruptedException {
+            while (reader.isAlive()) {
+                if (timedOut.get() || cancelled) {
+                    reader.join(KILLED_OUTPUT_WAIT_MILLIS);
+                    return;
+                }
+                reader.join(POLL_MILLIS);
+            }
+        }
+
+        void kill() {
+            cancelled = true;
+            Process p = process;
+            if (p != null) {
+                p.destroy();
+            }
+        }
+    }
+
+    /**
+     * Reads the output in its own thread so that the worker can notice a
+     * killed process even when the pipe stays open.
+     */
+    private static class OutputReader extends Thread {
+
+        private final InputStream stream;
+
+        private final StringBuffer outputBuf = new StringBuffer();
+
+        OutputReader(InputStream stream) {
+            super("process-output");
+            setDaemon(true);
+            this.stream = stream;
+        }
+
+        @Override
+        public void run() {
+            BufferedReader stdOutErr = null;
+            try {
+                stdOutErr = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+                String line;
+                while ((line = stdOutErr.readLine()) != null) {
+                    outputBuf.append(line);
+                    outputBuf.append("\n");
+                }
+            } catch (IOException consumed) {
+                // Stream closed because the process was killed.
+            } finally {
+                FileUtils.closeIgnoringError(stdOutErr);
+            }
+        }
+
+        String getOutput() {
+            return outputBuf.toString();
+        }
+    }
+
+    /**
+     * Blocking reads on the process output do not react to interrupts, so
+     * cancelling the future also kills the process.
+     */
+    private static class ProcessTask extends FutureTask<ProcessResult> {
+
+        private final ProcessCallable callable;
+
+        ProcessTask(ProcessCallable callable) {
+            super(callable);
+            this.callable = callable;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                callable.kill();
+            }
+            return cancelled;
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
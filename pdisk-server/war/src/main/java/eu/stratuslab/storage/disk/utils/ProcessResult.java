@@ -0,0 +1,35 @@
+package eu.stratuslab.storage.disk.utils;
+
+/**
+ * Exit status and merged stdout/stderr of a finished child process.
+ */
+public final class ProcessResult {
+
+    private final int returnCode;
+
+    private final String output;
+
+    private final boolean timedOut;
+
+    public ProcessResult(int returnCode, String output, boolean timedOut) {
+        this.returnCode = returnCode;
+        this.output = output;
+        this.timedOut = timedOut;
+    }
+
+    public int getReturnCode() {
+        return returnCode;
+    }
+
+    public String getOutput() {
+        return output;
+    }
+
+    /**
+     * True if the process was killed because it exceeded its timeout.
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+}
@@ -1,17 +1,18 @@
 package eu.stratuslab.storage.disk.utils;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.File;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import org.restlet.data.Status;
 import org.restlet.resource.ResourceException;
 
+import eu.stratuslab.storage.disk.main.RootApplication;
+
 public final class ProcessUtils {
 
     public enum VerboseLevel {
@@ -21,6 +22,14 @@ public final class ProcessUtils {
     private static final Logger LOGGER = Logger.getLogger("org.restlet");
     public static final VerboseLevel verboseLevel = VerboseLevel.Debug;
 
+    /**
+     * Timeout value disabling the timeout, for long copies whose duration
+     * depends on the size of the disk.
+     */
+    public static final long NO_TIMEOUT = 0L;
+
+    private static ProcessExecutor executor = null;
+
     private ProcessUtils() {
 
     }
@@ -29,66 +38,124 @@ public final class ProcessUtils {
         executeWithOutput(pb, errorMsg);
     }
 
+    public static void execute(ProcessBuilder pb, String errorMsg, long timeoutSeconds) {
+        executeWithOutput(pb, errorMsg, timeoutSeconds);
+    }
+
+    /**
+     * Runs the command with the default timeout (disk.store.process.timeout).
+     */
     public static String executeWithOutput(ProcessBuilder pb, String errorMsg) {
-        int returnCode = 1;
-        String stdout = "";
-        String stderr = "";
-        Process process;
-        StringBuffer outputBuf = new StringBuffer();
+        return executeWithOutput(pb, errorMsg, RootApplication.CONFIGURATION.PROCESS_TIMEOUT);
+    }
 
-        pb.redirectErrorStream(true);
+    public static String executeWithOutput(ProcessBuilder pb, String errorMsg, long timeoutSeconds) {
 
         if (verboseLevel == VerboseLevel.Debug) {
             info(pb);
         }
 
-        try {
-            process = pb.start();
+        Future<ProcessResult> future = submit(pb, timeoutSeconds);
 
-            BufferedReader stdOutErr = new BufferedReader(
-                    new InputStreamReader(process.getInputStream(), "UTF-8"));
-            String line;
-            while ((line = stdOutErr.readLine()) != null) {
-                outputBuf.append(line);
-                outputBuf.append("\n");
-            }
+        return getOutput(future, pb, errorMsg, timeoutSeconds);
+    }
 
-            processWait(process);
+    /**
+     * Waits for a command started with submit() and returns its output.
+     * Failures (including a non-zero exit status) raise a ResourceException
+     * with the given message.
+     */
+    public static String getOutput(Future<ProcessResult> future, ProcessBuilder pb, String errorMsg,
+            long timeoutSeconds) {
 
-            stdOutErr.close();
+        ProcessResult result;
+        try {
+            result = future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
 
-            returnCode = process.exitValue();
-            stdout = streamToString(process.getInputStream());
-            stderr = streamToString(process.getErrorStream());
-        } catch (IOException e) {
+            String msg = "Interrupted while executing command: " + MiscUtils.join(pb.command(), " ") + ".\n"
+                    + errorMsg + ".";
+            LOGGER.severe(msg);
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, msg);
+        } catch (ExecutionException e) {
 
             String msg = "An error occurred while executing command: "
                     + MiscUtils.join(pb.command(), " ") + ".\n" + errorMsg
                     + ".";
 
             LOGGER.severe(msg);
-            LOGGER.severe(e.getMessage());
+            LOGGER.severe(e.getCause().getMessage());
 
             throw new ResourceException(Status.SERVER_ERROR_INTERNAL, msg);
         }
 
-        if (returnCode != 0) {
+        if (result.isTimedOut()) {
+
+            String msg = "Command timed out after " + timeoutSeconds + " s: "
+                    + MiscUtils.join(pb.command(), " ") + ".\n"
+                    + result.getOutput() + "\n" + errorMsg + ".";
+
+            LOGGER.severe(msg);
 
-            process.getErrorStream();
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, msg);
+        }
+
+        if (result.getReturnCode() != 0) {
 
             String msg = "An error occurred while executing command: "
                     + MiscUtils.join(pb.command(), " ") + ".\n"
-                    + outputBuf.toString() + "\n" + errorMsg
-                    + ".\nReturn code was: " + String.valueOf(returnCode);
+                    + result.getOutput() + "\n" + errorMsg
+                    + ".\nReturn code was: " + String.valueOf(result.getReturnCode());
 
             LOGGER.severe(msg);
-            LOGGER.severe("Standard Output: \n" + stdout + "\n");
-            LOGGER.severe("Standard Error: \n" + stderr + "\n");
 
             throw new ResourceException(Status.SERVER_ERROR_INTERNAL, msg);
         }
 
-        return outputBuf.toString();
+        return result.getOutput();
+    }
+
+    /**
+     * Starts the command asynchronously. Standard error is merged into the
+     * output. The number of concurrent processes is limited per command
+     * type (see getCommandType()); extra commands are queued.
+     */
+    public static Future<ProcessResult> submit(ProcessBuilder pb, long timeoutSeconds) {
+        return submit(getCommandType(pb), pb, timeoutSeconds);
+    }
+
+    public static Future<ProcessResult> submit(String commandType, ProcessBuilder pb, long timeoutSeconds) {
+        return getExecutor().submit(commandType, pb, timeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    public static Future<ProcessResult> submit(String commandType, int maxProcesses, ProcessBuilder pb,
+            long timeoutSeconds) {
+        return getExecutor().submit(commandType, maxProcesses, pb, timeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    public static Future<ProcessResult> submit(String commandType, int maxProcesses, ProcessBuilder pb,
+            long timeoutSeconds, ProcessExecutor.ProcessListener listener) {
+        return getExecutor().submit(commandType, maxProcesses, pb, timeoutSeconds, TimeUnit.SECONDS, listener);
+    }
+
+    /**
+     * The command type is the name of the executable, without its path.
+     */
+    public static String getCommandType(ProcessBuilder pb) {
+        List<String> command = pb.command();
+        if (command.isEmpty()) {
+            return "";
+        }
+        return new File(command.get(0)).getName();
+    }
+
+    private static synchronized ProcessExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ProcessExecutor(RootApplication.CONFIGURATION.PROCESS_MAX_PER_COMMAND);
+        }
+        return executor;
     }
 
     private static void info(ProcessBuilder processBuilder) {
@@ -108,64 +175,22 @@ public final class ProcessUtils {
         return res.toString();
     }
 
+    /**
+     * Returns the exit status of the command, or -1 if it could not be
+     * started, timed out or was interrupted.
+     */
     public static int executeGetStatus(ProcessBuilder pb) {
-        Process process;
+        Future<ProcessResult> future = submit(pb, RootApplication.CONFIGURATION.PROCESS_TIMEOUT);
         try {
-            process = pb.start();
-            return processWaitGetStatus(process);
-        } catch (IOException e) {
+            ProcessResult result = future.get();
+            return result.isTimedOut() ? -1 : result.getReturnCode();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (ExecutionException e) {
             return -1;
         }
     }
 
-    private static void processWait(Process process) {
-        boolean blocked = true;
-        while (blocked) {
-            try {
-                process.waitFor();
-                blocked = false;
-            } catch (InterruptedException consumed) {
-                // just continue to wait
-            }
-        }
-
-    }
-
-    private static int processWaitGetStatus(Process process) {
-        int rc = -1;
-        boolean blocked = true;
-        while (blocked) {
-            try {
-                rc = process.waitFor();
-                blocked = false;
-            } catch (InterruptedException consumed) {
-                // just continue to wait
-            }
-        }
-        return rc;
-    }
-
-    private static String streamToString(InputStream is) {
-
-        StringBuilder sb = new StringBuilder();
-        char[] c = new char[1024];
-
-        Reader r = null;
-
-        try {
-
-            r = new InputStreamReader(is, "UTF-8");
-            for (int n = r.read(c); n > 0; n = r.read(c)) {
-                sb.append(c, 0, n);
-            }
-
-        } catch (IOException consumed) {
-            // Do nothing.
-        } finally {
-            FileUtils.closeIgnoringError(r);
-        }
-
-        return sb.toString();
-    }
-
 }
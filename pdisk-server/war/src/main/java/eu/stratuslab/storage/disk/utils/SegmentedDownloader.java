@@ -0,0 +1,268 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Downloads a URL with several connections, each one fetching a range of
+ * the contents and writing it at its offset in the target file. A segment
+ * that fails is retried from where it stopped, with a Range starting at
+ * the first missing byte. A response whose Content-Range does not start at
+ * that byte is treated as a failure rather than written at the wrong
+ * offset. The client must allow as many connections per route as there are
+ * segments.
+ */
+public final class SegmentedDownloader {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final HttpClient client;
+
+    private final int maxSegments;
+
+    private final long minSegmentSize;
+
+    private final int retries;
+
+    public SegmentedDownloader(HttpClient client, int maxSegments, long minSegmentSize, int retries) {
+        this.client = client;
+        this.maxSegments = maxSegments;
+        this.minSegmentSize = minSegmentSize;
+        this.retries = retries;
+    }
+
+    /**
+     * Returns the length of the contents if the server accepts byte ranges
+     * for this URL, -1 otherwise (or if the contents are sent with a
+     * content encoding, for which ranges would apply to the encoded bytes).
+     */
+    public long probe(String url) throws IOException {
+        HttpHead head = new HttpHead(url);
+        try {
+            HttpResponse response = client.execute(head);
+
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK
+                    || !hasValue(response.getFirstHeader("Accept-Ranges"), "bytes")
+                    || response.getFirstHeader("Content-Encoding") != null) {
+                return -1L;
+            }
+
+            Header length = response.getFirstHeader("Content-Length");
+            return (length != null) ? Long.parseLong(length.getValue().trim()) : -1L;
+
+        } catch (NumberFormatException e) {
+            return -1L;
+        } finally {
+            head.releaseConnection();
+        }
+    }
+
+    /**
+     * Number of segments used for contents of this length; 1 means that a
+     * segmented download is not worth it.
+     */
+    public int getSegmentCount(long length) {
+        long count = length / Math.max(minSegmentSize, 1L);
+        return (int) Math.max(1L, Math.min(count, maxSegments));
+    }
+
+    /**
+     * Downloads the length bytes of the URL into the target (which is not
+     * truncated, it may be a block device). bytesCopied is incremented as
+     * the segments are written.
+     */
+    public void download(String url, long length, File target, AtomicLong bytesCopied) throws IOException {
+
+        int count = getSegmentCount(length);
+        long segmentSize = (length + count - 1) / count;
+
+        ExecutorService executor = Executors.newFixedThreadPool(count, new SegmentFactory());
+        try {
+            List<Future<Void>> segments = new ArrayList<Future<Void>>();
+            for (long first = 0L; first < length; first += segmentSize) {
+                long last = Math.min(first + segmentSize, length) - 1;
+                segments.add(executor.submit(new Segment(url, first, last, target, bytesCopied)));
+            }
+
+            for (Future<Void> segment : segments) {
+                waitFor(segment);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void waitFor(Future<Void> segment) throws IOException {
+        try {
+            segment.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while downloading");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            IOException ioe = new IOException("download failed: " + e.getCause());
+            ioe.initCause(e.getCause());
+            throw ioe;
+        }
+    }
+
+    private static boolean hasValue(Header header, String value) {
+        return header != null && header.getValue().toLowerCase().contains(value);
+    }
+
+    /**
+     * First byte of a "bytes first-last/length" Content-Range, or -1 if
+     * the header is missing or malformed.
+     */
+    private static long getRangeStart(Header contentRange) {
+        if (contentRange == null) {
+            return -1L;
+        }
+        String value = contentRange.getValue().trim();
+        if (!value.startsWith("bytes ")) {
+            return -1L;
+        }
+        int dash = value.indexOf('-');
+        if (dash < 0) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(value.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private final class Segment implements Callable<Void> {
+
+        private final String url;
+
+        private final long last;
+
+        private final File target;
+
+        private final AtomicLong bytesCopied;
+
+        private long position;
+
+        Segment(String url, long first, long last, File target, AtomicLong bytesCopied) {
+            this.url = url;
+            this.position = first;
+            this.last = last;
+            this.target = target;
+            this.bytesCopied = bytesCopied;
+        }
+
+        public Void call() throws IOException {
+            RandomAccessFile out = new RandomAccessFile(target, "rw");
+            try {
+                for (int attempt = 0;; attempt++) {
+                    try {
+                        fetch(out);
+                        return null;
+                    } catch (IOException e) {
+                        if (attempt >= retries || Thread.currentThread().isInterrupted()) {
+                            throw e;
+                        }
+                        LOGGER.warning("Retrying download of " + url + " from byte " + position + ": "
+                                + e.getMessage());
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        private void fetch(RandomAccessFile out) throws IOException {
+            HttpGet get = new HttpGet(url);
+            get.setHeader("Range", "bytes=" + position + "-" + last);
+            try {
+                HttpResponse response = client.execute(get);
+                HttpEntity entity = response.getEntity();
+
+                int status = response.getStatusLine().getStatusCode();
+                if (status != HttpStatus.SC_PARTIAL_CONTENT) {
+                    EntityUtils.consume(entity);
+                    throw new IOException("range request on " + url + " returned status " + status);
+                }
+
+                Header contentRange = response.getFirstHeader("Content-Range");
+                long start = getRangeStart(contentRange);
+                if (start != position) {
+                    EntityUtils.consume(entity);
+                    throw new IOException("range request on " + url + " for byte " + position + " returned "
+                            + ((contentRange != null) ? contentRange.getValue() : "no Content-Range"));
+                }
+
+                InputStream is = entity.getContent();
+                try {
+                    copy(is, out);
+                } finally {
+                    FileUtils.closeIgnoringError(is);
+                }
+            } catch (IOException e) {
+                get.abort();
+                throw e;
+            } finally {
+                get.releaseConnection();
+            }
+
+            if (position <= last) {
+                throw new IOException("connection closed at byte " + position + " of " + url);
+            }
+        }
+
+        private void copy(InputStream is, RandomAccessFile out) throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (position <= last) {
+                int n = is.read(buffer, 0, (int) Math.min(buffer.length, last + 1 - position));
+                if (n < 0) {
+                    break;
+                }
+                out.seek(position);
+                out.write(buffer, 0, n);
+                position += n;
+                bytesCopied.addAndGet(n);
+            }
+        }
+    }
+
+    private static final class SegmentFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "download-segment-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Makes sure that only one operation runs per key at a time. The first
+ * caller (the leader) does the work; callers arriving while it runs get
+ * the leader's result as soon as it is available instead of doing the work
+ * again. Once finished, the key is free and the next caller leads a new
+ * flight.
+ */
+public final class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, Flight<V>> flights = new ConcurrentHashMap<K, Flight<V>>();
+
+    /**
+     * Runs the task in the calling thread, or waits for the flight already
+     * running for this key. Exceptions of the task are wrapped in an
+     * ExecutionException, for the leader as well as for the followers.
+     */
+    public V execute(K key, Callable<V> task) throws ExecutionException, InterruptedException {
+
+        Flight<V> flight = start(key);
+        if (flight == null) {
+            Future<V> running = find(key);
+            if (running != null) {
+                return running.get();
+            }
+            // The flight ended in between, lead a new one.
+            return execute(key, task);
+        }
+
+        try {
+            flight.succeed(task.call());
+        } catch (Exception e) {
+            flight.fail(e);
+        } catch (Error e) {
+            flight.fail(e);
+            throw e;
+        }
+        return flight.get();
+    }
+
+    /**
+     * Registers a flight whose result is given later through succeed() or
+     * fail(), typically from another thread. Returns null when a flight is
+     * already running for this key.
+     */
+    public Flight<V> start(K key) {
+        Flight<V> flight = new Flight<V>(this, key);
+        return (flights.putIfAbsent(key, flight) == null) ? flight : null;
+    }
+
+    /**
+     * Returns the flight running for this key, or null.
+     */
+    public Future<V> find(K key) {
+        return flights.get(key);
+    }
+
+    public boolean isRunning(K key) {
+        return flights.containsKey(key);
+    }
+
+    private void finished(K key, Flight<V> flight) {
+        flights.remove(key, flight);
+    }
+
+    /**
+     * Result of one flight. The first call to succeed() or fail() completes
+     * it, releases the key and wakes up the waiting followers; later calls
+     * are ignored.
+     */
+    public static final class Flight<V> extends FutureTask<V> {
+
+        private final SingleFlight<?, V> owner;
+
+        private final Object key;
+
+        @SuppressWarnings("unchecked")
+        private Flight(SingleFlight<?, V> owner, Object key) {
+            super((Callable<V>) NOTHING);
+            this.owner = owner;
+            this.key = key;
+        }
+
+        public void succeed(V value) {
+            set(value);
+        }
+
+        public void fail(Throwable cause) {
+            setException(cause);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void done() {
+            ((SingleFlight<Object, V>) owner).finished(key, this);
+        }
+    }
+
+    private static final Callable<Object> NOTHING = new Callable<Object>() {
+        public Object call() {
+            return null;
+        }
+    };
+
+}
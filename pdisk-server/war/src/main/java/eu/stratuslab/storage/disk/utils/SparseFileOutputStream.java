@@ -0,0 +1,110 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Replaces FileOutputStream for images written to regular files (upload
+ * cache, file backend volumes). A new (or empty) file gets no blocks of
+ * zeros so that it is sparse, and its size is set on close, trailing zeros
+ * included. An existing file is never truncated: like SegmentedDownloader,
+ * every byte is written over its previous contents and it keeps its length
+ * if that is longer than what was written.
+ */
+public final class SparseFileOutputStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private final boolean skipZeros;
+
+    private long position = 0L;
+
+    private boolean closed = false;
+
+    private SparseFileOutputStream(File target, boolean skipZeros) throws IOException {
+        this.skipZeros = skipZeros;
+        file = new RandomAccessFile(target, "rw");
+        channel = file.getChannel();
+    }
+
+    /**
+     * Returns a stream for a regular (or new) file, a plain FileOutputStream
+     * for anything else: a block device has unknown contents so all of its
+     * bytes must be written.
+     */
+    public static OutputStream open(File target) throws IOException {
+        if (target.exists() && !target.isFile()) {
+            return new FileOutputStream(target);
+        }
+        return new SparseFileOutputStream(target, target.length() == 0L);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flushBuffer();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Only writes whole buffers, so that holes stay block aligned; the rest
+     * is written on close.
+     */
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flushBuffer();
+            if (file.length() < position) {
+                file.setLength(position);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        int n = buffer.limit();
+        if (skipZeros) {
+            ZeroBlocks.writeNonZeroBlocks(buffer, channel, position);
+        } else {
+            ZeroBlocks.writeFully(buffer, channel, position);
+        }
+        position += n;
+        buffer.clear();
+    }
+
+}
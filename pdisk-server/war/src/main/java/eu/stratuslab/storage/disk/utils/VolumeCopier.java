@@ -0,0 +1,115 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies disk images in-process with large direct buffers (replaces dd and
+ * its 512 byte blocks). When the target is a new (or empty) file, blocks of
+ * zeros are not written so that the copy is sparse; existing volumes and
+ * block devices always get every byte since their previous contents are
+ * unknown. An existing target is never truncated. Data is flushed to
+ * the device (fdatasync) every SYNC_INTERVAL bytes rather than only at the
+ * end, to avoid a huge dirty page backlog.
+ */
+public final class VolumeCopier {
+
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    static final int BLOCK_SIZE = ZeroBlocks.BLOCK_SIZE;
+
+    static final long SYNC_INTERVAL = 64L * 1024L * 1024L;
+
+    private VolumeCopier() {
+
+    }
+
+    /**
+     * Copies source into target and returns the number of bytes copied.
+     * bytesCopied, if not null, is incremented as the copy progresses. An
+     * existing target keeps its length if it is longer than the source.
+     */
+    public static long copy(File source, File target, AtomicLong bytesCopied) throws IOException {
+
+        if (bytesCopied == null) {
+            bytesCopied = new AtomicLong();
+        }
+
+        // Only a target without previous contents can skip zero blocks.
+        boolean sparse = !target.exists() || (target.isFile() && target.length() == 0);
+
+        FileInputStream in = new FileInputStream(source);
+        try {
+            RandomAccessFile out = new RandomAccessFile(target, "rw");
+            try {
+                FileChannel src = in.getChannel();
+                FileChannel dst = out.getChannel();
+
+                long copied = copy(src, dst, sparse, bytesCopied);
+
+                if (sparse) {
+                    // Trailing zeros were skipped.
+                    out.setLength(copied);
+                }
+                dst.force(false);
+
+                return copied;
+            } finally {
+                out.close();
+            }
+        } finally {
+            FileUtils.closeIgnoringError(in);
+        }
+    }
+
+    private static long copy(FileChannel src, FileChannel dst, boolean skipZeros, AtomicLong bytesCopied)
+            throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        long position = 0L;
+        long unsynced = 0L;
+
+        int n;
+        while ((n = fill(src, buffer)) > 0) {
+
+            if (skipZeros) {
+                ZeroBlocks.writeNonZeroBlocks(buffer, dst, position);
+            } else {
+                ZeroBlocks.writeFully(buffer, dst, position);
+            }
+
+            position += n;
+            unsynced += n;
+            bytesCopied.addAndGet(n);
+
+            if (unsynced >= SYNC_INTERVAL) {
+                dst.force(false);
+                unsynced = 0L;
+            }
+        }
+
+        return position;
+    }
+
+    /**
+     * Reads until the buffer is full or the end of the source is reached.
+     * Returns the number of bytes in the buffer, which is ready to be read.
+     */
+    private static int fill(FileChannel src, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (src.read(buffer) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.limit();
+    }
+
+}
@@ -0,0 +1,86 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Detection of blocks of zeros in disk images. Such blocks are not written
+ * to regular files, which stay sparse, and are not compressed again in
+ * gzip exports (see ParallelGzip). Holes of sparse sources read as zeros:
+ * without SEEK_DATA/SEEK_HOLE in the JDK they are found by scanning, which
+ * costs no disk I/O for holes and 8 bytes per compare otherwise.
+ */
+public final class ZeroBlocks {
+
+    /**
+     * Granularity of the holes left in regular files (file system block).
+     */
+    public static final int BLOCK_SIZE = 4096;
+
+    private ZeroBlocks() {
+
+    }
+
+    public static boolean isZero(byte[] data, int from, int to) {
+        return isZero(ByteBuffer.wrap(data), from, to);
+    }
+
+    public static boolean isZero(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            if (buffer.getLong(i) != 0L) {
+                return false;
+            }
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the buffer (from 0 to its limit) at position in the file,
+     * skipping the blocks of zeros. The file must read zeros there already,
+     * i.e. be a regular file truncated before the writes.
+     */
+    public static void writeNonZeroBlocks(ByteBuffer buffer, FileChannel dst, long position) throws IOException {
+
+        int limit = buffer.limit();
+
+        int runStart = -1;
+        for (int offset = 0; offset < limit; offset += BLOCK_SIZE) {
+            int end = Math.min(offset + BLOCK_SIZE, limit);
+            if (isZero(buffer, offset, end)) {
+                if (runStart >= 0) {
+                    writeRange(buffer, dst, position, runStart, offset);
+                    runStart = -1;
+                }
+            } else if (runStart < 0) {
+                runStart = offset;
+            }
+        }
+
+        if (runStart >= 0) {
+            writeRange(buffer, dst, position, runStart, limit);
+        }
+    }
+
+    public static void writeFully(ByteBuffer buffer, FileChannel dst, long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            offset += dst.write(buffer, offset);
+        }
+    }
+
+    private static void writeRange(ByteBuffer buffer, FileChannel dst, long position, int from, int to)
+            throws IOException {
+        ByteBuffer range = buffer.duplicate();
+        range.limit(to);
+        range.position(from);
+        writeFully(range, dst, position + from);
+    }
+
+}
@@ -0,0 +1,97 @@
+package eu.stratuslab.storage.persistence;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.Timestamper;
+
+/**
+ * Cache region of BoundedCacheProvider: a map in access order, from which
+ * the least recently used entry is dropped when the region is full. The
+ * concurrency strategy (read-write) does the locking, lock() and unlock()
+ * have nothing to do.
+ */
+public class BoundedCache implements Cache {
+
+	private final String regionName;
+
+	private final Map<Object, Object> entries;
+
+	public BoundedCache(String regionName, final int maxEntries) {
+		this.regionName = regionName;
+		this.entries = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	public synchronized Object read(Object key) {
+		return entries.get(key);
+	}
+
+	public synchronized Object get(Object key) {
+		return entries.get(key);
+	}
+
+	public synchronized void put(Object key, Object value) {
+		entries.put(key, value);
+	}
+
+	public synchronized void update(Object key, Object value) {
+		entries.put(key, value);
+	}
+
+	public synchronized void remove(Object key) {
+		entries.remove(key);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public void destroy() {
+		clear();
+	}
+
+	public void lock(Object key) {
+	}
+
+	public void unlock(Object key) {
+	}
+
+	public long nextTimestamp() {
+		return Timestamper.next();
+	}
+
+	public int getTimeout() {
+		return Timestamper.ONE_MS * 60000; // 60 s
+	}
+
+	public String getRegionName() {
+		return regionName;
+	}
+
+	public long getSizeInMemory() {
+		return -1;
+	}
+
+	public synchronized long getElementCountInMemory() {
+		return entries.size();
+	}
+
+	public long getElementCountOnDisk() {
+		return 0;
+	}
+
+	public synchronized Map<Object, Object> toMap() {
+		return new HashMap<Object, Object>(entries);
+	}
+
+}
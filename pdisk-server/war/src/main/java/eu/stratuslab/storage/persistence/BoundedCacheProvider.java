@@ -0,0 +1,52 @@
+package eu.stratuslab.storage.persistence;
+
+import java.util.Properties;
+
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.CacheProvider;
+import org.hibernate.cache.Timestamper;
+
+/**
+ * Second-level cache provider keeping each region in memory, with at most
+ * hibernate.cache.max_entries entries per region (least recently used
+ * entries are evicted first). The service runs as a single process, so
+ * there is nothing to replicate between caches.
+ */
+public class BoundedCacheProvider implements CacheProvider {
+
+	public static final String MAX_ENTRIES_PROPERTY = "hibernate.cache.max_entries";
+
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+	public Cache buildCache(String regionName, Properties properties)
+			throws CacheException {
+		return new BoundedCache(regionName, maxEntries);
+	}
+
+	public long nextTimestamp() {
+		return Timestamper.next();
+	}
+
+	public void start(Properties properties) throws CacheException {
+		String value = properties.getProperty(MAX_ENTRIES_PROPERTY);
+		if (value != null) {
+			try {
+				maxEntries = Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				throw new CacheException("invalid " + MAX_ENTRIES_PROPERTY
+						+ ": " + value);
+			}
+		}
+	}
+
+	public void stop() {
+	}
+
+	public boolean isMinimalPutsEnabledByDefault() {
+		return false;
+	}
+
+}
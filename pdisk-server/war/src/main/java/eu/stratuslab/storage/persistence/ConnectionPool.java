@@ -0,0 +1,326 @@
+package eu.stratuslab.storage.persistence;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of JDBC connections (see PooledConnectionProvider). At most maxSize
+ * connections are in use; a caller waits up to timeout seconds for one to
+ * be returned. Idle connections are validated before they are handed out,
+ * the most recently used first, and dropped if the database closed them.
+ * Connections held for more than leakThreshold seconds are reported once,
+ * with the stack of the caller that took them.
+ */
+public class ConnectionPool {
+
+	private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+	private static final int VALIDATION_TIMEOUT = 5; // seconds
+
+	private final String url;
+
+	private final Properties info;
+
+	private final int maxSize;
+
+	private final long timeoutMillis;
+
+	private final String validationQuery;
+
+	private final long leakThresholdMillis;
+
+	private final Semaphore permits;
+
+	private final LinkedBlockingDeque<Connection> idle = new LinkedBlockingDeque<Connection>();
+
+	private final Map<Connection, Lease> leases = new IdentityHashMap<Connection, Lease>();
+
+	private final ScheduledExecutorService leakDetector;
+
+	private final AtomicLong created = new AtomicLong();
+
+	private final AtomicLong borrowed = new AtomicLong();
+
+	private final AtomicLong waitMillis = new AtomicLong();
+
+	private final AtomicLong maxWaitMillis = new AtomicLong();
+
+	private final AtomicLong timeouts = new AtomicLong();
+
+	private final AtomicLong invalid = new AtomicLong();
+
+	private final AtomicLong leaks = new AtomicLong();
+
+	/**
+	 * Without validation query, connections are checked with
+	 * Connection.isValid(). A leak threshold of 0 disables leak detection.
+	 */
+	public ConnectionPool(String url, Properties info, int maxSize,
+			int timeout, String validationQuery, int leakThreshold) {
+		this.url = url;
+		this.info = info;
+		this.maxSize = maxSize;
+		this.timeoutMillis = TimeUnit.SECONDS.toMillis(timeout);
+		this.validationQuery = validationQuery;
+		this.leakThresholdMillis = TimeUnit.SECONDS.toMillis(leakThreshold);
+
+		permits = new Semaphore(maxSize, true);
+
+		if (leakThreshold > 0) {
+			leakDetector = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "db-leak-detector");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			long period = Math.max(1L, leakThreshold / 2);
+			leakDetector.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					detectLeaks();
+				}
+			}, period, period, TimeUnit.SECONDS);
+		} else {
+			leakDetector = null;
+		}
+	}
+
+	public Connection getConnection() throws SQLException {
+		long start = System.currentTimeMillis();
+
+		boolean acquired;
+		try {
+			acquired = permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("interrupted while waiting for a database connection");
+		}
+
+		long waited = System.currentTimeMillis() - start;
+		recordWait(waited);
+
+		if (!acquired) {
+			timeouts.incrementAndGet();
+			throw new SQLException("no database connection available after "
+					+ waited + " ms (" + maxSize + " in use)");
+		}
+
+		try {
+			Connection connection = takeValidConnection();
+			synchronized (leases) {
+				leases.put(connection, new Lease());
+			}
+			borrowed.incrementAndGet();
+			return connection;
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private Connection takeValidConnection() throws SQLException {
+		Connection connection;
+		while ((connection = idle.pollFirst()) != null) {
+			if (isValid(connection)) {
+				return connection;
+			}
+			invalid.incrementAndGet();
+			closeQuietly(connection);
+		}
+
+		connection = DriverManager.getConnection(url, info);
+		created.incrementAndGet();
+		return connection;
+	}
+
+	private boolean isValid(Connection connection) {
+		try {
+			if (connection.isClosed()) {
+				return false;
+			}
+			if (validationQuery == null) {
+				return connection.isValid(VALIDATION_TIMEOUT);
+			}
+			Statement statement = connection.createStatement();
+			try {
+				statement.setQueryTimeout(VALIDATION_TIMEOUT);
+				statement.execute(validationQuery);
+			} finally {
+				statement.close();
+			}
+			return true;
+		} catch (SQLException e) {
+			LOGGER.fine("dropping invalid database connection: "
+					+ e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the connection to the pool, or closes it if it is closed or
+	 * does not come from the pool.
+	 */
+	public void release(Connection connection) {
+		Lease lease;
+		synchronized (leases) {
+			lease = leases.remove(connection);
+		}
+
+		if (lease == null) {
+			closeQuietly(connection);
+			return;
+		}
+
+		if (lease.reported) {
+			LOGGER.info("leaked database connection returned after "
+					+ (System.currentTimeMillis() - lease.since) + " ms");
+		}
+
+		try {
+			if (!connection.isClosed()) {
+				idle.offerFirst(connection);
+			}
+		} catch (SQLException e) {
+			closeQuietly(connection);
+		} finally {
+			permits.release();
+		}
+	}
+
+	public void close() {
+		if (leakDetector != null) {
+			leakDetector.shutdownNow();
+		}
+
+		Connection connection;
+		while ((connection = idle.pollFirst()) != null) {
+			closeQuietly(connection);
+		}
+	}
+
+	/**
+	 * Reports the connections held for longer than the leak threshold and
+	 * returns their number. They are left to their owner.
+	 */
+	public int detectLeaks() {
+		long now = System.currentTimeMillis();
+
+		List<Lease> leaked = new ArrayList<Lease>();
+		synchronized (leases) {
+			for (Lease lease : leases.values()) {
+				if (!lease.reported && now - lease.since > leakThresholdMillis) {
+					lease.reported = true;
+					leaked.add(lease);
+				}
+			}
+		}
+
+		for (Lease lease : leaked) {
+			leaks.incrementAndGet();
+			LOGGER.log(Level.WARNING, "database connection held by "
+					+ lease.thread + " for " + (now - lease.since)
+					+ " ms, possible leak", lease.origin);
+		}
+		return leaked.size();
+	}
+
+	private void recordWait(long waited) {
+		waitMillis.addAndGet(waited);
+		long max;
+		while (waited > (max = maxWaitMillis.get())
+				&& !maxWaitMillis.compareAndSet(max, waited)) {
+			// retry
+		}
+	}
+
+	private static void closeQuietly(Connection connection) {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			// Connection is dropped anyway.
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int getActiveCount() {
+		synchronized (leases) {
+			return leases.size();
+		}
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	public int getWaitingCount() {
+		return permits.getQueueLength();
+	}
+
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	public long getBorrowedCount() {
+		return borrowed.get();
+	}
+
+	/**
+	 * Total time spent waiting for a connection, in milliseconds.
+	 */
+	public long getWaitMillis() {
+		return waitMillis.get();
+	}
+
+	public long getMaxWaitMillis() {
+		return maxWaitMillis.get();
+	}
+
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	public long getInvalidCount() {
+		return invalid.get();
+	}
+
+	public long getLeakCount() {
+		return leaks.get();
+	}
+
+	private static final class Lease {
+
+		private final long since = System.currentTimeMillis();
+
+		private final String thread = Thread.currentThread().getName();
+
+		private final Throwable origin = new Throwable(
+				"database connection taken here");
+
+		private boolean reported = false;
+
+	}
+
+}
@@ -2,6 +2,7 @@ package eu.stratuslab.storage.persistence;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -16,7 +17,14 @@ import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 import javax.persistence.Query;
-
+import javax.persistence.QueryHint;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Table;
 import org.simpleframework.xml.ElementMap;
 
 import eu.stratuslab.storage.disk.resources.BaseResource.DiskVisibility;
@@ -26,10 +34,17 @@ import eu.stratuslab.storage.disk.utils.MiscUtils;
 @Entity
 @SuppressWarnings("serial")
 @NamedQueries({
-		@NamedQuery(name = "allDisks", query = "SELECT d FROM Disk d ORDER BY d.creation DESC"),
-		@NamedQuery(name = "allDisksByUser", query = "SELECT d FROM Disk d WHERE d.owner = :user ORDER BY d.creation DESC"),
-		@NamedQuery(name = "countAllDisksByIdentifier", query = "SELECT COUNT(d) FROM Disk d WHERE d.identifier = :identifier"),
-		@NamedQuery(name = "allDisksByIdentifier", query = "SELECT d FROM Disk d WHERE d.identifier = :identifier ORDER BY d.creation DESC") })
+		@NamedQuery(name = "allDisks", query = "SELECT " + Disk.DISK_VIEW + " FROM Disk d ORDER BY d.creationDate DESC"),
+		@NamedQuery(name = "allDisksByUser", query = "SELECT " + Disk.DISK_VIEW + " FROM Disk d WHERE d.owner = :user ORDER BY d.creationDate DESC"),
+		@NamedQuery(name = "countAllDisksByIdentifier", query = "SELECT COUNT(d) FROM Disk d WHERE d.identifier = :identifier", hints = @QueryHint(name = "org.hibernate.cacheable", value = "true")),
+		@NamedQuery(name = "allDisksByIdentifier", query = "SELECT d FROM Disk d WHERE d.identifier = :identifier ORDER BY d.creationDate DESC", hints = @QueryHint(name = "org.hibernate.cacheable", value = "true")),
+		@NamedQuery(name = "seedDisksByIdentifier", query = "SELECT d FROM Disk d WHERE d.identifier = :identifier AND d.seed = true AND d.quarantine = '' AND (d.owner = :owner OR d.visibility = :visibility) ORDER BY d.creationDate ASC", hints = @QueryHint(name = "org.hibernate.cacheable", value = "true")),
+		@NamedQuery(name = "ownedSeedDisksByIdentifier", query = "SELECT d FROM Disk d WHERE d.identifier = :identifier AND d.seed = true AND d.quarantine = '' AND d.owner = :owner ORDER BY d.creationDate ASC", hints = @QueryHint(name = "org.hibernate.cacheable", value = "true")) })
+@Table(appliesTo = "Disk", indexes = {
+		@Index(name = "disk_owner_creation", columnNames = { "owner", "creationDate" }),
+		@Index(name = "disk_creation", columnNames = { "creationDate" }),
+		@Index(name = "disk_identifier", columnNames = { "identifier" }) })
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public class Disk implements Serializable {
 
 	public enum DiskType {
@@ -65,6 +80,15 @@ public class Disk implements Serializable {
 	public static final String DISK_SIZE_KEY = "size";
 	public static final String DISK_IDENTIFER_KEY = "Marketplace_id";
 
+	/**
+	 * Listing row built by the query itself: the snapshots and mounts of
+	 * each disk are counted by subqueries instead of one query per disk.
+	 */
+	static final String DISK_VIEW = "NEW eu.stratuslab.storage.persistence.DiskView("
+			+ "d.uuid, d.tag, d.size, d.type, d.owner, d.quarantine, d.identifier, d.creationDate, "
+			+ "(SELECT COUNT(s) FROM Disk s WHERE s.identifier = CONCAT('snapshot:', d.uuid)), "
+			+ "(SELECT COUNT(m) FROM Mount m WHERE m.disk = d))";
+
 	public static Disk load(String uuid) {
 		EntityManager em = PersistenceUtil.createEntityManager();
 		Disk disk = em.find(Disk.class, uuid);
@@ -102,8 +126,7 @@ public class Disk implements Serializable {
 	public static List<DiskView> listAll() {
 		EntityManager em = PersistenceUtil.createEntityManager();
 		Query q = em.createNamedQuery("allDisks");
-		List<Disk> disks = q.getResultList();
-		List<DiskView> views = convertDisksToDiskViews(disks);
+		List<DiskView> views = q.getResultList();
 		em.close();
 		return views;
 	}
@@ -113,22 +136,11 @@ public class Disk implements Serializable {
 		EntityManager em = PersistenceUtil.createEntityManager();
 		Query q = em.createNamedQuery("allDisksByUser");
 		q.setParameter("user", user);
-		List<Disk> disks = q.getResultList();
-		List<DiskView> views = convertDisksToDiskViews(disks);
+		List<DiskView> views = q.getResultList();
 		em.close();
 		return views;
 	}
 
-	private static List<DiskView> convertDisksToDiskViews(List<Disk> disks) {
-		List<DiskView> views = new ArrayList<DiskView>();
-		for (Disk d : disks) {
-			views.add(new DiskView(d.getUuid(), d.getTag(), d.getSize(), d
-					.getUsersCount(), d.getOwner(), d.getQuarantine(), d
-					.getIdentifier()));
-		}
-		return views;
-	}
-
 	@SuppressWarnings("unchecked")
 	public static boolean identifierExists(String identifier) {
 		if ("".equals(identifier)) {
@@ -142,6 +154,45 @@ public class Disk implements Serializable {
 		return disks.size() > 0;
 	}
 
+	/**
+	 * Returns the oldest seed disk (not in quarantine) with this identifier
+	 * that the user may view (own or public disk), or null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Disk findSeed(String identifier, String user) {
+		if ("".equals(identifier)) {
+			return null;
+		}
+		EntityManager em = PersistenceUtil.createEntityManager();
+		Query q = em.createNamedQuery("seedDisksByIdentifier");
+		q.setParameter("identifier", identifier);
+		q.setParameter("owner", user);
+		q.setParameter("visibility", DiskVisibility.PUBLIC);
+		q.setMaxResults(1);
+		List<Disk> disks = q.getResultList();
+		em.close();
+		return disks.isEmpty() ? null : disks.get(0);
+	}
+
+	/**
+	 * Returns the oldest seed disk (not in quarantine) with this identifier
+	 * owned by the user, or null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Disk findOwnedSeed(String identifier, String user) {
+		if ("".equals(identifier)) {
+			return null;
+		}
+		EntityManager em = PersistenceUtil.createEntityManager();
+		Query q = em.createNamedQuery("ownedSeedDisksByIdentifier");
+		q.setParameter("identifier", identifier);
+		q.setParameter("owner", user);
+		q.setMaxResults(1);
+		List<Disk> disks = q.getResultList();
+		em.close();
+		return disks.isEmpty() ? null : disks.get(0);
+	}
+
 	public static int countSnapshots(String uuid) {
 		EntityManager em = PersistenceUtil.createEntityManager();
 		Query q = em.createNamedQuery("countAllDisksByIdentifier");
@@ -170,7 +221,12 @@ public class Disk implements Serializable {
 	private ArrayList<String> group_ = new ArrayList<String>();
 	private DiskVisibility visibility = DiskVisibility.PRIVATE;
 
-	private String creation = MiscUtils.getTimestamp();
+	// Replaces the former creation column (yyyy/MM/dd HH:mm:ss string),
+	// see migrate-creation-date.sql (sql directory of the installation).
+	// Whole seconds, as stored by MySQL: the listings page on this value.
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date creationDate = new Date(System.currentTimeMillis() / 1000 * 1000);
+
 	private String deletion = ""; // deleted timestamp
 
 	private String tag = "";
@@ -189,6 +245,7 @@ public class Disk implements Serializable {
 
 	@MapKey(name = "id")
 	@OneToMany(mappedBy = "disk", fetch = FetchType.EAGER)
+	@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 	@ElementMap(name = "mounts", required = false, data = true, valueType = Mount.class)
 	private Map<String, Mount> mounts = new HashMap<String, Mount>(); // key is
 																		// vmId
@@ -218,7 +275,11 @@ public class Disk implements Serializable {
 	}
 
 	public String getCreation() {
-		return creation;
+		return MiscUtils.formatTimestamp(creationDate);
+	}
+
+	public Date getCreationDate() {
+		return creationDate;
 	}
 
 	public int getUsersCount() {
@@ -0,0 +1,155 @@
+package eu.stratuslab.storage.persistence;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import eu.stratuslab.storage.persistence.Disk.DiskType;
+
+/**
+ * Filtered and sorted page of the disk listing. Pages are delimited by the
+ * last disk of the previous page (keyset pagination): the query continues
+ * after its sort value and uuid, so that every page costs the same
+ * whatever its position in the listing.
+ */
+public class DiskQuery {
+
+	/**
+	 * Fields the listing can be sorted on; the uuid breaks the ties. A
+	 * nullable field is compared as its COALESCE, otherwise the disks where
+	 * it is null would never match the keyset condition.
+	 */
+	public enum SortKey {
+		CREATION("d.creationDate"), TAG("COALESCE(d.tag, '')"), SIZE("d.size");
+
+		private final String expression;
+
+		private SortKey(String expression) {
+			this.expression = expression;
+		}
+	}
+
+	private String owner;
+
+	private DiskType type;
+
+	private String tag;
+
+	private Boolean quarantined;
+
+	private SortKey sortKey = SortKey.CREATION;
+
+	private boolean descending = true;
+
+	private String afterUuid;
+
+	private Object afterValue;
+
+	public void setOwner(String owner) {
+		this.owner = owner;
+	}
+
+	public void setType(DiskType type) {
+		this.type = type;
+	}
+
+	public void setTag(String tag) {
+		this.tag = tag;
+	}
+
+	public void setQuarantined(Boolean quarantined) {
+		this.quarantined = quarantined;
+	}
+
+	public void setSort(SortKey sortKey, boolean descending) {
+		this.sortKey = sortKey;
+		this.descending = descending;
+	}
+
+	/**
+	 * Continues the listing after the given disk. The caller must check that
+	 * the disk may be viewed, since the page boundaries disclose its sort
+	 * value.
+	 */
+	public void setAfter(Disk disk) {
+		afterUuid = disk.getUuid();
+		afterValue = getSortValue(disk.getCreationDate(), disk.getTag(),
+				disk.getSize());
+	}
+
+	public void setAfter(DiskView view) {
+		afterUuid = view.getUuid();
+		afterValue = getSortValue(view.getCreation(), view.getTag(),
+				view.getSize());
+	}
+
+	private Object getSortValue(Date creation, String tag, long size) {
+		switch (sortKey) {
+		case TAG:
+			return (tag == null) ? "" : tag;
+		case SIZE:
+			return size;
+		default:
+			return creation;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public List<DiskView> list(int maxResults) {
+		List<String> conditions = new ArrayList<String>();
+		Map<String, Object> parameters = new HashMap<String, Object>();
+
+		if (owner != null) {
+			conditions.add("d.owner = :owner");
+			parameters.put("owner", owner);
+		}
+		if (type != null) {
+			conditions.add("d.type = :type");
+			parameters.put("type", type);
+		}
+		if (tag != null) {
+			conditions.add("d.tag = :tag");
+			parameters.put("tag", tag);
+		}
+		if (quarantined != null) {
+			conditions.add(quarantined ? "d.quarantine <> ''"
+					: "d.quarantine = ''");
+		}
+
+		String field = sortKey.expression;
+		String direction = descending ? "DESC" : "ASC";
+
+		if (afterUuid != null) {
+			String operator = descending ? "<" : ">";
+			conditions.add("(" + field + " " + operator + " :afterValue OR ("
+					+ field + " = :afterValue AND d.uuid " + operator
+					+ " :afterUuid))");
+			parameters.put("afterValue", afterValue);
+			parameters.put("afterUuid", afterUuid);
+		}
+
+		StringBuilder hql = new StringBuilder("SELECT " + Disk.DISK_VIEW
+				+ " FROM Disk d");
+		for (int i = 0; i < conditions.size(); i++) {
+			hql.append(i == 0 ? " WHERE " : " AND ").append(conditions.get(i));
+		}
+		hql.append(" ORDER BY ").append(field).append(" ").append(direction);
+		hql.append(", d.uuid ").append(direction);
+
+		EntityManager em = PersistenceUtil.createEntityManager();
+		Query q = em.createQuery(hql.toString());
+		for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+			q.setParameter(parameter.getKey(), parameter.getValue());
+		}
+		q.setMaxResults(maxResults);
+		List<DiskView> views = q.getResultList();
+		em.close();
+		return views;
+	}
+
+}
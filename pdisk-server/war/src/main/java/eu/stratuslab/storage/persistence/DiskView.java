@@ -1,11 +1,14 @@
 package eu.stratuslab.storage.persistence;
 
+import java.util.Date;
 import java.util.List;
 
 import org.simpleframework.xml.Attribute;
 import org.simpleframework.xml.ElementList;
 import org.simpleframework.xml.Root;
 
+import eu.stratuslab.storage.persistence.Disk.DiskType;
+
 @Root(name = "item")
 public class DiskView {
 
@@ -24,6 +27,8 @@ public class DiskView {
 
 	private String identifier;
 
+	private Date creation;
+
 	public DiskView(String uuid, String tag, long size, int usersCount,
 			String owner, String quarantine, String identifier) {
 		this.uuid = uuid;
@@ -35,6 +40,19 @@ public class DiskView {
 		this.setIdentifier(identifier);
 	}
 
+	/**
+	 * Constructor of the listing queries (see Disk): the users of an origin
+	 * image are its snapshots, those of other disks their mounts.
+	 */
+	public DiskView(String uuid, String tag, long size, DiskType type,
+			String owner, String quarantine, String identifier,
+			Date creation, long snapshotsCount, long mountsCount) {
+		this(uuid, tag, size,
+				(int) (type == DiskType.MACHINE_IMAGE_ORIGIN ? snapshotsCount
+						: mountsCount), owner, quarantine, identifier);
+		this.creation = creation;
+	}
+
 	@Root(name = "list")
 	public static class DiskViewList {
 
@@ -94,4 +112,8 @@ public class DiskView {
 		return identifier;
 	}
 
+	public Date getCreation() {
+		return creation;
+	}
+
 }
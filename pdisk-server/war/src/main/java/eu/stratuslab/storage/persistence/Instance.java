@@ -17,6 +17,10 @@ import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 import javax.persistence.Query;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Table;
 import org.restlet.data.Status;
 import org.restlet.resource.ResourceException;
 import org.simpleframework.xml.ElementMap;
@@ -28,6 +32,8 @@ import eu.stratuslab.storage.disk.utils.MiscUtils;
 @NamedQueries({
 	@NamedQuery(name = "allInstances", query = "SELECT NEW eu.stratuslab.storage.persistence.InstanceView(i.vmId, i.owner) FROM Instance i ORDER BY i.vmId DESC"),
 	@NamedQuery(name = "allInstancesByUser", query = "SELECT NEW eu.stratuslab.storage.persistence.InstanceView(i.vmId, i.owner) FROM Instance i WHERE i.owner = :user ORDER BY i.vmId DESC")})
+@Table(appliesTo = "Instance", indexes = @Index(name = "instance_owner", columnNames = { "owner", "vmId" }))
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public class Instance implements Serializable {
 
 	private static final String DEVICE_PREFIX = "vd";
@@ -65,6 +71,7 @@ public class Instance implements Serializable {
 		Instance obj = em.merge(this);
 		transaction.commit();
 		em.close();
+		evictMountsOfDisks(mounts);
 		return obj;
 	}
 
@@ -82,6 +89,19 @@ public class Instance implements Serializable {
 		}
 		transaction.commit();
 		em.close();
+		if (fromDb != null) {
+			evictMountsOfDisks(fromDb.getMounts());
+		}
+	}
+
+	/**
+	 * Mounts are stored and removed with their instance (cascade), the
+	 * cached mounts of their disks are then out of date.
+	 */
+	private static void evictMountsOfDisks(Map<String, Mount> mounts) {
+		for (Mount mount : mounts.values()) {
+			PersistenceUtil.evictMounts(mount.getUuid(), null);
+		}
 	}
 
 	public Instance() {
@@ -103,6 +123,7 @@ public class Instance implements Serializable {
 
 	@MapKey(name = "id")
 	@OneToMany(mappedBy = "instance", cascade = CascadeType.ALL, fetch = FetchType.EAGER)
+	@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 	@ElementMap(name = "mounts", required = false, data = true, valueType = Mount.class)
 	private Map<String, Mount> mounts = new HashMap<String, Mount>(); // key
 																		// uuid
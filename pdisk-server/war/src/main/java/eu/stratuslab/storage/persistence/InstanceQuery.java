@@ -0,0 +1,62 @@
+package eu.stratuslab.storage.persistence;
+
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+/**
+ * Page of the instance listing, sorted by VM identifier and delimited by
+ * the last instance of the previous page (see DiskQuery).
+ */
+public class InstanceQuery {
+
+	private String owner;
+
+	private boolean descending = true;
+
+	private String afterVmId;
+
+	public void setOwner(String owner) {
+		this.owner = owner;
+	}
+
+	public void setDescending(boolean descending) {
+		this.descending = descending;
+	}
+
+	public void setAfter(String vmId) {
+		this.afterVmId = vmId;
+	}
+
+	@SuppressWarnings("unchecked")
+	public List<InstanceView> list(int maxResults) {
+		StringBuilder hql = new StringBuilder(
+				"SELECT NEW eu.stratuslab.storage.persistence.InstanceView(i.vmId, i.owner) FROM Instance i");
+
+		String keyword = " WHERE ";
+		if (owner != null) {
+			hql.append(keyword).append("i.owner = :owner");
+			keyword = " AND ";
+		}
+		if (afterVmId != null) {
+			hql.append(keyword).append("i.vmId ")
+					.append(descending ? "<" : ">").append(" :after");
+		}
+		hql.append(" ORDER BY i.vmId ").append(descending ? "DESC" : "ASC");
+
+		EntityManager em = PersistenceUtil.createEntityManager();
+		Query q = em.createQuery(hql.toString());
+		if (owner != null) {
+			q.setParameter("owner", owner);
+		}
+		if (afterVmId != null) {
+			q.setParameter("after", afterVmId);
+		}
+		q.setMaxResults(maxResults);
+		List<InstanceView> views = q.getResultList();
+		em.close();
+		return views;
+	}
+
+}
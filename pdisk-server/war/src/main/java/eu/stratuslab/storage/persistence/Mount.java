@@ -12,7 +12,12 @@ import javax.persistence.ManyToOne;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.Query;
+import javax.persistence.QueryHint;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Table;
 import org.restlet.data.Status;
 import org.restlet.resource.ResourceException;
 
@@ -21,8 +26,10 @@ import eu.stratuslab.storage.disk.utils.MiscUtils;
 @SuppressWarnings("serial")
 @Entity
 @NamedQueries({
-	@NamedQuery(name = "allMounts", query = "SELECT m FROM eu.stratuslab.storage.persistence.Mount m ORDER BY m.device DESC"),
-	@NamedQuery(name = "mounts", query = "SELECT m FROM eu.stratuslab.storage.persistence.Mount m WHERE m.uuid = :uuid ORDER BY m.device")})
+	@NamedQuery(name = "allMounts", query = "SELECT m FROM eu.stratuslab.storage.persistence.Mount m ORDER BY m.device DESC", hints = @QueryHint(name = "org.hibernate.cacheable", value = "true")),
+	@NamedQuery(name = "mounts", query = "SELECT m FROM eu.stratuslab.storage.persistence.Mount m WHERE m.uuid = :uuid ORDER BY m.device", hints = @QueryHint(name = "org.hibernate.cacheable", value = "true"))})
+@Table(appliesTo = "Mount", indexes = @Index(name = "mount_uuid_device", columnNames = { "uuid", "device" }))
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public class Mount implements Serializable {
 
 	private static final String DEVICE_PREFIX = "vd";
@@ -52,6 +59,7 @@ public class Mount implements Serializable {
 		Mount obj = em.merge(this);
 		transaction.commit();
 		em.close();
+		PersistenceUtil.evictMounts(uuid, vmId);
 		return obj;
 	}
 
@@ -69,6 +77,9 @@ public class Mount implements Serializable {
 		}
 		transaction.commit();
 		em.close();
+		if (fromDb != null) {
+			PersistenceUtil.evictMounts(fromDb.getUuid(), fromDb.getVmId());
+		}
 	}
 
 	public Mount() {
@@ -6,6 +6,10 @@ import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
 
+import org.hibernate.SessionFactory;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+
 public class PersistenceUtil {
 
 	private static final EntityManagerFactory emf = buildEntityManagerFactory();
@@ -30,4 +34,32 @@ public class PersistenceUtil {
 		return getEntityManagerFactory().createEntityManager();
 	}
 
+	private static SessionFactory getSessionFactory() {
+		return ((HibernateEntityManagerFactory) emf).getSessionFactory();
+	}
+
+	/**
+	 * Counters of the second-level and query caches (see persistence.xml).
+	 */
+	public static Statistics getStatistics() {
+		return getSessionFactory().getStatistics();
+	}
+
+	/**
+	 * The mounts of disks and instances are mapped by Mount: Hibernate does
+	 * not update these cached collections when a mount is stored or
+	 * removed, they must be evicted.
+	 */
+	static void evictMounts(String diskUuid, String vmId) {
+		SessionFactory sessionFactory = getSessionFactory();
+		if (diskUuid != null) {
+			sessionFactory.evictCollection(Disk.class.getName() + ".mounts",
+					diskUuid);
+		}
+		if (vmId != null) {
+			sessionFactory.evictCollection(Instance.class.getName()
+					+ ".mounts", vmId);
+		}
+	}
+
 }
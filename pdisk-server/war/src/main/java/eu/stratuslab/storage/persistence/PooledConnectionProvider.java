@@ -0,0 +1,106 @@
+package eu.stratuslab.storage.persistence;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.connection.ConnectionProviderFactory;
+
+import eu.stratuslab.storage.disk.main.RootApplication;
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+
+/**
+ * Hibernate connection provider backed by a ConnectionPool. The database is
+ * given by the usual hibernate.connection.* properties, the pool size and
+ * timeouts by the disk.store.db.* parameters of the service configuration;
+ * hibernate.pool.validation_query is run on idle connections before they
+ * are reused (Connection.isValid() if not set).
+ */
+public class PooledConnectionProvider implements ConnectionProvider {
+
+	public static final String VALIDATION_QUERY_PROPERTY = "hibernate.pool.validation_query";
+
+	private static volatile ConnectionPool current;
+
+	private ConnectionPool pool;
+
+	private boolean autocommit;
+
+	private Integer isolation;
+
+	/**
+	 * Pool of the persistence unit in use, or null if it does not use this
+	 * provider.
+	 */
+	public static ConnectionPool getPool() {
+		return current;
+	}
+
+	public void configure(Properties properties) throws HibernateException {
+		String driver = properties.getProperty(Environment.DRIVER);
+		if (driver != null) {
+			try {
+				Class.forName(driver);
+			} catch (ClassNotFoundException e) {
+				throw new HibernateException("JDBC driver not found: " + driver, e);
+			}
+		}
+
+		String url = properties.getProperty(Environment.URL);
+		if (url == null) {
+			throw new HibernateException("missing " + Environment.URL);
+		}
+
+		autocommit = Boolean.parseBoolean(properties
+				.getProperty(Environment.AUTOCOMMIT));
+
+		String level = properties.getProperty(Environment.ISOLATION);
+		if (level != null) {
+			isolation = Integer.valueOf(level.trim());
+		}
+
+		ServiceConfiguration cfg = RootApplication.CONFIGURATION;
+		pool = new ConnectionPool(url,
+				ConnectionProviderFactory.getConnectionProperties(properties),
+				cfg.DB_POOL_SIZE, cfg.DB_POOL_TIMEOUT,
+				properties.getProperty(VALIDATION_QUERY_PROPERTY),
+				cfg.DB_LEAK_THRESHOLD);
+		current = pool;
+	}
+
+	public Connection getConnection() throws SQLException {
+		Connection connection = pool.getConnection();
+		try {
+			if (isolation != null
+					&& connection.getTransactionIsolation() != isolation) {
+				connection.setTransactionIsolation(isolation);
+			}
+			if (connection.getAutoCommit() != autocommit) {
+				connection.setAutoCommit(autocommit);
+			}
+		} catch (SQLException e) {
+			pool.release(connection);
+			throw e;
+		}
+		return connection;
+	}
+
+	public void closeConnection(Connection connection) throws SQLException {
+		pool.release(connection);
+	}
+
+	public void close() throws HibernateException {
+		if (current == pool) {
+			current = null;
+		}
+		pool.close();
+	}
+
+	public boolean supportsAggressiveRelease() {
+		return false;
+	}
+
+}
@@ -8,6 +8,9 @@
 
   <meta http-equiv="content-type" content="text/html;charset=UTF-8" />
   <meta name="viewport" content="width=device-width, initial-scale=1.0" />
+  <#if refresh??>
+  <meta http-equiv="refresh" content="${refresh}" />
+  </#if>
 
   <title>${title!}</title>
 
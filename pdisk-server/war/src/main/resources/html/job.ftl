@@ -0,0 +1,40 @@
+<#include "/html/header.ftl">
+
+<table>
+  <tr>
+    <td><strong>Job</strong></td>
+    <td>${job.id}</td>
+  </tr>
+  <tr>
+    <td><strong>State</strong></td>
+    <td>${job.state}</td>
+  </tr>
+  <tr>
+    <td><strong>Disk</strong></td>
+    <td>
+      <#if job.state == "SUCCEEDED">
+        <a href="${baseurl}disks/${job.diskUuid}">${job.diskUuid}</a>
+      <#else>
+        ${job.diskUuid}
+      </#if>
+    </td>
+  </tr>
+  <tr>
+    <td><strong>Bytes copied</strong></td>
+    <td>${job.bytesCopied?c}<#if (job.expectedBytes > 0)> / ${job.expectedBytes?c}</#if></td>
+  </tr>
+  <#if (job.progress >= 0)>
+  <tr>
+    <td><strong>Progress</strong></td>
+    <td>${job.progress}%</td>
+  </tr>
+  </#if>
+  <#if job.message?has_content>
+  <tr>
+    <td><strong>Message</strong></td>
+    <td>${job.message}</td>
+  </tr>
+  </#if>
+</table>
+
+<#include "/html/footer.ftl">
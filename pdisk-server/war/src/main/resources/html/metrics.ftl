@@ -0,0 +1,16 @@
+<#include "/html/header.ftl">
+
+<p>
+  <table>
+    <tbody>
+      <#list dict?keys as key>
+      <tr>
+        <td><strong>${key}</strong></td>
+        <td>${dict[key]}</td>
+      </tr>
+      </#list>
+    </tbody>
+  </table>
+</p>
+
+<#include "/html/footer.ftl">
@@ -2,5 +2,6 @@
   "node" : "${node}",
   "vm_id" : "${vm_id}",
   <#if target??>"target" : "${target}",</#if>
+  <#if targets??>"targets" : [<#list targets as target>"${target}"<#if target_has_next>,</#if></#list>],</#if>
   "uuid" : [<#list uuids as disk>"${disk}"<#if disk_has_next>,</#if></#list>]
 }
@@ -0,0 +1,9 @@
+{
+  "id" : "${job.id}",
+  "state" : "${job.state}",
+  "disk" : "${job.diskUuid}",
+  "bytes_copied" : ${job.bytesCopied?c},
+  "bytes_expected" : ${job.expectedBytes?c},
+  "progress" : ${job.progress?c},
+  "message" : "${job.message?j_string}"
+}
@@ -0,0 +1,117 @@
+package eu.stratuslab.storage.disk.backend;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import eu.stratuslab.storage.disk.utils.DiskUtils;
+import eu.stratuslab.storage.persistence.Disk;
+
+public class CachingBackEndStorageTest {
+
+    @Test
+    public void repeatedLookupsHitTheCache() {
+        CountingBackEndStorage backend = new CountingBackEndStorage();
+        CachingBackEndStorage cache = new CachingBackEndStorage(backend, 10);
+
+        assertThat(cache.getTurl("a"), is("turl-a"));
+        assertThat(cache.getTurl("a"), is("turl-a"));
+        assertThat(cache.getTurl("a"), is("turl-a"));
+
+        assertThat(backend.turlLookups, is(1));
+        assertThat(cache.getHits(), is(2L));
+        assertThat(cache.getMisses(), is(1L));
+    }
+
+    @Test
+    public void cacheIsBounded() {
+        CountingBackEndStorage backend = new CountingBackEndStorage();
+        CachingBackEndStorage cache = new CachingBackEndStorage(backend, 2);
+
+        cache.getTurl("a");
+        cache.getTurl("b");
+        cache.getTurl("c");
+        assertThat(cache.getSize(), is(2));
+
+        // "a" was the least recently used entry
+        cache.getTurl("a");
+        assertThat(backend.turlLookups, is(4));
+    }
+
+    @Test
+    public void batchesInvalidateEntries() {
+        CountingBackEndStorage backend = new CountingBackEndStorage();
+        CachingBackEndStorage cache = new CachingBackEndStorage(backend, 10);
+
+        String uuid = DiskUtils.generateUUID();
+
+        cache.getTurl(uuid);
+        cache.execute(Arrays.asList(BackEndOperation.unmap(uuid), BackEndOperation.delete(uuid)));
+        cache.getTurl(uuid);
+        assertThat(backend.turlLookups, is(2));
+    }
+
+    @Test
+    public void modificationsInvalidateEntries() {
+        CountingBackEndStorage backend = new CountingBackEndStorage();
+        CachingBackEndStorage cache = new CachingBackEndStorage(backend, 10);
+
+        String uuid = DiskUtils.generateUUID();
+
+        cache.getTurl(uuid);
+        cache.delete(uuid);
+        cache.getTurl(uuid);
+        assertThat(backend.turlLookups, is(2));
+
+        cache.createCopyOnWrite(uuid, DiskUtils.generateUUID(), 1);
+        cache.getTurl(uuid);
+        assertThat(backend.turlLookups, is(3));
+
+        cache.rebase(new Disk(uuid));
+        cache.getTurl(uuid);
+        assertThat(backend.turlLookups, is(4));
+    }
+
+    private static class CountingBackEndStorage implements BackEndStorage {
+
+        int turlLookups = 0;
+
+        public void create(String uuid, long size) {
+        }
+
+        public void delete(String uuid) {
+        }
+
+        public void map(String uuid) {
+        }
+
+        public void unmap(String uuid) {
+        }
+
+        public String getTurl(String uuid) {
+            turlLookups++;
+            return "turl-" + uuid;
+        }
+
+        public String createCopyOnWrite(String baseUuid, String cowUuid, long size) {
+            return "";
+        }
+
+        public String rebase(Disk disk) {
+            return "";
+        }
+
+        public String checkDiskExists(String uuid) {
+            return "";
+        }
+
+        public List<BackEndResult> execute(List<BackEndOperation> operations) {
+            return BackEndOperation.executeSequentially(this, operations);
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package eu.stratuslab.storage.disk.backend;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.restlet.resource.ResourceException;
+
+import eu.stratuslab.storage.disk.utils.DiskUtils;
+import eu.stratuslab.storage.persistence.Disk;
+
+public class FileBackEndStorageTest {
+
+    private static final long SIZE_IN_BYTES = 64 * 1024L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileBackEndStorage backend;
+
+    @Before
+    public void createBackend() {
+        backend = new FileBackEndStorage(folder.getRoot());
+    }
+
+    @Test
+    public void createMakesVolumeOfRequestedSize() {
+        String uuid = DiskUtils.generateUUID();
+
+        backend.create(uuid, SIZE_IN_BYTES);
+
+        File volume = new File(folder.getRoot(), uuid);
+        assertTrue(volume.isFile());
+        assertThat(volume.length(), is(SIZE_IN_BYTES));
+        backend.checkDiskExists(uuid);
+    }
+
+    @Test(expected = ResourceException.class)
+    public void createTwiceFails() {
+        String uuid = DiskUtils.generateUUID();
+
+        backend.create(uuid, SIZE_IN_BYTES);
+        backend.create(uuid, SIZE_IN_BYTES);
+    }
+
+    @Test
+    public void turlPointsToVolume() {
+        String uuid = DiskUtils.generateUUID();
+
+        backend.create(uuid, SIZE_IN_BYTES);
+        backend.map(uuid);
+
+        String expected = "file://" + new File(folder.getRoot(), uuid).getAbsolutePath();
+        assertThat(backend.getTurl(uuid), is(expected));
+    }
+
+    @Test
+    public void snapshotCopiesBaseContents() throws IOException {
+        String base = DiskUtils.generateUUID();
+        String cow = DiskUtils.generateUUID();
+
+        backend.create(base, SIZE_IN_BYTES);
+        byte[] contents = "some disk contents".getBytes("UTF-8");
+        write(new File(folder.getRoot(), base), 4096, contents);
+
+        backend.createCopyOnWrite(base, cow, SIZE_IN_BYTES);
+
+        File copy = new File(folder.getRoot(), cow);
+        assertThat(copy.length(), is(SIZE_IN_BYTES));
+        assertArrayEquals(contents, read(copy, 4096, contents.length));
+
+        String larger = DiskUtils.generateUUID();
+        backend.createCopyOnWrite(base, larger, 2 * SIZE_IN_BYTES);
+
+        File grown = new File(folder.getRoot(), larger);
+        assertThat(grown.length(), is(2 * SIZE_IN_BYTES));
+        assertArrayEquals(contents, read(grown, 4096, contents.length));
+        assertArrayEquals(new byte[16], read(grown, SIZE_IN_BYTES, 16));
+    }
+
+    @Test
+    public void rebaseKeepsUuid() {
+        String uuid = DiskUtils.generateUUID();
+        backend.create(uuid, SIZE_IN_BYTES);
+
+        assertThat(backend.rebase(new Disk(uuid)), is(""));
+    }
+
+    @Test
+    public void deleteRemovesVolume() {
+        String uuid = DiskUtils.generateUUID();
+
+        backend.create(uuid, SIZE_IN_BYTES);
+        backend.unmap(uuid);
+        backend.delete(uuid);
+
+        assertFalse(new File(folder.getRoot(), uuid).exists());
+    }
+
+    @Test(expected = ResourceException.class)
+    public void checkUnknownVolumeFails() {
+        backend.checkDiskExists(DiskUtils.generateUUID());
+    }
+
+    @Test
+    public void batchStopsAtFirstFailure() {
+        String uuid = DiskUtils.generateUUID();
+        String missing = DiskUtils.generateUUID();
+
+        List<BackEndOperation> operations = Arrays.asList(BackEndOperation.create(uuid, SIZE_IN_BYTES),
+                BackEndOperation.map(uuid), BackEndOperation.check(missing), BackEndOperation.delete(uuid));
+
+        List<BackEndResult> results = backend.execute(operations);
+
+        assertThat(results.size(), is(3));
+        assertTrue(results.get(0).isSuccess());
+        assertTrue(results.get(1).isSuccess());
+        assertFalse(results.get(2).isSuccess());
+        assertTrue(new File(folder.getRoot(), uuid).isFile());
+    }
+
+    private static void write(File file, long offset, byte[] data) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(offset);
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] read(File file, long offset, int length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[length];
+            raf.seek(offset);
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+}
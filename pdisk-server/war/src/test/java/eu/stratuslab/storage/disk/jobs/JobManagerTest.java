@@ -0,0 +1,115 @@
+package eu.stratuslab.storage.disk.jobs;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import eu.stratuslab.storage.disk.jobs.Job.JobState;
+
+public class JobManagerTest {
+
+    private final JobManager manager = new JobManager(1, 1, 60);
+
+    @After
+    public void shutdown() {
+        manager.shutdown();
+    }
+
+    @Test
+    public void successfulJobReportsBytesCopied() throws InterruptedException {
+        Job job = new Job("owner", "disk");
+        job.setExpectedBytes(200L);
+
+        manager.submit(job, new JobManager.Task() {
+            public void execute(Job job) {
+                job.getBytesCopiedCounter().addAndGet(200L);
+            }
+        });
+
+        waitUntilFinished(job);
+
+        assertThat(job.getState(), is(JobState.SUCCEEDED));
+        assertThat(job.getBytesCopied(), is(200L));
+        assertThat(job.getProgress(), is(100));
+        assertThat(manager.getJob(job.getId()), is(job));
+    }
+
+    @Test
+    public void failedJobKeepsErrorMessage() throws InterruptedException {
+        Job job = new Job("owner", "disk");
+
+        manager.submit(job, new JobManager.Task() {
+            public void execute(Job job) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "checksum mismatch");
+            }
+        });
+
+        waitUntilFinished(job);
+
+        assertThat(job.getState(), is(JobState.FAILED));
+        assertThat(job.getMessage(), is("checksum mismatch"));
+    }
+
+    @Test
+    public void jobFailingWithAnErrorIsFailed() throws InterruptedException {
+        Job job = new Job("owner", "disk");
+
+        manager.submit(job, new JobManager.Task() {
+            public void execute(Job job) {
+                throw new OutOfMemoryError("Java heap space");
+            }
+        });
+
+        waitUntilFinished(job);
+
+        assertThat(job.getState(), is(JobState.FAILED));
+        assertThat(job.getMessage(), is("Java heap space"));
+    }
+
+    @Test
+    public void fullQueueIsRejected() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        JobManager.Task blocked = new JobManager.Task() {
+            public void execute(Job job) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        Job running = manager.submit(new Job("owner", "a"), blocked);
+        Job queued = manager.submit(new Job("owner", "b"), blocked);
+
+        try {
+            manager.submit(new Job("owner", "c"), blocked);
+            fail("job accepted with a full queue");
+        } catch (ResourceException e) {
+            assertThat(e.getStatus(), is(Status.SERVER_ERROR_SERVICE_UNAVAILABLE));
+        } finally {
+            release.countDown();
+        }
+
+        waitUntilFinished(running);
+        waitUntilFinished(queued);
+        assertThat(manager.getRejectedCount(), is(1L));
+    }
+
+    private static void waitUntilFinished(Job job) throws InterruptedException {
+        long limit = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!job.isFinished() && System.currentTimeMillis() < limit) {
+            Thread.sleep(10);
+        }
+        assertThat(job.isFinished(), is(true));
+    }
+
+}
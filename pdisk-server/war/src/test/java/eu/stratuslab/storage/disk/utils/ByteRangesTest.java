@@ -0,0 +1,71 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class ByteRangesTest {
+
+    @Test
+    public void singleRanges() {
+        assertRange(ByteRanges.parse("bytes=0-99", 1000), 0, 99);
+        assertRange(ByteRanges.parse("bytes=500-", 1000), 500, 999);
+        assertRange(ByteRanges.parse("bytes=-200", 1000), 800, 999);
+    }
+
+    @Test
+    public void rangesAreClippedToLength() {
+        assertRange(ByteRanges.parse("bytes=900-2000", 1000), 900, 999);
+        assertRange(ByteRanges.parse("bytes=-5000", 1000), 0, 999);
+    }
+
+    @Test
+    public void multipleRangesKeepOrder() {
+        List<long[]> ranges = ByteRanges.parse("bytes=500-599, 0-99,-10", 1000);
+
+        assertThat(ranges.size(), is(3));
+        assertArrayEquals(new long[] { 500, 599 }, ranges.get(0));
+        assertArrayEquals(new long[] { 0, 99 }, ranges.get(1));
+        assertArrayEquals(new long[] { 990, 999 }, ranges.get(2));
+        assertThat(ByteRanges.getTotalLength(ranges), is(210L));
+    }
+
+    @Test
+    public void unsatisfiableRangesGiveEmptyList() {
+        assertThat(ByteRanges.parse("bytes=1000-", 1000).isEmpty(), is(true));
+        assertThat(ByteRanges.parse("bytes=-0", 1000).isEmpty(), is(true));
+    }
+
+    @Test
+    public void invalidHeadersAreIgnored() {
+        assertNull(ByteRanges.parse(null, 1000));
+        assertNull(ByteRanges.parse("items=0-10", 1000));
+        assertNull(ByteRanges.parse("bytes=abc", 1000));
+        assertNull(ByteRanges.parse("bytes=20-10", 1000));
+    }
+
+    @Test
+    public void headersWithoutRangesAreIgnored() {
+        assertNull(ByteRanges.parse("bytes=", 1000));
+        assertNull(ByteRanges.parse("bytes= , ,", 1000));
+    }
+
+    @Test
+    public void signedPositionsAreIgnored() {
+        assertNull(ByteRanges.parse("bytes=--5", 1000));
+        assertNull(ByteRanges.parse("bytes=-+5", 1000));
+        assertNull(ByteRanges.parse("bytes=+5-10", 1000));
+        assertNull(ByteRanges.parse("bytes=0--10", 1000));
+    }
+
+    private static void assertRange(List<long[]> ranges, long first, long last) {
+        assertThat(ranges.size(), is(1));
+        assertArrayEquals(new long[] { first, last }, ranges.get(0));
+    }
+
+}
@@ -0,0 +1,148 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CompressedImageCacheTest {
+
+    private static final long HOUR = 3600L * 1000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void addedImageIsHit() throws IOException {
+        CompressedImageCache cache = new CompressedImageCache(folder.getRoot(), 1000L, HOUR);
+
+        assertNull(cache.lookup("a"));
+        write(cache, "a", 100);
+
+        assertThat(cache.lookup("a"), is(cache.getLocation("a")));
+        assertThat(cache.getHits(), is(1L));
+        assertThat(cache.getMisses(), is(1L));
+        assertThat(cache.getSizeInBytes(), is(100L));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvictedOverBudget() throws IOException {
+        CompressedImageCache cache = new CompressedImageCache(folder.getRoot(), 250L, HOUR);
+
+        write(cache, "a", 100);
+        write(cache, "b", 100);
+        cache.lookup("a");
+        write(cache, "c", 100);
+
+        assertNull(cache.lookup("b"));
+        assertThat(cache.getLocation("b").exists(), is(false));
+        assertThat(cache.lookup("a"), is(cache.getLocation("a")));
+        assertThat(cache.lookup("c"), is(cache.getLocation("c")));
+        assertThat(cache.getEvictions(), is(1L));
+        assertThat(cache.getSizeInBytes(), is(200L));
+    }
+
+    @Test
+    public void imageLargerThanBudgetIsKept() throws IOException {
+        CompressedImageCache cache = new CompressedImageCache(folder.getRoot(), 50L, HOUR);
+
+        write(cache, "a", 10);
+        write(cache, "b", 100);
+
+        assertNull(cache.lookup("a"));
+        assertThat(cache.lookup("b"), is(cache.getLocation("b")));
+    }
+
+    @Test
+    public void sweepRemovesExpiredImages() throws IOException {
+        CompressedImageCache cache = new CompressedImageCache(folder.getRoot(), 1000L, HOUR);
+
+        write(cache, "a", 100);
+        cache.sweep(System.currentTimeMillis() + 2 * HOUR);
+
+        assertThat(cache.getEntryCount(), is(0));
+        assertThat(cache.getSizeInBytes(), is(0L));
+        assertThat(cache.getLocation("a").exists(), is(false));
+    }
+
+    @Test
+    public void existingImagesAreIndexedAndPartsRemoved() throws IOException {
+        create(new File(folder.getRoot(), "a.gz"), 100);
+        create(new File(folder.getRoot(), "b.gz.part"), 100);
+        create(new File(folder.getRoot(), "c.link"), 100);
+
+        CompressedImageCache cache = new CompressedImageCache(folder.getRoot(), 1000L, HOUR);
+
+        assertThat(cache.getEntryCount(), is(1));
+        assertThat(cache.lookup("a"), is(cache.getLocation("a")));
+        assertThat(new File(folder.getRoot(), "b.gz.part").exists(), is(false));
+        assertThat(new File(folder.getRoot(), "c.link").exists(), is(true));
+    }
+
+    @Test
+    public void removeDeletesImage() throws IOException {
+        CompressedImageCache cache = new CompressedImageCache(folder.getRoot(), 1000L, HOUR);
+
+        write(cache, "a", 100);
+        cache.remove("a");
+
+        assertNull(cache.lookup("a"));
+        assertThat(cache.getLocation("a").exists(), is(false));
+    }
+
+    @Test
+    public void pinnedImageIsDeletedOnceReleased() throws IOException {
+        CompressedImageCache cache = new CompressedImageCache(folder.getRoot(), 1000L, HOUR);
+
+        write(cache, "a", 100);
+        File pinned = cache.lookup("a");
+        cache.lookup("a");
+
+        cache.sweep(System.currentTimeMillis() + 2 * HOUR);
+        assertThat(cache.getEntryCount(), is(0));
+        assertThat(pinned.exists(), is(true));
+
+        cache.release(pinned);
+        assertThat(pinned.exists(), is(true));
+
+        cache.release(pinned);
+        assertThat(pinned.exists(), is(false));
+    }
+
+    @Test
+    public void reAddedImageIsNotDeletedByEarlierPin() throws IOException {
+        CompressedImageCache cache = new CompressedImageCache(folder.getRoot(), 1000L, HOUR);
+
+        write(cache, "a", 100);
+        File pinned = cache.lookup("a");
+        cache.remove("a");
+
+        write(cache, "a", 50);
+        cache.release(pinned);
+
+        assertThat(cache.getLocation("a").exists(), is(true));
+        assertThat(cache.getSizeInBytes(), is(50L));
+    }
+
+    private static void write(CompressedImageCache cache, String uuid, int size) throws IOException {
+        create(cache.getLocation(uuid), size);
+        cache.add(uuid);
+    }
+
+    private static void create(File file, int size) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeltaCodecTest {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private static final String BASE = "base-image";
+
+    // magic, base name (UTF), block size
+    private static final int HEADER_SIZE = 8 + 2 + BASE.length() + 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File lastTarget;
+
+    @Test
+    public void identicalVolumesGiveEmptyDelta() throws IOException {
+        byte[] base = randomBytes(10 * BLOCK_SIZE, 1L);
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        long changed = encode(base, base.clone(), delta);
+
+        assertThat(changed, is(0L));
+        assertThat(delta.size(), is(HEADER_SIZE + 8));
+    }
+
+    @Test
+    public void onlyChangedBlocksAreSent() throws IOException {
+        byte[] base = randomBytes(64 * BLOCK_SIZE, 2L);
+        byte[] live = base.clone();
+        live[5] ^= 1;
+        live[40 * BLOCK_SIZE + 100] ^= 1;
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        long changed = encode(base, live, delta);
+
+        assertThat(changed, is(2L));
+        assertTrue(delta.size() < 3 * BLOCK_SIZE);
+        assertArrayEquals(live, applyOnto(base, delta.toByteArray()));
+    }
+
+    @Test
+    public void zeroedBlocksCarryNoData() throws IOException {
+        byte[] base = randomBytes(16 * BLOCK_SIZE, 3L);
+        byte[] live = base.clone();
+        Arrays.fill(live, 2 * BLOCK_SIZE, 6 * BLOCK_SIZE, (byte) 0);
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        long changed = encode(base, live, delta);
+
+        assertThat(changed, is(4L));
+        assertThat(delta.size(), is(HEADER_SIZE + 4 * (8 + 4) + 8));
+        assertArrayEquals(live, applyOnto(base, delta.toByteArray()));
+    }
+
+    @Test
+    public void liveLargerThanBaseAndPartialLastBlock() throws IOException {
+        byte[] base = randomBytes(3 * BLOCK_SIZE + 10, 4L);
+        byte[] live = new byte[8 * BLOCK_SIZE + 77];
+        System.arraycopy(base, 0, live, 0, base.length);
+        live[6 * BLOCK_SIZE] = 1;
+        live[live.length - 1] = 2;
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        long changed = encode(base, live, delta);
+
+        // The copy on write volume reads zeros beyond the end of its base.
+        byte[] cow = Arrays.copyOf(base, live.length);
+
+        assertThat(changed, is(2L));
+        assertArrayEquals(live, applyOnto(cow, delta.toByteArray()));
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidDeltaIsRejected() throws IOException {
+        applyOnto(new byte[BLOCK_SIZE], "not a delta at all".getBytes("US-ASCII"));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedDeltaIsRejected() throws IOException {
+        byte[] base = randomBytes(4 * BLOCK_SIZE, 5L);
+        byte[] live = randomBytes(4 * BLOCK_SIZE, 6L);
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        encode(base, live, delta);
+
+        applyOnto(base, Arrays.copyOf(delta.toByteArray(), delta.size() - 100));
+    }
+
+    @Test(expected = IOException.class)
+    public void deltaOfAnotherBaseIsRejected() throws IOException {
+        byte[] base = randomBytes(4 * BLOCK_SIZE, 7L);
+        byte[] live = randomBytes(4 * BLOCK_SIZE, 8L);
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        new DeltaCodec(BLOCK_SIZE).encode("another-image", new ByteArrayInputStream(base),
+                new ByteArrayInputStream(live), delta);
+
+        applyOnto(base, delta.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void blockBeyondEndOfDiskIsRejected() throws IOException {
+        byte[] base = randomBytes(4 * BLOCK_SIZE, 9L);
+        byte[] live = randomBytes(5 * BLOCK_SIZE, 10L);
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        encode(base, live, delta);
+
+        applyOnto(base, delta.toByteArray());
+    }
+
+    @Test
+    public void hugeBlockIndexIsRejected() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream delta = new DataOutputStream(bytes);
+        delta.writeBytes("PDSKDLT2");
+        delta.writeUTF(BASE);
+        delta.writeInt(BLOCK_SIZE);
+        delta.writeLong(Long.MAX_VALUE / 2);
+        delta.writeInt(-BLOCK_SIZE);
+        delta.writeLong(-1L);
+        delta.close();
+
+        byte[] base = new byte[4 * BLOCK_SIZE];
+        try {
+            applyOnto(base, bytes.toByteArray());
+            fail("block beyond the end of the disk was applied");
+        } catch (IOException e) {
+            assertThat(lastTarget.length(), is((long) base.length));
+        }
+    }
+
+    private static long encode(byte[] base, byte[] live, ByteArrayOutputStream delta) throws IOException {
+        return new DeltaCodec(BLOCK_SIZE).encode(BASE, new ByteArrayInputStream(base),
+                new ByteArrayInputStream(live), delta);
+    }
+
+    private byte[] applyOnto(byte[] contents, byte[] delta) throws IOException {
+        File target = folder.newFile();
+        lastTarget = target;
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            DeltaCodec.apply(new ByteArrayInputStream(delta), file, BASE, contents.length);
+            byte[] result = new byte[(int) file.length()];
+            file.seek(0L);
+            file.readFully(result);
+            return result;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+}
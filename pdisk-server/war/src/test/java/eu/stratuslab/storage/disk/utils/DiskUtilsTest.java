@@ -2,12 +2,18 @@ package eu.stratuslab.storage.disk.utils;
 
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 import org.junit.Test;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import eu.stratuslab.storage.persistence.Disk;
+import eu.stratuslab.storage.persistence.Disk.DiskType;
 
 public class DiskUtilsTest {
 
@@ -42,4 +48,32 @@ public class DiskUtilsTest {
         assertThat(DiskUtils.convertBytesToGibiBytes(twoGBofBytes + 1),
                 is((long) 3));
     }
+
+    @Test
+    public void testSeedWithCloneCannotBeRemoved() {
+        Disk seed = new Disk();
+        seed.setOwner("alice");
+        seed.setType(DiskType.DATA_IMAGE_RAW_READONLY);
+        seed.setSeed(true);
+        seed.store();
+
+        DiskUtils.checkDiskRemovable(seed);
+
+        Disk clone = new Disk();
+        clone.setOwner("bob");
+        clone.setBaseDiskUuid(seed.getUuid());
+        clone.setIdentifier("snapshot:" + seed.getUuid());
+        clone.store();
+
+        try {
+            DiskUtils.checkDiskRemovable(seed);
+            fail("seed removable while a clone depends on it");
+        } catch (ResourceException e) {
+            assertThat(e.getStatus(), is(Status.CLIENT_ERROR_CONFLICT));
+        }
+
+        clone.remove();
+        DiskUtils.checkDiskRemovable(seed);
+        seed.remove();
+    }
 }
@@ -18,8 +18,10 @@ public class DownloadUtilsTest {
 	@Test
 	public void testGetHttpClientWithProxy() throws MalformedURLException {
 
+		HttpClientPool pool = new HttpClientPool(2, 2, 10, 10, 60);
 		DefaultHttpClient client = DownloadUtils
-				.getHttpClientWithProxy("http://www.google.com");
+				.getHttpClientWithProxy("http://www.google.com", pool);
+		pool.shutdown();
 
 		HttpHost proxy = (HttpHost) client.getParams().getParameter(
 				ConnRoutePNames.DEFAULT_PROXY);
@@ -0,0 +1,82 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class JsonListRepresentationTest {
+
+    @Test
+    public void remainingBatchesAreFetched() throws IOException {
+        IntegerList list = new IntegerList(Arrays.asList(0, 1), 2, false, 5);
+
+        assertThat(write(list), is("[\n  {\"n\": \"0\"},\n  {\"n\": \"1\"},\n  {\"n\": \"2\"},\n"
+                + "  {\"n\": \"3\"},\n  {\"n\": \"4\"}\n]\n"));
+        assertThat(list.fetches, is(2));
+    }
+
+    @Test
+    public void completePageIsNotExtended() throws IOException {
+        IntegerList list = new IntegerList(Arrays.asList(0, 1), 2, true, 5);
+
+        assertThat(write(list), is("[\n  {\"n\": \"0\"},\n  {\"n\": \"1\"}\n]\n"));
+        assertThat(list.fetches, is(0));
+    }
+
+    @Test
+    public void emptyList() throws IOException {
+        IntegerList list = new IntegerList(new ArrayList<Integer>(), 2, false, 0);
+
+        assertThat(write(list), is("[\n]\n"));
+        assertThat(list.fetches, is(0));
+    }
+
+    @Test
+    public void stringsAreEscaped() {
+        assertThat(JsonListRepresentation.quote("a\"b\\c\nd\u0001"), is("\"a\\\"b\\\\c\\nd\\u0001\""));
+    }
+
+    private static String write(IntegerList list) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        list.write(out);
+        return out.toString("UTF-8");
+    }
+
+    private static final class IntegerList extends JsonListRepresentation<Integer> {
+
+        private final int total;
+
+        private int fetches = 0;
+
+        public IntegerList(List<Integer> firstBatch, int batchSize, boolean complete, int total) {
+            super(firstBatch, batchSize, complete);
+            this.total = total;
+        }
+
+        @Override
+        protected List<Integer> fetch(Integer last, int max) {
+            fetches++;
+            List<Integer> batch = new ArrayList<Integer>();
+            for (int i = last + 1; i < total && batch.size() < max; i++) {
+                batch.add(i);
+            }
+            return batch;
+        }
+
+        @Override
+        protected void writeRow(Writer writer, Integer row) throws IOException {
+            writer.write("{");
+            writeField(writer, "n", row, true);
+            writer.write("}");
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ParallelGzipTest {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    private final ParallelGzip gzip = new ParallelGzip(3, CHUNK_SIZE);
+
+    @After
+    public void shutdown() {
+        gzip.shutdown();
+    }
+
+    @Test
+    public void multiMemberStreamInflatesToOriginal() throws IOException {
+        byte[] data = new byte[25 * CHUNK_SIZE + 17];
+        Random random = new Random(7);
+        for (int i = 0; i < data.length; i += 2) {
+            data[i] = (byte) random.nextInt(4);
+        }
+
+        AtomicLong progress = new AtomicLong();
+        byte[] compressed = compress(data, progress);
+
+        assertThat(progress.get(), is((long) data.length));
+        assertArrayEquals(data, inflate(compressed));
+    }
+
+    @Test
+    public void emptyInputIsValidGzip() throws IOException {
+        byte[] compressed = compress(new byte[0], new AtomicLong());
+
+        assertThat(compressed[0], is((byte) 0x1f));
+        assertThat(compressed[1], is((byte) 0x8b));
+        assertThat(inflate(compressed).length, is(0));
+    }
+
+    @Test
+    public void exactMultipleOfChunkSize() throws IOException {
+        byte[] data = new byte[4 * CHUNK_SIZE];
+        new Random(3).nextBytes(data);
+
+        assertArrayEquals(data, inflate(compress(data, new AtomicLong())));
+    }
+
+    @Test
+    public void zeroChunksShareOneMember() throws IOException {
+        byte[] data = new byte[10 * CHUNK_SIZE + 5];
+        data[3 * CHUNK_SIZE] = 1;
+        data[data.length - 1] = 2;
+
+        byte[] compressed = compress(data, new AtomicLong());
+
+        // Chunks 0-2 and 4-9 are zeros, the partial last chunk is not.
+        assertThat(gzip.getZeroChunkCount(), is(9L));
+        assertArrayEquals(data, inflate(compressed));
+    }
+
+    private byte[] compress(byte[] data, AtomicLong progress) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        gzip.compress(new ByteArrayInputStream(data), out, progress);
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+}
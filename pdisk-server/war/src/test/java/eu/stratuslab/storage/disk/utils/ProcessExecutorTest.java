@@ -0,0 +1,108 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ProcessExecutorTest {
+
+    private final ProcessExecutor executor = new ProcessExecutor(1);
+
+    @After
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void outputAndStatusAreReturned() throws InterruptedException, ExecutionException {
+        Future<ProcessResult> future = executor.submit("sh", shell("echo hello; echo oops >&2; exit 3"), 0,
+                TimeUnit.SECONDS);
+
+        ProcessResult result = future.get();
+
+        assertThat(result.getReturnCode(), is(3));
+        assertTrue(result.getOutput().contains("hello\n"));
+        assertTrue(result.getOutput().contains("oops\n"));
+        assertThat(result.isTimedOut(), is(false));
+    }
+
+    @Test
+    public void processIsKilledOnTimeout() throws InterruptedException, ExecutionException {
+        long start = System.currentTimeMillis();
+
+        ProcessResult result = executor.submit("sh", shell("sleep 30"), 200, TimeUnit.MILLISECONDS).get();
+
+        assertThat(result.isTimedOut(), is(true));
+        assertTrue(System.currentTimeMillis() - start < 10000L);
+    }
+
+    @Test
+    public void commandsOfSameTypeAreQueued() throws InterruptedException, ExecutionException {
+        Future<ProcessResult> first = executor.submit("sh", shell("sleep 1"), 0, TimeUnit.SECONDS);
+        Future<ProcessResult> second = executor.submit("sh", shell("exit 0"), 0, TimeUnit.SECONDS);
+
+        assertThat(second.isDone(), is(false));
+
+        first.get();
+        assertThat(second.get().getReturnCode(), is(0));
+    }
+
+    @Test
+    public void cancelKillsProcess() throws InterruptedException {
+        long start = System.currentTimeMillis();
+
+        Future<ProcessResult> future = executor.submit("sh", shell("sleep 30"), 0, TimeUnit.SECONDS);
+        Thread.sleep(200);
+
+        assertThat(future.cancel(true), is(true));
+
+        Future<ProcessResult> next = executor.submit("sh", shell("exit 0"), 0, TimeUnit.SECONDS);
+        try {
+            assertThat(next.get().getReturnCode(), is(0));
+        } catch (ExecutionException e) {
+            throw new AssertionError(e);
+        }
+        assertTrue(System.currentTimeMillis() - start < 10000L);
+    }
+
+    @Test
+    public void listenerFollowsProcess() throws InterruptedException, ExecutionException {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger exits = new AtomicInteger();
+
+        ProcessExecutor.ProcessListener listener = new ProcessExecutor.ProcessListener() {
+            public void starting() {
+                running.incrementAndGet();
+            }
+
+            public void exited() {
+                running.decrementAndGet();
+                exits.incrementAndGet();
+            }
+        };
+
+        Future<ProcessResult> future = executor.submit("sh", 1, shell("sleep 1"), 0, TimeUnit.SECONDS, listener);
+        Thread.sleep(200);
+        assertThat(running.get(), is(1));
+
+        future.get();
+        assertThat(running.get(), is(0));
+
+        executor.submit("sh", 1, shell("sleep 30"), 200, TimeUnit.MILLISECONDS, listener).get();
+        assertThat(running.get(), is(0));
+        assertThat(exits.get(), is(2));
+    }
+
+    private static ProcessBuilder shell(String script) {
+        return new ProcessBuilder("/bin/sh", "-c", script);
+    }
+
+}
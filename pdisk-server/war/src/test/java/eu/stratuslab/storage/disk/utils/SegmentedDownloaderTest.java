@@ -0,0 +1,221 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class SegmentedDownloaderTest {
+
+    private static final int SIZE = 1024 * 1024 + 17;
+
+    private final byte[] contents = new byte[SIZE];
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final AtomicInteger misplacedRanges = new AtomicInteger();
+
+    private HttpServer server;
+
+    private DefaultHttpClient client;
+
+    private File target;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(42L).nextBytes(contents);
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/ranges", new RangeHandler(true));
+        server.createContext("/plain", new RangeHandler(false));
+        server.start();
+
+        PoolingClientConnectionManager cm = new PoolingClientConnectionManager();
+        cm.setDefaultMaxPerRoute(4);
+        client = new DefaultHttpClient(cm);
+
+        target = File.createTempFile("segmented-", ".img");
+    }
+
+    @After
+    public void tearDown() {
+        client.getConnectionManager().shutdown();
+        server.stop(0);
+        target.delete();
+    }
+
+    @Test
+    public void probeReturnsLengthOnlyWhenRangesAreAccepted() throws IOException {
+        SegmentedDownloader downloader = new SegmentedDownloader(client, 4, 1024L, 0);
+
+        assertThat(downloader.probe(getUrl("/ranges")), is((long) SIZE));
+        assertThat(downloader.probe(getUrl("/plain")), is(-1L));
+    }
+
+    @Test
+    public void segmentCountDependsOnLength() {
+        SegmentedDownloader downloader = new SegmentedDownloader(client, 4, 1000L, 0);
+
+        assertThat(downloader.getSegmentCount(10L), is(1));
+        assertThat(downloader.getSegmentCount(2500L), is(2));
+        assertThat(downloader.getSegmentCount(1000000L), is(4));
+    }
+
+    @Test
+    public void segmentsAreWrittenAtTheirOffsets() throws IOException {
+        SegmentedDownloader downloader = new SegmentedDownloader(client, 4, 1024L, 0);
+        AtomicLong bytesCopied = new AtomicLong();
+
+        downloader.download(getUrl("/ranges"), SIZE, target, bytesCopied);
+
+        assertThat(bytesCopied.get(), is((long) SIZE));
+        assertArrayEquals(contents, readTarget());
+    }
+
+    @Test
+    public void failedSegmentIsResumed() throws IOException {
+        failures.set(2);
+        SegmentedDownloader downloader = new SegmentedDownloader(client, 4, 1024L, 3);
+        AtomicLong bytesCopied = new AtomicLong();
+
+        downloader.download(getUrl("/ranges"), SIZE, target, bytesCopied);
+
+        assertThat(failures.get(), is(0));
+        assertThat(bytesCopied.get(), is((long) SIZE));
+        assertArrayEquals(contents, readTarget());
+    }
+
+    @Test(expected = IOException.class)
+    public void downloadFailsWithoutRetries() throws IOException {
+        failures.set(1);
+        SegmentedDownloader downloader = new SegmentedDownloader(client, 4, 1024L, 0);
+
+        downloader.download(getUrl("/ranges"), SIZE, target, new AtomicLong());
+    }
+
+    @Test
+    public void misplacedRangeIsRetried() throws IOException {
+        misplacedRanges.set(2);
+        SegmentedDownloader downloader = new SegmentedDownloader(client, 4, 1024L, 3);
+
+        downloader.download(getUrl("/ranges"), SIZE, target, new AtomicLong());
+
+        assertThat(misplacedRanges.get(), is(0));
+        assertArrayEquals(contents, readTarget());
+    }
+
+    @Test(expected = IOException.class)
+    public void misplacedRangeFailsWithoutRetries() throws IOException {
+        misplacedRanges.set(1);
+        SegmentedDownloader downloader = new SegmentedDownloader(client, 4, 1024L, 0);
+
+        downloader.download(getUrl("/ranges"), SIZE, target, new AtomicLong());
+    }
+
+    private String getUrl(String path) {
+        return "http://localhost:" + server.getAddress().getPort() + path;
+    }
+
+    private byte[] readTarget() throws IOException {
+        byte[] data = new byte[SIZE];
+        RandomAccessFile in = new RandomAccessFile(target, "r");
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * Serves the contents, honouring single byte ranges if acceptRanges is
+     * set. While failures is positive, each range response is cut after half
+     * of its bytes. While misplacedRanges is positive, each range response
+     * starts one byte after the requested range (as its Content-Range says).
+     */
+    private class RangeHandler implements HttpHandler {
+
+        private final boolean acceptRanges;
+
+        RangeHandler(boolean acceptRanges) {
+            this.acceptRanges = acceptRanges;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+
+            if (!acceptRanges || range == null) {
+                if (acceptRanges) {
+                    exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                }
+                sendHeaders(exchange, 200, SIZE);
+                if (!"HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseBody().write(contents);
+                }
+                exchange.close();
+                return;
+            }
+
+            long[] bounds = ByteRanges.parse(range, SIZE).get(0);
+            if (take(misplacedRanges)) {
+                bounds[0]++;
+            }
+            int first = (int) bounds[0];
+            int length = (int) (bounds[1] - bounds[0] + 1);
+
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + bounds[0] + "-" + bounds[1] + "/" + SIZE);
+            sendHeaders(exchange, 206, length);
+
+            OutputStream out = exchange.getResponseBody();
+            if (take(failures)) {
+                out.write(contents, first, length / 2);
+                out.flush();
+                throw new IOException("injected failure");
+            }
+
+            out.write(contents, first, length);
+            exchange.close();
+        }
+
+        private boolean take(AtomicInteger counter) {
+            for (;;) {
+                int remaining = counter.get();
+                if (remaining <= 0) {
+                    return false;
+                }
+                if (counter.compareAndSet(remaining, remaining - 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void sendHeaders(HttpExchange exchange, int status, int length) throws IOException {
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(length));
+                exchange.sendResponseHeaders(status, -1);
+            } else {
+                exchange.sendResponseHeaders(status, length);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+    private final SingleFlight<String, String> flights = new SingleFlight<String, String>();
+
+    private final ExecutorService callers = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdown() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void concurrentCallersShareOneExecution() throws Exception {
+        final AtomicInteger executions = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Callable<String> task = new Callable<String>() {
+            public String call() throws InterruptedException {
+                executions.incrementAndGet();
+                release.await();
+                return "compressed";
+            }
+        };
+
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < 4; i++) {
+            results.add(callers.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return flights.execute("uuid", task);
+                }
+            }));
+        }
+
+        waitUntilRunning("uuid");
+        Thread.sleep(100);
+        release.countDown();
+
+        for (Future<String> result : results) {
+            assertThat(result.get(5, TimeUnit.SECONDS), is("compressed"));
+        }
+        assertThat(executions.get(), is(1));
+        assertThat(flights.isRunning("uuid"), is(false));
+    }
+
+    @Test
+    public void failureIsReportedAndKeyReleased() throws Exception {
+        try {
+            flights.execute("uuid", new Callable<String>() {
+                public String call() {
+                    throw new IllegalStateException("backend down");
+                }
+            });
+            fail("failure not reported");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause().getMessage(), is("backend down"));
+        }
+
+        assertThat(flights.isRunning("uuid"), is(false));
+        assertThat(flights.execute("uuid", constant("again")), is("again"));
+    }
+
+    @Test
+    public void startedFlightIsCompletedLater() throws Exception {
+        SingleFlight.Flight<String> flight = flights.start("uuid");
+
+        assertNull(flights.start("uuid"));
+        Future<String> follower = flights.find("uuid");
+
+        flight.succeed("done");
+
+        assertThat(follower.get(), is("done"));
+        assertThat(flights.isRunning("uuid"), is(false));
+        assertNull(flights.find("uuid"));
+    }
+
+    @Test
+    public void keysAreIndependent() throws Exception {
+        SingleFlight.Flight<String> flight = flights.start("a");
+
+        assertThat(flights.execute("b", constant("b")), is("b"));
+
+        flight.succeed("a");
+    }
+
+    private void waitUntilRunning(String key) throws InterruptedException {
+        for (int i = 0; i < 500 && !flights.isRunning(key); i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static Callable<String> constant(final String value) {
+        return new Callable<String>() {
+            public String call() {
+                return value;
+            }
+        };
+    }
+
+}
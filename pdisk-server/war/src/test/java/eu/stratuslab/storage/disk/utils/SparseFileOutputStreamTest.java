@@ -0,0 +1,124 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SparseFileOutputStreamTest {
+
+    private static final int BLOCK_SIZE = ZeroBlocks.BLOCK_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void contentsArePreserved() throws IOException {
+        byte[] data = new byte[3 * 1024 * 1024 + 123];
+        Random random = new Random(11);
+        for (int i = 0; i < data.length; i += 5 * BLOCK_SIZE) {
+            data[i + 7] = (byte) random.nextInt();
+            data[i + BLOCK_SIZE - 1] = 1;
+        }
+
+        assertArrayEquals(data, writeAndRead(folder.newFile(), data, 1000));
+    }
+
+    @Test
+    public void trailingZerosAreKept() throws IOException {
+        byte[] data = new byte[2 * 1024 * 1024 + 10];
+        data[0] = 1;
+
+        assertArrayEquals(data, writeAndRead(folder.newFile(), data, 4096));
+    }
+
+    @Test
+    public void existingFileKeepsItsLength() throws IOException {
+        File target = folder.newFile();
+        byte[] previous = new byte[10 * BLOCK_SIZE];
+        Arrays.fill(previous, (byte) 0xff);
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            out.write(previous);
+        } finally {
+            out.close();
+        }
+
+        byte[] data = new byte[4 * BLOCK_SIZE];
+        data[3 * BLOCK_SIZE] = 2;
+
+        byte[] expected = previous.clone();
+        System.arraycopy(data, 0, expected, 0, data.length);
+        assertArrayEquals(expected, writeAndRead(target, data, 100));
+    }
+
+    @Test
+    public void existingFileGrowsToWrittenLength() throws IOException {
+        File target = folder.newFile();
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            out.write(new byte[] { 1, 2, 3 });
+        } finally {
+            out.close();
+        }
+
+        byte[] data = new byte[2 * 1024 * 1024 + 10];
+        data[data.length - 1] = 4;
+
+        assertArrayEquals(data, writeAndRead(target, data, 4096));
+    }
+
+    @Test
+    public void singleByteWrites() throws IOException {
+        File target = folder.newFile();
+        OutputStream out = SparseFileOutputStream.open(target);
+        try {
+            for (int i = 0; i < 3 * BLOCK_SIZE; i++) {
+                out.write(i < BLOCK_SIZE ? 0 : i);
+            }
+        } finally {
+            out.close();
+        }
+
+        byte[] contents = read(target);
+        assertThat(contents.length, is(3 * BLOCK_SIZE));
+        assertThat(contents[BLOCK_SIZE - 1], is((byte) 0));
+        assertThat(contents[BLOCK_SIZE + 1], is((byte) (BLOCK_SIZE + 1)));
+    }
+
+    private static byte[] writeAndRead(File target, byte[] data, int writeSize) throws IOException {
+        OutputStream out = SparseFileOutputStream.open(target);
+        try {
+            for (int i = 0; i < data.length; i += writeSize) {
+                out.write(data, i, Math.min(writeSize, data.length - i));
+                out.flush();
+            }
+        } finally {
+            out.close();
+        }
+        return read(target);
+    }
+
+    private static byte[] read(File target) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(target, "r");
+        try {
+            byte[] contents = new byte[(int) file.length()];
+            file.readFully(contents);
+            return contents;
+        } finally {
+            file.close();
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class VolumeCopierTest {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void copyWithZeroRunsIsIdentical() throws IOException {
+        byte[] data = new byte[3 * VolumeCopier.BUFFER_SIZE + 123];
+        Random random = new Random(42);
+        // data, zeros, data, zeros: covers runs across buffer boundaries
+        fillRandom(random, data, 0, 10000);
+        fillRandom(random, data, VolumeCopier.BUFFER_SIZE + 5, VolumeCopier.BUFFER_SIZE + 9000);
+        fillRandom(random, data, data.length - 50, data.length);
+
+        File source = write("source", data);
+        File target = new File(folder.getRoot(), "target");
+
+        AtomicLong progress = new AtomicLong();
+        long copied = VolumeCopier.copy(source, target, progress);
+
+        assertThat(copied, is((long) data.length));
+        assertThat(progress.get(), is((long) data.length));
+        assertArrayEquals(data, read(target));
+    }
+
+    @Test
+    public void trailingZerosKeepSize() throws IOException {
+        byte[] data = new byte[2 * VolumeCopier.BUFFER_SIZE];
+        data[0] = 1;
+
+        File source = write("source", data);
+        File target = new File(folder.getRoot(), "target");
+
+        VolumeCopier.copy(source, target, new AtomicLong());
+
+        assertThat(target.length(), is((long) data.length));
+        assertArrayEquals(data, read(target));
+    }
+
+    @Test
+    public void progressCounterIsOptional() throws IOException {
+        byte[] data = new byte[VolumeCopier.BUFFER_SIZE + 1];
+        data[data.length - 1] = 1;
+
+        File source = write("source", data);
+        File target = new File(folder.getRoot(), "target");
+
+        assertThat(VolumeCopier.copy(source, target, null), is((long) data.length));
+        assertArrayEquals(data, read(target));
+    }
+
+    @Test
+    public void existingTargetIsOverwritten() throws IOException {
+        byte[] old = new byte[3 * VolumeCopier.BLOCK_SIZE];
+        fillRandom(new Random(1), old, 0, old.length);
+        File target = write("target", old);
+
+        byte[] data = new byte[2 * VolumeCopier.BLOCK_SIZE];
+        data[data.length - 1] = 7;
+        File source = write("source", data);
+
+        VolumeCopier.copy(source, target, new AtomicLong());
+
+        byte[] expected = old.clone();
+        System.arraycopy(data, 0, expected, 0, data.length);
+        assertArrayEquals(expected, read(target));
+    }
+
+    @Test
+    public void existingLongerTargetKeepsSize() throws IOException {
+        byte[] old = new byte[4 * VolumeCopier.BLOCK_SIZE];
+        old[old.length - 1] = 9;
+        File target = write("target", old);
+
+        byte[] data = new byte[VolumeCopier.BLOCK_SIZE];
+        data[0] = 3;
+        File source = write("source", data);
+
+        assertThat(VolumeCopier.copy(source, target, null), is((long) data.length));
+
+        byte[] expected = old.clone();
+        expected[0] = 3;
+        assertThat(target.length(), is((long) old.length));
+        assertArrayEquals(expected, read(target));
+    }
+
+    @Test
+    public void emptyTargetIsSparse() throws IOException {
+        byte[] data = new byte[2 * VolumeCopier.BUFFER_SIZE];
+        data[1] = 5;
+
+        File source = write("source", data);
+        File target = write("target", new byte[0]);
+
+        VolumeCopier.copy(source, target, null);
+
+        assertThat(target.length(), is((long) data.length));
+        assertArrayEquals(data, read(target));
+    }
+
+    @Test
+    @Ignore("benchmark: compares the copy with dd on a 512 MiB image")
+    public void benchmarkAgainstDd() throws IOException, InterruptedException {
+        int mebibytes = 512;
+        byte[] chunk = new byte[1024 * 1024];
+        Random random = new Random(0);
+
+        File source = new File(folder.getRoot(), "image");
+        FileOutputStream os = new FileOutputStream(source);
+        try {
+            for (int i = 0; i < mebibytes; i++) {
+                if (i % 2 == 0) {
+                    random.nextBytes(chunk);
+                } else {
+                    Arrays.fill(chunk, (byte) 0);
+                }
+                os.write(chunk);
+            }
+        } finally {
+            os.close();
+        }
+
+        long start = System.nanoTime();
+        Process dd = new ProcessBuilder("dd", "if=" + source.getAbsolutePath(), "of="
+                + new File(folder.getRoot(), "dd").getAbsolutePath()).start();
+        dd.waitFor();
+        long ddMillis = (System.nanoTime() - start) / 1000000L;
+
+        File copy = new File(folder.getRoot(), "copier");
+        start = System.nanoTime();
+        long copied = VolumeCopier.copy(source, copy, null);
+        long copierMillis = (System.nanoTime() - start) / 1000000L;
+
+        assertThat(copied, is(source.length()));
+        assertThat(copy.length(), is(source.length()));
+
+        LOGGER.info("dd: " + ddMillis + " ms, VolumeCopier: " + copierMillis + " ms for " + mebibytes + " MiB");
+    }
+
+    private static void fillRandom(Random random, byte[] data, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        random.nextBytes(bytes);
+        System.arraycopy(bytes, 0, data, from, bytes.length);
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(data);
+        } finally {
+            raf.close();
+        }
+        return data;
+    }
+
+}
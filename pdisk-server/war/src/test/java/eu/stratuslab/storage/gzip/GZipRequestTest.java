@@ -10,10 +10,9 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
-import eu.stratuslab.storage.disk.main.ServiceConfiguration;
 import eu.stratuslab.storage.disk.utils.DiskUtils;
 import eu.stratuslab.storage.disk.utils.FileUtils;
-import eu.stratuslab.storage.disk.utils.MiscUtils;
+import eu.stratuslab.storage.disk.utils.SingleFlight;
 
 @Ignore
 public class GZipRequestTest {
@@ -31,19 +30,18 @@ public class GZipRequestTest {
     @Test
     public void testImageBuldingDetection() throws IOException {
 
-        createFakeImageFile(uuid);
+        SingleFlight.Flight<File> compression = DiskUtils.startCompression(uuid);
 
         if (!DiskUtils.isCompressedDiskBuilding(uuid)) {
             fail("Image should be in build state");
         }
 
-        createFakeCompressedImageFile(uuid);
-
-        if (!DiskUtils.isCompressedDiskBuilding(uuid)) {
-            fail("Image should be in build state");
+        if (DiskUtils.startCompression(uuid) != null) {
+            fail("Image should not be compressed twice");
         }
 
-        removeFakeImageFile(uuid);
+        createFakeCompressedImageFile(uuid);
+        compression.succeed(new File(FileUtils.getCompressedDiskLocation(uuid)));
 
         if (DiskUtils.isCompressedDiskBuilding(uuid)) {
             fail("Image should not be in build state");
@@ -52,11 +50,6 @@ public class GZipRequestTest {
         removeCompressedFakeImageFile(uuid);
     }
 
-    private void createFakeImageFile(String uuid) throws IOException {
-        File fakeImage = FileUtils.getCachedDiskFile(uuid);
-        fakeImage.createNewFile();
-    }
-
     private void createFakeCompressedImageFile(String uuid) throws IOException {
         String fakeCompressedImagePath = FileUtils
                 .getCompressedDiskLocation(uuid);
@@ -64,37 +57,10 @@ public class GZipRequestTest {
         fakeCompressedImage.createNewFile();
     }
 
-    private void removeFakeImageFile(String uuid) {
-        File fakeImage = FileUtils.getCachedDiskFile(uuid);
-        fakeImage.delete();
-    }
-
     private void removeCompressedFakeImageFile(String uuid) {
         String fakeCompressedImagePath = FileUtils
                 .getCompressedDiskLocation(uuid);
         File fakeCompressedImage = new File(fakeCompressedImagePath);
         fakeCompressedImage.delete();
     }
-
-    @Test
-    public void testCacheExpiration() throws IOException {
-
-        createFakeCompressedImageFile(uuid);
-
-        if (DiskUtils.hasCompressedDiskExpire(uuid)) {
-            fail("Image should not have expire yet");
-        }
-
-        waitCacheToExpire();
-
-        if (!DiskUtils.hasCompressedDiskExpire(uuid)) {
-            fail("Image should have expire");
-        }
-
-        removeCompressedFakeImageFile(uuid);
-    }
-
-    private void waitCacheToExpire() {
-        MiscUtils.sleep(2 * ServiceConfiguration.CACHE_EXPIRATION_DURATION);
-    }
 }
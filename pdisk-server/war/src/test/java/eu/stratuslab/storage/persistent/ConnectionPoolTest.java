@@ -0,0 +1,105 @@
+package eu.stratuslab.storage.persistent;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Test;
+
+import eu.stratuslab.storage.persistence.ConnectionPool;
+
+public class ConnectionPoolTest {
+
+	private ConnectionPool pool;
+
+	private ConnectionPool createPool(int maxSize) throws Exception {
+		Class.forName("org.hsqldb.jdbcDriver");
+		Properties info = new Properties();
+		info.setProperty("user", "sa");
+		info.setProperty("password", "");
+		pool = new ConnectionPool("jdbc:hsqldb:mem:pooltest", info, maxSize,
+				1, "CALL 1", 0);
+		return pool;
+	}
+
+	@After
+	public void closePool() {
+		if (pool != null) {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testReleasedConnectionIsReused() throws Exception {
+		createPool(2);
+
+		Connection first = pool.getConnection();
+		assertThat(pool.getActiveCount(), is(1));
+		pool.release(first);
+		assertThat(pool.getActiveCount(), is(0));
+		assertThat(pool.getIdleCount(), is(1));
+
+		Connection second = pool.getConnection();
+		assertThat(second == first, is(true));
+		pool.release(second);
+
+		assertThat(pool.getCreatedCount(), is(1L));
+		assertThat(pool.getBorrowedCount(), is(2L));
+	}
+
+	@Test
+	public void testExhaustedPoolTimesOut() throws Exception {
+		createPool(1);
+
+		Connection connection = pool.getConnection();
+		try {
+			pool.getConnection();
+			fail("pool of one connection gave two");
+		} catch (SQLException e) {
+			// expected
+		}
+		assertThat(pool.getTimeoutCount(), is(1L));
+		assertThat(pool.getMaxWaitMillis() > 0, is(true));
+
+		pool.release(connection);
+		pool.release(pool.getConnection());
+		assertThat(pool.getCreatedCount(), is(1L));
+	}
+
+	@Test
+	public void testInvalidConnectionIsReplaced() throws Exception {
+		createPool(1);
+
+		Connection first = pool.getConnection();
+		pool.release(first);
+		first.close();
+
+		Connection second = pool.getConnection();
+		assertThat(second == first, is(false));
+		assertThat(second.isClosed(), is(false));
+		pool.release(second);
+
+		assertThat(pool.getInvalidCount(), is(1L));
+		assertThat(pool.getCreatedCount(), is(2L));
+	}
+
+	@Test
+	public void testHeldConnectionIsReportedOnce() throws Exception {
+		createPool(1);
+
+		Connection connection = pool.getConnection();
+		Thread.sleep(10);
+		assertThat(pool.detectLeaks(), is(1));
+		assertThat(pool.detectLeaks(), is(0));
+		assertThat(pool.getLeakCount(), is(1L));
+
+		pool.release(connection);
+		assertThat(pool.getActiveCount(), is(0));
+	}
+
+}
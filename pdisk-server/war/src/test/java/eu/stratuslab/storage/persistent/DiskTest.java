@@ -1,11 +1,33 @@
 package eu.stratuslab.storage.persistent;
 
 import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.hibernate.stat.Statistics;
 import org.junit.Test;
 
+import eu.stratuslab.storage.disk.resources.BaseResource.DiskVisibility;
 import eu.stratuslab.storage.persistence.Disk;
+import eu.stratuslab.storage.persistence.Disk.DiskType;
+import eu.stratuslab.storage.persistence.DiskQuery;
+import eu.stratuslab.storage.persistence.DiskQuery.SortKey;
+import eu.stratuslab.storage.persistence.DiskView;
+import eu.stratuslab.storage.persistence.Instance;
+import eu.stratuslab.storage.persistence.Mount;
+import eu.stratuslab.storage.persistence.PersistenceUtil;
 
 public class DiskTest {
 
@@ -31,4 +53,220 @@ public class DiskTest {
 
         assertThat(Disk.countSnapshots(origin.getUuid()), is((int) 2));
     }
+
+    @Test
+    public void testFindSeedQuery() {
+        String identifier = "seed-" + new Disk().getUuid();
+
+        Disk copy = new Disk();
+        copy.setOwner("alice");
+        copy.setIdentifier(identifier);
+        copy.store();
+
+        assertNull(Disk.findSeed(identifier, "alice"));
+
+        Disk seed = new Disk();
+        seed.setOwner("alice");
+        seed.setIdentifier(identifier);
+        seed.setSeed(true);
+        seed.store();
+
+        Disk quarantined = new Disk();
+        quarantined.setOwner("alice");
+        quarantined.setIdentifier(identifier);
+        quarantined.setSeed(true);
+        quarantined.setQuarantine("2012-01-01");
+        quarantined.store();
+
+        assertThat(Disk.findSeed(identifier, "alice").getUuid(), is(seed.getUuid()));
+        assertThat(Disk.findOwnedSeed(identifier, "alice").getUuid(), is(seed.getUuid()));
+    }
+
+    @Test
+    public void testFindSeedQueryHonoursVisibility() {
+        String identifier = "seed-" + new Disk().getUuid();
+
+        Disk seed = new Disk();
+        seed.setOwner("alice");
+        seed.setIdentifier(identifier);
+        seed.setSeed(true);
+        seed.store();
+
+        assertNull(Disk.findSeed(identifier, "bob"));
+        assertNull(Disk.findOwnedSeed(identifier, "bob"));
+
+        seed.setVisibility(DiskVisibility.PUBLIC);
+        seed.store();
+
+        assertThat(Disk.findSeed(identifier, "bob").getUuid(), is(seed.getUuid()));
+        assertNull(Disk.findOwnedSeed(identifier, "bob"));
+    }
+
+    @Test
+    public void testLoadIsCachedAndStoreUpdatesCache() {
+        Statistics statistics = PersistenceUtil.getStatistics();
+
+        Disk disk = new Disk();
+        disk.setTag("before");
+        disk.store();
+
+        Disk.load(disk.getUuid());
+        long hits = statistics.getSecondLevelCacheHitCount();
+        assertThat(Disk.load(disk.getUuid()).getTag(), is("before"));
+        assertTrue(statistics.getSecondLevelCacheHitCount() > hits);
+
+        disk.setTag("after");
+        disk.store();
+        assertThat(Disk.load(disk.getUuid()).getTag(), is("after"));
+
+        disk.remove();
+        assertNull(Disk.load(disk.getUuid()));
+    }
+
+    @Test
+    public void testCachedQuerySeesNewDisks() {
+        Disk origin = new Disk();
+        origin.store();
+
+        assertThat(Disk.countSnapshots(origin.getUuid()), is(0));
+
+        Disk snapshot = new Disk();
+        snapshot.setIdentifier("snapshot:" + origin.getUuid());
+        snapshot.store();
+
+        assertThat(Disk.countSnapshots(origin.getUuid()), is(1));
+    }
+
+    @Test
+    public void testListingCountsSnapshotsAndMounts() {
+        String owner = "owner-" + new Disk().getUuid();
+
+        Disk origin = new Disk();
+        origin.setOwner(owner);
+        origin.setType(DiskType.MACHINE_IMAGE_ORIGIN);
+        origin.store();
+
+        for (int i = 0; i < 3; i++) {
+            Disk snapshot = new Disk();
+            snapshot.setIdentifier("snapshot:" + origin.getUuid());
+            snapshot.store();
+        }
+
+        Disk data = new Disk();
+        data.setOwner(owner);
+        data.store();
+
+        Instance instance = new Instance("789", owner);
+        instance.store();
+        Mount mount = new Mount(instance, data);
+        mount.store();
+
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (DiskView view : Disk.listAllByUser(owner)) {
+            counts.put(view.getUuid(), view.getUsersCount());
+        }
+
+        assertThat(counts.size(), is(2));
+        assertThat(counts.get(origin.getUuid()), is(3));
+        assertThat(counts.get(data.getUuid()), is(1));
+
+        mount.remove();
+        instance.remove();
+    }
+
+    @Test
+    public void testDiskQueryPagesAndFilters() {
+        String owner = "owner-" + new Disk().getUuid();
+
+        List<String> bySize = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            Disk disk = new Disk();
+            disk.setOwner(owner);
+            disk.setSize(10 + i);
+            disk.setTag(i % 2 == 0 ? "even" : "odd");
+            disk.store();
+            bySize.add(disk.getUuid());
+        }
+
+        DiskQuery query = new DiskQuery();
+        query.setOwner(owner);
+        query.setSort(SortKey.SIZE, false);
+
+        List<String> pages = new ArrayList<String>();
+        List<DiskView> page = query.list(2);
+        while (!page.isEmpty()) {
+            assertTrue(page.size() <= 2);
+            for (DiskView view : page) {
+                pages.add(view.getUuid());
+            }
+            query.setAfter(page.get(page.size() - 1));
+            page = query.list(2);
+        }
+        assertThat(pages, is(bySize));
+
+        DiskQuery odd = new DiskQuery();
+        odd.setOwner(owner);
+        odd.setTag("odd");
+        odd.setSort(SortKey.SIZE, true);
+        List<DiskView> views = odd.list(10);
+        assertThat(views.size(), is(2));
+        assertThat(views.get(0).getUuid(), is(bySize.get(3)));
+
+        DiskQuery after = new DiskQuery();
+        after.setOwner(owner);
+        after.setSort(SortKey.SIZE, true);
+        after.setAfter(Disk.load(bySize.get(2)));
+        assertThat(after.list(10).size(), is(2));
+
+        DiskQuery quarantined = new DiskQuery();
+        quarantined.setOwner(owner);
+        quarantined.setQuarantined(true);
+        assertThat(quarantined.list(10).size(), is(0));
+    }
+
+    @Test
+    public void testDiskQueryPagesOverNullTags() {
+        String owner = "owner-" + new Disk().getUuid();
+
+        Set<String> uuids = new HashSet<String>();
+        String[] tags = { null, "a", null, "b" };
+        for (String tag : tags) {
+            Disk disk = new Disk();
+            disk.setOwner(owner);
+            disk.setTag(tag);
+            disk.store();
+            uuids.add(disk.getUuid());
+        }
+
+        DiskQuery query = new DiskQuery();
+        query.setOwner(owner);
+        query.setSort(SortKey.TAG, false);
+
+        List<String> pages = new ArrayList<String>();
+        List<DiskView> page = query.list(1);
+        while (!page.isEmpty()) {
+            pages.add(page.get(0).getUuid());
+            query.setAfter(page.get(0));
+            page = query.list(1);
+        }
+
+        assertThat(pages.size(), is(tags.length));
+        assertThat(new HashSet<String>(pages), is(uuids));
+    }
+
+    @Test
+    public void testCreationDateIsStored() {
+        Disk disk = new Disk();
+        disk.store();
+
+        // Read from the database, not from the second-level cache.
+        EntityManager em = PersistenceUtil.createEntityManager();
+        Query q = em.createQuery("SELECT d.creationDate FROM Disk d WHERE d.uuid = :uuid");
+        q.setParameter("uuid", disk.getUuid());
+        Date creation = (Date) q.getSingleResult();
+        em.close();
+
+        assertThat(creation.getTime(), is(disk.getCreationDate().getTime()));
+        assertThat(creation.getTime() % 1000, is(0L));
+    }
 }
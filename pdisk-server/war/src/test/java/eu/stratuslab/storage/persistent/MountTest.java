@@ -1,5 +1,8 @@
 package eu.stratuslab.storage.persistent;
 
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
 import org.junit.Test;
 
 import eu.stratuslab.storage.persistence.Disk;
@@ -26,4 +29,29 @@ public class MountTest {
 		disk.remove();
 		instance.remove();
 	}
+
+	@Test
+	public void testCachedMountsFollowStoreAndRemove() {
+
+		Disk disk = new Disk();
+		disk.store();
+		Instance instance = new Instance("456", "test");
+		instance.store();
+
+		assertThat(Disk.load(disk.getUuid()).getMountsCount(), is(0));
+
+		Mount mount = new Mount(instance, disk);
+		mount.store();
+
+		assertThat(Disk.load(disk.getUuid()).getMountsCount(), is(1));
+		assertThat(Instance.load("456").getMounts().size(), is(1));
+
+		mount.remove();
+
+		assertThat(Disk.load(disk.getUuid()).getMountsCount(), is(0));
+		assertThat(Instance.load("456").getMounts().size(), is(0));
+
+		disk.remove();
+		instance.remove();
+	}
 }